@@ -0,0 +1,171 @@
+package com.igbt6.lovelyclock.test;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
+import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+import com.igbt6.lovelyclock.persistance.AlarmDao;
+import com.igbt6.lovelyclock.persistance.AlarmDatabaseHelper;
+import com.igbt6.lovelyclock.persistance.AlarmJournal;
+import com.igbt6.lovelyclock.persistance.JournalPersistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares writes through the ContentResolver and AlarmProvider with writes
+ * through {@link AlarmDao} on a table with {@link #ROWS} rows, and with
+ * appends to an {@link AlarmJournal}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmDaoBenchmark {
+    private static final int ROWS = 10000;
+    private static final Uri CONTENT_URI = Uri.parse("content://" + InstrumentationRegistry.getTargetContext().getPackageName() + ".model/alarm");
+
+    private ContentResolver resolver;
+    private AlarmDao dao;
+    private File journalFile;
+    private final List<Integer> ids = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        resolver = context.getContentResolver();
+        dao = new AlarmDao(AlarmDatabaseHelper.getInstance(context, Logger.create()), resolver);
+        journalFile = new File(context.getCacheDir(), "benchmark.journal");
+    }
+
+    @After
+    public void deleteRows() {
+        for (int id : ids) {
+            dao.delete(id);
+        }
+        journalFile.delete();
+    }
+
+    @Test
+    public void contentResolverVsDao() {
+        AlarmContainer container = container(-1, 0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            ids.add((int) ContentUris.parseId(resolver.insert(CONTENT_URI, contentValues(container))));
+        }
+        long resolverInsert = System.nanoTime() - start;
+
+        int firstId = dao.reserveIds(ROWS);
+        start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            dao.insert(container(firstId + i, 0));
+            ids.add(firstId + i);
+        }
+        long daoInsert = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            AlarmContainer updated = container(ids.get(i), i);
+            resolver.update(ContentUris.withAppendedId(CONTENT_URI, updated.getId()), contentValues(updated), null, null);
+        }
+        long resolverUpdate = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            dao.update(container(ids.get(ROWS + i), i));
+        }
+        long daoUpdate = System.nanoTime() - start;
+
+        System.out.println(String.format("insert: ContentResolver %6d us/row, AlarmDao %6d us/row",
+                resolverInsert / ROWS / 1000, daoInsert / ROWS / 1000));
+        System.out.println(String.format("update: ContentResolver %6d us/row, AlarmDao %6d us/row",
+                resolverUpdate / ROWS / 1000, daoUpdate / ROWS / 1000));
+    }
+
+    @Test
+    public void daoVsJournal() throws IOException {
+        int firstId = dao.reserveIds(ROWS);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            dao.upsert(container(firstId + i, 0));
+            ids.add(firstId + i);
+        }
+        for (int i = 0; i < ROWS; i++) {
+            dao.upsert(container(firstId + i, i));
+        }
+        long daoWrites = System.nanoTime() - start;
+
+        AlarmJournal journal = AlarmJournal.open(journalFile, 1024 * 1024);
+        JournalPersistence persistence = new JournalPersistence(journal);
+        start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            persistence.persist(container(i, 0));
+        }
+        for (int i = 0; i < ROWS; i++) {
+            persistence.persist(container(i, i));
+        }
+        journal.sync();
+        long journalWrites = System.nanoTime() - start;
+        int compactions = journal.getCompactionCount();
+        journal.close();
+
+        start = System.nanoTime();
+        AlarmJournal.open(journalFile, 1024 * 1024).close();
+        long journalReplay = System.nanoTime() - start;
+
+        System.out.println(String.format("upsert: AlarmDao %6d us/row, AlarmJournal %6d us/row (%d compactions)",
+                daoWrites / ROWS / 2000, journalWrites / ROWS / 2000, compactions));
+        System.out.println(String.format("replay: AlarmJournal %6d ms for %d alarms",
+                journalReplay / 1000000, ROWS));
+    }
+
+    private static AlarmContainer container(int id, int i) {
+        return ImmutableAlarmContainer.builder()
+                .id(id)
+                .isEnabled(i % 2 == 0)
+                .nextTime(1500000000000L + i * 60000L)
+                .hour(i % 24)
+                .minutes(i % 60)
+                .isVibrate(true)
+                .daysOfWeek(ImmutableDaysOfWeek.of(i % 128))
+                .alertString("")
+                .isPrealarm(false)
+                .label("benchmark")
+                .state("DisabledState")
+                .persistence(AlarmContainer.PERSISTENCE_STUB)
+                .build();
+    }
+
+    /**
+     * Same as PersistingContainerFactory did before the dao
+     */
+    private static ContentValues contentValues(AlarmContainer container) {
+        ContentValues values = new ContentValues(12);
+        values.put("enabled", container.isEnabled());
+        values.put("hour", container.getHour());
+        values.put("minutes", container.getMinutes());
+        values.put("daysofweek", container.getDaysOfWeek().getCoded());
+        values.put("vibrate", container.isVibrate());
+        values.put("message", container.getLabel());
+        values.put("alert", container.alertString());
+        values.put("prealarm", container.isPrealarm());
+        values.put("alarmtime", container.getNextTime());
+        values.put("state", container.getState());
+        return values;
+    }
+}
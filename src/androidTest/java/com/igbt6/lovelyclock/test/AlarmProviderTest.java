@@ -0,0 +1,133 @@
+package com.igbt6.lovelyclock.test;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.persistance.AlarmDatabaseHelper;
+import com.igbt6.lovelyclock.persistance.AlarmProvider;
+import com.igbt6.lovelyclock.persistance.AlarmQueryCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class AlarmProviderTest {
+    private static final long TIME = 4000000000000L;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final Uri CONTENT_URI = Uri.parse("content://" + InstrumentationRegistry.getTargetContext().getPackageName() + ".model/alarm");
+    private static final String[] PROJECTION = {"_id", "alarmtime"};
+
+    private ContentResolver resolver;
+    private final List<Uri> inserted = new ArrayList<Uri>();
+
+    @Before
+    public void insertAlarms() {
+        resolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        insert(true, TIME + HOUR);
+        insert(false, TIME + 2 * HOUR);
+        insert(true, TIME + 25 * HOUR);
+    }
+
+    @After
+    public void deleteAlarms() {
+        for (Uri uri : inserted) {
+            resolver.delete(uri, null, null);
+        }
+    }
+
+    private void insert(boolean enabled, long time) {
+        ContentValues values = new ContentValues();
+        values.put("enabled", enabled);
+        values.put("alarmtime", time);
+        values.put("state", "");
+        inserted.add(resolver.insert(CONTENT_URI, values));
+    }
+
+    @Test
+    public void queryById() {
+        Cursor cursor = resolver.query(inserted.get(1), PROJECTION, null, null, null);
+        try {
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(0)).isEqualTo(ContentUris.parseId(inserted.get(1)));
+            assertThat(cursor.getLong(1)).isEqualTo(TIME + 2 * HOUR);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void queryEnabledInTimeRange() {
+        Uri next24h = Uri.withAppendedPath(CONTENT_URI, "enabled").buildUpon()
+                .appendQueryParameter(AlarmProvider.QUERY_PARAMETER_FROM, Long.toString(TIME))
+                .appendQueryParameter(AlarmProvider.QUERY_PARAMETER_TO, Long.toString(TIME + 24 * HOUR))
+                .build();
+        Cursor cursor = resolver.query(next24h, PROJECTION, null, null, null);
+        try {
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(0)).isEqualTo(ContentUris.parseId(inserted.get(0)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void repeatedQueriesAreAnsweredFromTheCacheUntilAWrite() {
+        AlarmQueryCache cache = AlarmDatabaseHelper.getInstance(InstrumentationRegistry.getTargetContext(), Logger.create()).getQueryCache();
+        resolver.query(CONTENT_URI, PROJECTION, null, null, null).close();
+        int hits = cache.getHitCount();
+        int misses = cache.getMissCount();
+
+        Cursor cursor = resolver.query(inserted.get(2), PROJECTION, null, null, null);
+        try {
+            assertThat(cache.getHitCount()).isEqualTo(hits + 1);
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(1)).isEqualTo(TIME + 25 * HOUR);
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("alarmtime", TIME + 26 * HOUR);
+        resolver.update(inserted.get(2), values, null, null);
+
+        cursor = resolver.query(inserted.get(2), PROJECTION, null, null, null);
+        try {
+            assertThat(cache.getMissCount()).isEqualTo(misses + 1);
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(1)).isEqualTo(TIME + 26 * HOUR);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void queriesWithSelectionGoToTheDatabase() {
+        AlarmQueryCache cache = AlarmDatabaseHelper.getInstance(InstrumentationRegistry.getTargetContext(), Logger.create()).getQueryCache();
+        int hits = cache.getHitCount();
+        int misses = cache.getMissCount();
+        Cursor cursor = resolver.query(CONTENT_URI, PROJECTION, "alarmtime = ?", new String[]{Long.toString(TIME + HOUR)}, null);
+        try {
+            assertThat(cursor.getCount()).isEqualTo(1);
+        } finally {
+            cursor.close();
+        }
+        assertThat(cache.getHitCount()).isEqualTo(hits);
+        assertThat(cache.getMissCount()).isEqualTo(misses);
+    }
+}
@@ -50,11 +50,11 @@ class BaseTest {
     @AfterClass
     public static void dropDatabase() {
         final Context context = InstrumentationRegistry.getTargetContext();
-        AlarmDatabaseHelper dbHelper = new AlarmDatabaseHelper(context, Logger.create());
+        AlarmDatabaseHelper dbHelper = AlarmDatabaseHelper.getInstance(context, Logger.create());
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         db.execSQL("DROP TABLE IF EXISTS alarms");
         dbHelper.onCreate(db);
-        db.close();
+        // not closed, the helper is shared with the app
         System.out.println("Dropped database");
     }
 
@@ -23,6 +23,7 @@ import android.widget.Toast;
 import com.igbt6.lovelyclock.R;
 import com.igbt6.lovelyclock.configuration.Store;
 
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.functions.Consumer;
 
@@ -37,7 +38,8 @@ public class ToastPresenter {
     }
 
     public void start() {
-        store.sets().subscribe(new Consumer<Store.AlarmSet>() {
+        // alarms are set on the threads of the state machines
+        store.sets().observeOn(AndroidSchedulers.mainThread()).subscribe(new Consumer<Store.AlarmSet>() {
             @Override
             public void accept(@NonNull Store.AlarmSet alarmSet) throws Exception {
                 if (alarmSet.alarm().isEnabled()) {
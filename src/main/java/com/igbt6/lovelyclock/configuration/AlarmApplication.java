@@ -39,7 +39,9 @@ import com.igbt6.lovelyclock.model.AlarmValue;
 import com.igbt6.lovelyclock.model.Alarms;
 import com.igbt6.lovelyclock.model.AlarmsScheduler;
 import com.igbt6.lovelyclock.model.Calendars;
-import com.igbt6.lovelyclock.model.MainLooperHandlerFactory;
+import com.igbt6.lovelyclock.model.ExecutorHandlerFactory;
+import com.igbt6.lovelyclock.persistance.AlarmDao;
+import com.igbt6.lovelyclock.persistance.AlarmDatabaseHelper;
 import com.igbt6.lovelyclock.persistance.DatabaseQuery;
 import com.igbt6.lovelyclock.persistance.PersistingContainerFactory;
 import com.igbt6.lovelyclock.presenter.DynamicThemeHandler;
@@ -64,9 +66,11 @@ import io.reactivex.Maybe;
 import io.reactivex.MaybeEmitter;
 import io.reactivex.MaybeOnSubscribe;
 import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 
@@ -153,7 +157,8 @@ public class AlarmApplication extends Application {
         final ImmutableStore store = ImmutableStore.builder()
                 .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
                 .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
-                .sets(PublishSubject.<Store.AlarmSet>create())
+                // AlarmCores on different threads publish sets
+                .sets(PublishSubject.<Store.AlarmSet>create().toSerialized())
                 .build();
 
         store.alarms().subscribe(new Consumer<List<AlarmValue>>() {
@@ -206,11 +211,21 @@ public class AlarmApplication extends Application {
             }
         };
 
-        AlarmsScheduler alarmsScheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars);
+        final AlarmsScheduler alarmsScheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars,
+                0, AlarmsScheduler.QueueType.HEAP);
+        rxPreferences.getString(Prefs.KEY_COALESCING_WINDOW_SEC, "0").asObservable().map(parseInt)
+                .subscribe(new Consumer<Integer>() {
+                    @Override
+                    public void accept(@NonNull Integer seconds) throws Exception {
+                        alarmsScheduler.setCoalescingWindow(seconds * 1000L);
+                    }
+                });
         AlarmCore.IStateNotifier broadcaster = new AlarmStateNotifier(getApplicationContext());
-        HandlerFactory handlerFactory = new MainLooperHandlerFactory();
-        PersistingContainerFactory containerFactory = new PersistingContainerFactory(calendars, getApplicationContext());
-        Alarms alarms = new Alarms(alarmsScheduler, new DatabaseQuery(getContentResolver(), containerFactory), new AlarmCoreFactory(logger,
+        // state machines run off the main thread, the UI observes the store on the main thread
+        HandlerFactory handlerFactory = new ExecutorHandlerFactory(2);
+        AlarmDao dao = new AlarmDao(AlarmDatabaseHelper.getInstance(getApplicationContext(), logger), getContentResolver());
+        PersistingContainerFactory containerFactory = new PersistingContainerFactory(calendars, dao);
+        Alarms alarms = new Alarms(alarmsScheduler, new DatabaseQuery(dao, containerFactory, Schedulers.io(), AndroidSchedulers.mainThread()), new AlarmCoreFactory(logger,
                 alarmsScheduler,
                 broadcaster,
                 handlerFactory,
@@ -218,7 +233,7 @@ public class AlarmApplication extends Application {
                 store,
                 calendars
 
-        ), containerFactory);
+        ), containerFactory, handlerFactory);
 
         alarms.start();
 
@@ -18,6 +18,7 @@ public interface Prefs {
     String KEY_AUTO_SILENCE = "auto_silence";
     String KEY_PREALARM_DURATION = "prealarm_duration";
     String KEY_FADE_IN_TIME_SEC = "fade_in_time_sec";
+    String KEY_COALESCING_WINDOW_SEC = "coalescing_window_sec";
     boolean LONGCLICK_DISMISS_DEFAULT = false;
     String LONGCLICK_DISMISS_KEY = "longclick_dismiss_key";
 
@@ -18,6 +18,13 @@ package com.igbt6.lovelyclock.interfaces;
 import android.support.annotation.NonNull;
 
 import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.persistance.AlarmSetFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.reactivex.Single;
 
 /**
  * @author Yuriy
@@ -71,4 +78,20 @@ public interface IAlarmsManager {
     Alarm createNewAlarm();
 
     void delete(@NonNull AlarmValue alarm);
+
+    /**
+     * Creates alarms from a set in {@link AlarmSetFormat}. The stream is read
+     * in batches, alarms of each batch are written in one transaction and
+     * scheduled together. Batches which were imported before an error are
+     * kept.
+     *
+     * @return number of imported alarms, emitted when all of them are
+     * scheduled. The stream is closed when the import is done.
+     */
+    Single<Integer> importAlarms(InputStream in);
+
+    /**
+     * Writes all alarms in {@link AlarmSetFormat}
+     */
+    void exportAlarms(OutputStream out) throws IOException;
 }
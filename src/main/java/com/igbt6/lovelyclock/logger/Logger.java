@@ -32,7 +32,7 @@ public class Logger {
     }
 
     private void logIfApplicable(LogLevel requestedLogLevel, Object message, Throwable throwable) {
-        final boolean shouldBeLogged = requestedLogLevel.ordinal() <= logLevel.ordinal();
+        final boolean shouldBeLogged = requestedLogLevel.ordinal() <= logLevel.ordinal() && !writers.isEmpty();
         if (shouldBeLogged) {
             // TODO cache tags! Use linenumber?
             final String formatTag = formatTag();
@@ -42,6 +42,14 @@ public class Logger {
         }
     }
 
+    /**
+     * @return true if debug messages are written. Use it to avoid building
+     * messages which are not written.
+     */
+    public boolean isDebugEnabled() {
+        return LogLevel.DBG.ordinal() <= logLevel.ordinal() && !writers.isEmpty();
+    }
+
     public void d(Object message) {
         logIfApplicable(LogLevel.DBG, message, null);
     }
@@ -5,7 +5,7 @@ import android.net.Uri;
 
 import org.immutables.value.Value;
 
-import java.util.Calendar;
+import java.util.Collection;
 
 @Value.Immutable
 //@Value.Style(stagedBuilder = true)
@@ -18,16 +18,38 @@ public abstract class AlarmContainer implements AlarmChangeData {
             //STUB
         }
 
+        @Override
+        public void persistAll(Collection<AlarmContainer> containers) {
+            //STUB
+        }
+
         @Override
         public void delete(AlarmContainer container) {
             //STUB
         }
+
+        @Override
+        public void flush() {
+            //STUB
+        }
     };
 
     public interface Persistence {
         void persist(AlarmContainer container);
 
+        /**
+         * Persists all containers at once, e.g. in one transaction
+         */
+        void persistAll(Collection<AlarmContainer> containers);
+
         void delete(AlarmContainer container);
+
+        /**
+         * Writes all changes which were not written yet. Called after the
+         * {@link com.igbt6.lovelyclock.statemachine.StateMachine} of the alarm has
+         * handled a message.
+         */
+        void flush();
     }
 
     final void delete() {
@@ -47,7 +69,10 @@ public abstract class AlarmContainer implements AlarmChangeData {
         return ALARM_ALERT_SILENT.equals(alertString());
     }
 
-    public abstract Calendar getNextTime();
+    /**
+     * @return time in milliseconds since epoch
+     */
+    public abstract long getNextTime();
 
     public abstract String getState();
 
@@ -33,15 +33,11 @@ import com.igbt6.lovelyclock.statemachine.IState;
 import com.igbt6.lovelyclock.statemachine.Message;
 import com.igbt6.lovelyclock.statemachine.State;
 import com.igbt6.lovelyclock.statemachine.StateMachine;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Date;
 import java.util.Locale;
 
 import io.reactivex.Observable;
@@ -104,10 +100,13 @@ import io.reactivex.functions.Consumer;
  * @author Yuriy
  */
 public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
     private final IAlarmsScheduler mAlarmsScheduler;
     private final Logger log;
     private final IStateNotifier broadcaster;
-    private ImmutableAlarmContainer container;
+    /** written by the state machine, read by the getters on other threads */
+    private volatile ImmutableAlarmContainer container;
     private final AlarmStateMachine stateMachine;
     private final DateFormat df;
 
@@ -116,9 +115,18 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
     private final Observable<Integer> autoSilence;
 
     private final Store store;
+    private final AlarmListUpdater alarmList;
     private final Calendars calendars;
 
-    public AlarmCore(AlarmContainer container, Logger logger, IAlarmsScheduler alarmsScheduler, IStateNotifier broadcaster, HandlerFactory handlerFactory, Prefs prefs, Store store, Calendars calendars) {
+    public AlarmCore(AlarmContainer container, Logger logger, IAlarmsScheduler alarmsScheduler, IStateNotifier broadcaster, HandlerFactory handlerFactory, Prefs prefs, Store store, AlarmListUpdater alarmList, Calendars calendars) {
+        this(container, logger, alarmsScheduler, broadcaster, handlerFactory, prefs, store, alarmList, calendars, true);
+    }
+
+    /**
+     * @param resume false if {@link #restore()} is called later on the thread
+     *               of the handler. Messages sent until then are deferred.
+     */
+    AlarmCore(AlarmContainer container, Logger logger, IAlarmsScheduler alarmsScheduler, IStateNotifier broadcaster, HandlerFactory handlerFactory, Prefs prefs, Store store, AlarmListUpdater alarmList, Calendars calendars, boolean resume) {
         this.log = logger;
         this.calendars = calendars;
         this.mAlarmsScheduler = alarmsScheduler;
@@ -131,11 +139,14 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         this.autoSilence = prefs.autoSilence();
 
         this.store = store;
+        this.alarmList = alarmList;
 
         stateMachine = new AlarmStateMachine(container.getState(), "Alarm " + container.getId(), handlerFactory);
         // we always resume SM. This means that initial state will not receive
         // enter(), only resume()
-        stateMachine.resume();
+        if (resume) {
+            stateMachine.resume();
+        }
 
         updateListInStore();
 
@@ -147,6 +158,15 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         });
     }
 
+    /**
+     * Resumes the state machine from the persisted checkpoint right away. Must
+     * be called on the thread which handles the messages of the handler, once,
+     * if the AlarmCore was created without resuming.
+     */
+    void restore() {
+        stateMachine.resumeNow();
+    }
+
     /**
      * Strategy used to notify other components about alarm state.
      */
@@ -181,7 +201,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         public final EnabledState.PreAlarmSnoozedState preAlarmSnoozed;
         public final EnabledState.FiredState fired;
 
-        public AlarmStateMachine(String initialState, String name, HandlerFactory handlerFactory) {
+        public AlarmStateMachine(String checkpoint, String name, HandlerFactory handlerFactory) {
             super(name, handlerFactory, log);
             disabledState = new DisabledState();
             rescheduleTransition = new RescheduleTransition();
@@ -217,12 +237,28 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                 public void onStateChanged(IState state) {
                     if (state != enabledState && !(state instanceof ComplexTransition)) {
                         log.d("saving state " + state.getName());
-                        container = container.withState(state.getName());
+                        container = container.withState(getCheckpoint(state));
                     }
                 }
             });
 
-            setInitialState(stringToState(initialState));
+            // bursts of broadcasts and preference changes reschedule once
+            setCoalescing(PREALARM_DURATION_CHANGED, Coalescing.LATEST);
+            setCoalescing(REFRESH, Coalescing.LATEST);
+            setCoalescing(TIME_SET, Coalescing.LATEST);
+
+            setInitialState(checkpointToState(checkpoint));
+        }
+
+        @Override
+        protected void onPostHandleMessage(Message msg) {
+            // all changes made while handling the message are written at once
+            container.persistence().flush();
+        }
+
+        @Override
+        protected int getLargestMessageWhat() {
+            return TIME_SET;
         }
 
         private class DeletedState extends AlarmState {
@@ -260,6 +296,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
             protected void onDelete() {
                 transitionTo(deletedState);
             }
+
+            @Override
+            public boolean mayHandle(int what) {
+                return what == CHANGE || what == ENABLE || what == DELETE;
+            }
         }
 
 
@@ -289,10 +330,9 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         private class EnableTransition extends ComplexTransition {
             @Override
             public void performComplexTransition() {
-                Calendar preAlarm = calculateNextTime();
                 Integer preAlarmMinutes = preAlarmDuration.blockingFirst();
-                preAlarm.add(Calendar.MINUTE, -1 * preAlarmMinutes);
-                if (container.isPrealarm() && preAlarm.after(calendars.now()) && preAlarmMinutes != -1) {
+                long preAlarm = calculateNextTime() - preAlarmMinutes * MINUTE_MILLIS;
+                if (container.isPrealarm() && preAlarm > calendars.now().getTimeInMillis() && preAlarmMinutes != -1) {
                     transitionTo(preAlarmSet);
                 } else {
                     transitionTo(normalSet);
@@ -344,6 +384,12 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                 transitionTo(deletedState);
             }
 
+            @Override
+            public boolean mayHandle(int what) {
+                return what == CHANGE || what == DISMISS || what == DISABLE || what == REFRESH
+                        || what == TIME_SET || what == DELETE;
+            }
+
             private class SetState extends AlarmState {
 
                 private class NormalSetState extends AlarmState {
@@ -351,14 +397,13 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     public void enter() {
                         int what = getCurrentMessage().what();
                         if (what == DISMISS || what == SNOOZE || what == CHANGE) {
-                            broadcastAlarmSetWithNormalTime(calculateNextTime().getTimeInMillis());
+                            broadcastAlarmSetWithNormalTime(calculateNextTime());
                         }
                     }
 
                     @Override
                     public void resume() {
-                        Calendar nextTime = calculateNextTime();
-                        setAlarm(nextTime, CalendarType.NORMAL);
+                        setAlarm(calculateNextTime(), CalendarType.NORMAL);
                     }
 
                     @Override
@@ -370,6 +415,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     protected void onPreAlarmDurationChanged() {
                         transitionTo(enableTransition);
                     }
+
+                    @Override
+                    public boolean mayHandle(int what) {
+                        return what == FIRED || what == PREALARM_DURATION_CHANGED;
+                    }
                 }
 
                 private class PreAlarmSetState extends AlarmState {
@@ -378,7 +428,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     public void enter() {
                         int what = getCurrentMessage().what();
                         if (what == DISMISS || what == SNOOZE || what == CHANGE) {
-                            broadcastAlarmSetWithNormalTime(calculateNextTime().getTimeInMillis());
+                            broadcastAlarmSetWithNormalTime(calculateNextTime());
                         }
 
                         updateListInStore();
@@ -386,13 +436,13 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
 
                     @Override
                     public void resume() {
-                        Calendar c = calculateNextTime();
-                        c.add(Calendar.MINUTE, -1 * preAlarmDuration.blockingFirst());
+                        Calendar now = calendars.now();
+                        long preAlarm = calculateNextTime() - preAlarmDuration.blockingFirst() * MINUTE_MILLIS;
                         // since prealarm is before main alarm, it can be already in the
                         // past, so it has to be adjusted.
-                        advanceCalendar(c);
-                        if (c.after(calendars.now())) {
-                            setAlarm(c, CalendarType.PREALARM);
+                        preAlarm = NextOccurrence.advance(preAlarm, container.getDaysOfWeek().getCoded(), now.getTimeInMillis(), now.getTimeZone());
+                        if (preAlarm > now.getTimeInMillis()) {
+                            setAlarm(preAlarm, CalendarType.PREALARM);
                         } else {
                             // TODO this should never happen
                             log.e("PreAlarm is still in the past!");
@@ -409,6 +459,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     protected void onPreAlarmDurationChanged() {
                         transitionTo(enableTransition);
                     }
+
+                    @Override
+                    public boolean mayHandle(int what) {
+                        return what == FIRED || what == PREALARM_DURATION_CHANGED;
+                    }
                 }
 
                 @Override
@@ -422,6 +477,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                 protected void onTimeSet() {
                     transitionTo(enableTransition);
                 }
+
+                @Override
+                public boolean mayHandle(int what) {
+                    return what == TIME_SET;
+                }
             }
 
             /**
@@ -434,8 +494,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     int autoSilenceMinutes = autoSilence.blockingFirst();
                     if (autoSilenceMinutes > 0) {
                         // -1 means OFF
-                        Calendar nextTime = calendars.now();
-                        nextTime.add(Calendar.MINUTE, autoSilenceMinutes);
+                        long nextTime = calendars.now().getTimeInMillis() + autoSilenceMinutes * MINUTE_MILLIS;
                         setAlarm(nextTime, CalendarType.AUTOSILENCE);
                     }
                 }
@@ -452,6 +511,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     transitionTo(snoozed);
                 }
 
+                @Override
+                public boolean mayHandle(int what) {
+                    return what == FIRED || what == SNOOZE;
+                }
+
                 @Override
                 public void exit() {
                     broadcastAlarmState(Intents.ALARM_DISMISS_ACTION);
@@ -473,7 +537,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
 
                 @Override
                 protected void onSnooze() {
-                    if (getCurrentMessage().obj().isPresent()) {
+                    if (getCurrentMessage().objOrNull() != null) {
                         //snooze to time with prealarm -> go to snoozed
                         transitionTo(snoozed);
                     } else {
@@ -481,6 +545,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     }
                 }
 
+                @Override
+                public boolean mayHandle(int what) {
+                    return what == FIRED || what == SNOOZE;
+                }
+
                 @Override
                 public void exit() {
                     removeAlarm();
@@ -494,11 +563,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     Calendar nextTime;
                     Calendar now = calendars.now();
                     Message reason = getCurrentMessage();
-                    if (reason.obj().isPresent()) {
+                    if (reason.objOrNull() != null) {
                         Calendar customTime = calendars.now();
                         //TODO pass an object, dont misuse these poor args
-                        customTime.set(Calendar.HOUR_OF_DAY, reason.arg1().get());
-                        customTime.set(Calendar.MINUTE, reason.arg2().get());
+                        customTime.set(Calendar.HOUR_OF_DAY, reason.arg1Or(0));
+                        customTime.set(Calendar.MINUTE, reason.arg2Or(0));
                         if (customTime.after(now)) {
                             nextTime = customTime;
                         } else {
@@ -508,7 +577,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                         nextTime = getNextRegualarSnoozeCalendar();
                     }
 
-                    setAlarm(nextTime, CalendarType.NORMAL);
+                    setAlarm(nextTime.getTimeInMillis(), CalendarType.NORMAL);
                     broadcastAlarmState(Intents.ALARM_SNOOZE_ACTION);
                 }
 
@@ -530,6 +599,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     enter();
                 }
 
+                @Override
+                public boolean mayHandle(int what) {
+                    return what == FIRED || what == SNOOZE;
+                }
+
                 @Override
                 public void exit() {
                     removeAlarm();
@@ -555,6 +629,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                     transitionTo(snoozed);
                 }
 
+                @Override
+                public boolean mayHandle(int what) {
+                    return what == FIRED || what == SNOOZE;
+                }
+
                 @Override
                 public void exit() {
                     removeAlarm();
@@ -574,9 +653,9 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
             updateListInStore();
         }
 
-        private void setAlarm(Calendar calendar, CalendarType calendarType) {
-            mAlarmsScheduler.setAlarm(container.getId(), calendarType, calendar, container);
-            container = container.withNextTime(calendar);
+        private void setAlarm(long millis, CalendarType calendarType) {
+            mAlarmsScheduler.setAlarm(container.getId(), calendarType, millis, container);
+            container = container.withNextTime(millis);
         }
 
         private void removeAlarm() {
@@ -584,67 +663,39 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         }
 
         private void removeFromStore() {
-            store.alarms().take(1).subscribe(new Consumer<List<AlarmValue>>() {
-                @Override
-                public void accept(@NonNull List<AlarmValue> alarmValues) throws Exception {
-                    List<AlarmValue> copy = new ArrayList<AlarmValue>(alarmValues);
-
-                    AlarmValue old = Collections2.filter(alarmValues, new Predicate<AlarmValue>() {
-                        @Override
-                        public boolean apply(AlarmValue input) {
-                            return input.getId() == container.getId();
-                        }
-                    }).iterator().next();
-                    copy.remove(alarmValues.indexOf(old));
-
-                    store.alarmsSubject().onNext(copy);
-                }
-            });
+            alarmList.remove(container.getId());
         }
 
         private void writeChangeData(AlarmChangeData data) {
-            container = ImmutableAlarmContainer.builder()
+            ImmutableAlarmContainer.Builder builder = ImmutableAlarmContainer.builder()
                     .from(container)
-                    .from(data)
-                    .build();
-        }
-
-        private Calendar calculateNextTime() {
-            Calendar c = calendars.now();
-            c.set(Calendar.HOUR_OF_DAY, container.getHour());
-            c.set(Calendar.MINUTE, container.getMinutes());
-            c.set(Calendar.SECOND, 0);
-            c.set(Calendar.MILLISECOND, 0);
-            advanceCalendar(c);
-            return c;
+                    .from(data);
+            if ("".equals(container.getState())) {
+                // first commit of a new alarm, from now on it is written
+                builder.state(getCheckpoint(getCurrentState()));
+            }
+            container = builder.build();
         }
 
-        private void advanceCalendar(Calendar calendar) {
+        private long calculateNextTime() {
             Calendar now = calendars.now();
-            // if alarm is behind current time, advance one day
-            if (calendar.before(now)) {
-                calendar.add(Calendar.DAY_OF_YEAR, 1);
-            }
-            int addDays = container.getDaysOfWeek().getNextAlarm(calendar);
-            if (addDays > 0) {
-                calendar.add(Calendar.DAY_OF_WEEK, addDays);
-            }
+            return NextOccurrence.next(container.getHour(), container.getMinutes(), container.getDaysOfWeek().getCoded(),
+                    now.getTimeInMillis(), now.getTimeZone());
         }
 
-        private State stringToState(String initialState) {
-            if ("".equals(initialState)) {
+        private State checkpointToState(String checkpoint) {
+            if ("".equals(checkpoint)) {
                 log.d("new Alarm - DisabledState");
                 return disabledState;
             }
-            for (State state : getStates()) {
-                if (state.getName().equals(initialState)) return state;
-            }
+            State state = getStateByCheckpoint(checkpoint);
+            if (state != null) return state;
             log.d("wtf? state not found");
             return disabledState;
         }
 
         private boolean alarmWillBeRescheduled(Message reason) {
-            boolean alarmWillBeRescheduled = reason.what() == CHANGE && ((AlarmChangeData) reason.obj().get()).isEnabled();
+            boolean alarmWillBeRescheduled = reason.what() == CHANGE && ((AlarmChangeData) reason.objOrNull()).isEnabled();
             return alarmWillBeRescheduled;
         }
 
@@ -668,7 +719,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                         onDismiss();
                         break;
                     case CHANGE:
-                        onChange((AlarmChangeData) msg.obj().get());
+                        onChange((AlarmChangeData) msg.objOrNull());
                         break;
                     case FIRED:
                         onFired();
@@ -695,6 +746,30 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
                 handled = false;
             }
 
+            /**
+             * States override this with the whats of the hooks they
+             * override, the others only mark the message as not handled
+             */
+            @Override
+            public boolean mayHandle(int what) {
+                switch (what) {
+                    case ENABLE:
+                    case DISABLE:
+                    case SNOOZE:
+                    case DISMISS:
+                    case CHANGE:
+                    case FIRED:
+                    case PREALARM_DURATION_CHANGED:
+                    case REFRESH:
+                    case TIME_SET:
+                    case DELETE:
+                        return false;
+                    default:
+                        // processMessage throws
+                        return true;
+                }
+            }
+
             protected void onEnable() {
                 markNotHandled();
             }
@@ -738,31 +813,7 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
     }
 
     private void updateListInStore() {
-        final AlarmValue toStore = container;
-
-        store.alarms().take(1).subscribe(new Consumer<List<AlarmValue>>() {
-            @Override
-            public void accept(@NonNull List<AlarmValue> alarmValues) throws Exception {
-
-                Iterator<AlarmValue> optional = Collections2.filter(alarmValues, new Predicate<AlarmValue>() {
-                    @Override
-                    public boolean apply(AlarmValue input) {
-                        return input.getId() == container.getId();
-                    }
-                }).iterator();
-
-                List<AlarmValue> copy = new ArrayList<AlarmValue>(alarmValues);
-
-                if (optional.hasNext()) {
-                    AlarmValue old = optional.next();
-                    copy.set(alarmValues.indexOf(old), toStore);
-                } else {
-                    copy.add(toStore);
-                }
-
-                store.alarmsSubject().onNext(copy);
-            }
-        });
+        alarmList.put(container);
     }
 
     /**
@@ -786,8 +837,8 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
     }
 
     public void change(AlarmChangeData data) {
-        stateMachine.obtainMessage(AlarmStateMachine.CHANGE)
-                .withObj(data)
+        stateMachine.obtainPooledMessage(AlarmStateMachine.CHANGE)
+                .setObj(data)
                 .send();
     }
 
@@ -803,11 +854,11 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
 
     @Override
     public void snooze(int hourOfDay, int minute) {
-        stateMachine.obtainMessage(AlarmStateMachine.SNOOZE)
-                .withArg1(hourOfDay)
-                .withArg2(minute)
+        stateMachine.obtainPooledMessage(AlarmStateMachine.SNOOZE)
+                .setArg1(hourOfDay)
+                .setArg2(minute)
                 //This is a marker, sick stuff
-                .withObj(new Object())
+                .setObj(new Object())
                 .send();
     }
 
@@ -821,6 +872,14 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         stateMachine.sendMessage(AlarmStateMachine.DELETE);
     }
 
+    /**
+     * @return how many refresh, time set and prealarm duration messages were
+     * coalesced with a pending one
+     */
+    public int getCoalescedMessageCount() {
+        return stateMachine.getCoalescedCount();
+    }
+
     // ++++++++++++++++++++++++++++++++++++++++++++++++++++++
     // ++++++ getters for GUI +++++++++++++++++++++++++++++++
     // ++++++++++++++++++++++++++++++++++++++++++++++++++++++
@@ -850,7 +909,10 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
         StringBuilder sb = new StringBuilder();
         sb.append("AlarmCore ").append(container.getId());
         sb.append(" in ").append(stateMachine.getCurrentState().getName());
-        sb.append(" on ").append(df.format(container.getNextTime().getTime()));
+        synchronized (df) {
+            // can be called on any thread
+            sb.append(" on ").append(df.format(new Date(container.getNextTime())));
+        }
         return sb.toString();
     }
 
@@ -862,6 +924,8 @@ public final class AlarmCore implements Alarm, Consumer<AlarmChangeData> {
     @Override
     @Deprecated
     public Calendar getSnoozedTime() {
-        return container.getNextTime();
+        Calendar calendar = calendars.now();
+        calendar.setTimeInMillis(container.getNextTime());
+        return calendar;
     }
 }
@@ -4,18 +4,25 @@ import com.igbt6.lovelyclock.configuration.Prefs;
 import com.igbt6.lovelyclock.configuration.Store;
 import com.igbt6.lovelyclock.logger.Logger;
 import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
+
+import java.util.List;
 
 /**
  * Created by Yuriy on 09.08.2017.
  */
 
 public class AlarmCoreFactory {
+    private static final int RESTORE = 1;
+
     private final Logger logger;
     private final IAlarmsScheduler alarmsScheduler;
     private final AlarmCore.IStateNotifier broadcaster;
     private final HandlerFactory handlerFactory;
     private final Prefs prefs;
     private final Store store;
+    private final AlarmListUpdater alarmList;
     private final Calendars calendars;
 
     public AlarmCoreFactory(Logger logger, IAlarmsScheduler alarmsScheduler, AlarmCore.IStateNotifier broadcaster, HandlerFactory handlerFactory, Prefs prefs, Store store, Calendars calendars) {
@@ -25,10 +32,49 @@ public class AlarmCoreFactory {
         this.handlerFactory = handlerFactory;
         this.prefs = prefs;
         this.store = store;
+        this.alarmList = new AlarmListUpdater(store);
         this.calendars = calendars;
     }
 
     public AlarmCore create(AlarmContainer container) {
-        return new AlarmCore(container, logger, alarmsScheduler, broadcaster, handlerFactory, prefs, store, calendars);
+        return new AlarmCore(container, logger, alarmsScheduler, broadcaster, handlerFactory, prefs, store, alarmList, calendars);
+    }
+
+    /**
+     * Creates an AlarmCore which handles its messages on this queue of the
+     * {@link HandlerFactory}. It is not resumed, {@link AlarmCore#restore()}
+     * has to be called on the thread of the queue.
+     */
+    AlarmCore createForRestore(AlarmContainer container, int queue) {
+        return new AlarmCore(container, logger, alarmsScheduler, broadcaster, handlerFactory.onQueue(queue), prefs, store, alarmList, calendars, false);
+    }
+
+    /**
+     * @return number of queues to which loaded AlarmCores can be distributed
+     */
+    int getQueueCount() {
+        return handlerFactory.getQueueCount();
+    }
+
+    /**
+     * Restores the AlarmCores which were created for this queue with one
+     * message at the front of the queue instead of one message per AlarmCore
+     */
+    void restore(final List<AlarmCore> alarmCores, int queue) {
+        handlerFactory.onQueue(queue).create(new MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                for (AlarmCore alarmCore : alarmCores) {
+                    alarmCore.restore();
+                }
+            }
+        }).obtainMessage(RESTORE).sendAtFront();
+    }
+
+    /**
+     * @return updater shared by all created {@link AlarmCore}s
+     */
+    AlarmListUpdater alarmList() {
+        return alarmList;
     }
 }
@@ -0,0 +1,84 @@
+package com.igbt6.lovelyclock.model;
+
+import com.igbt6.lovelyclock.configuration.Store;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes changes of alarms to {@link Store#alarmsSubject()}. Each publish
+ * copies the whole list, so changes made between {@link #beginBatch()} and
+ * {@link #commit()} are published with one copy.
+ * <p>
+ * Thread safe, AlarmCores can run on different threads. The list is
+ * published while the lock is held, so it is published by one thread at a
+ * time.
+ */
+public class AlarmListUpdater {
+    private final Store store;
+    /** id to the new value or absent if the alarm was removed, in order of the first change */
+    private final Map<Integer, Optional<AlarmValue>> pending = new LinkedHashMap<Integer, Optional<AlarmValue>>();
+    private int batchDepth;
+
+    public AlarmListUpdater(Store store) {
+        this.store = store;
+    }
+
+    /**
+     * Replaces the alarm with the same id or adds it to the end of the list
+     */
+    public synchronized void put(AlarmValue alarm) {
+        pending.put(alarm.getId(), Optional.of(alarm));
+        publishIfNotInBatch();
+    }
+
+    public synchronized void remove(int id) {
+        pending.put(id, Optional.<AlarmValue>absent());
+        publishIfNotInBatch();
+    }
+
+    /**
+     * Starts a batch. Batches can be nested, changes are published when the
+     * outermost batch is committed.
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Commits the batch started with {@link #beginBatch()}
+     */
+    public synchronized void commit() {
+        Preconditions.checkState(batchDepth > 0, "commit() without beginBatch()");
+        batchDepth--;
+        publishIfNotInBatch();
+    }
+
+    private void publishIfNotInBatch() {
+        if (batchDepth > 0 || pending.isEmpty()) return;
+
+        List<AlarmValue> current = store.alarmsSubject().getValue();
+        List<AlarmValue> copy = new ArrayList<AlarmValue>(current.size() + pending.size());
+        for (AlarmValue alarm : current) {
+            Optional<AlarmValue> change = pending.remove(alarm.getId());
+            if (change == null) {
+                copy.add(alarm);
+            } else if (change.isPresent()) {
+                copy.add(change.get());
+            }
+        }
+        // what is left was not in the list yet
+        for (Optional<AlarmValue> added : pending.values()) {
+            if (added.isPresent()) {
+                copy.add(added.get());
+            }
+        }
+        pending.clear();
+
+        store.alarmsSubject().onNext(copy);
+    }
+}
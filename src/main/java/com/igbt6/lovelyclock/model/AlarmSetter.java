@@ -9,6 +9,9 @@ import android.os.Build;
 
 import com.igbt6.lovelyclock.logger.Logger;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Created by Yuriy on 24.06.2017.
  */
@@ -17,13 +20,26 @@ public interface AlarmSetter {
     String ACTION_FIRED = AlarmsScheduler.ACTION_FIRED;
     String EXTRA_ID = AlarmsScheduler.EXTRA_ID;
     String EXTRA_TYPE = AlarmsScheduler.EXTRA_TYPE;
+    String EXTRA_IDS = AlarmsScheduler.EXTRA_IDS;
+    String EXTRA_TYPES = AlarmsScheduler.EXTRA_TYPES;
 
     void removeRTCAlarm();
 
     void setUpRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm);
 
+    /**
+     * Sets up one RTC alarm for all given alarms. Alarms are sorted by time,
+     * the first one defines when the device wakes up.
+     */
+    void setUpRTCAlarm(List<AlarmsScheduler.ScheduledAlarm> alarms);
+
     void fireNow(AlarmsScheduler.ScheduledAlarm firedInThePastAlarm);
 
+    /**
+     * Fires all given alarms with one broadcast. Alarms are sorted by time.
+     */
+    void fireNow(List<AlarmsScheduler.ScheduledAlarm> firedInThePastAlarms);
+
     class AlarmSetterImpl implements AlarmSetter {
         private final Context mContext;
         private AlarmManager am;
@@ -46,20 +62,49 @@ public interface AlarmSetter {
 
         @Override
         public void setUpRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm) {
-            log.d("Set " + alarm.toString());
-            Intent intent = new Intent(ACTION_FIRED);
-            intent.putExtra(EXTRA_ID, alarm.id);
-            intent.putExtra(EXTRA_TYPE, alarm.type.name());
+            setUpRTCAlarm(Collections.singletonList(alarm));
+        }
+
+        @Override
+        public void setUpRTCAlarm(List<AlarmsScheduler.ScheduledAlarm> alarms) {
+            log.d("Set " + alarms.toString());
+            Intent intent = createFiredIntent(alarms);
             PendingIntent sender = PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-            setAlarmStrategy.setRTCAlarm(alarm, sender);
+            setAlarmStrategy.setRTCAlarm(alarms.get(0), sender);
         }
 
         @Override
         public void fireNow(AlarmsScheduler.ScheduledAlarm firedInThePastAlarm) {
+            fireNow(Collections.singletonList(firedInThePastAlarm));
+        }
+
+        @Override
+        public void fireNow(List<AlarmsScheduler.ScheduledAlarm> firedInThePastAlarms) {
+            log.d("Fire now " + firedInThePastAlarms.toString());
+            mContext.sendBroadcast(createFiredIntent(firedInThePastAlarms));
+        }
+
+        /**
+         * {@link #EXTRA_ID} and {@link #EXTRA_TYPE} contain the first alarm,
+         * {@link #EXTRA_IDS} and {@link #EXTRA_TYPES} (ordinals of
+         * {@link CalendarType}) contain all alarms if there is more than one.
+         */
+        private Intent createFiredIntent(List<AlarmsScheduler.ScheduledAlarm> alarms) {
+            AlarmsScheduler.ScheduledAlarm first = alarms.get(0);
             Intent intent = new Intent(ACTION_FIRED);
-            intent.putExtra(EXTRA_ID, firedInThePastAlarm.id);
-            intent.putExtra(EXTRA_TYPE, firedInThePastAlarm.type.name());
-            mContext.sendBroadcast(intent);
+            intent.putExtra(EXTRA_ID, first.id);
+            intent.putExtra(EXTRA_TYPE, first.type.name());
+            if (alarms.size() > 1) {
+                int[] ids = new int[alarms.size()];
+                int[] types = new int[alarms.size()];
+                for (int i = 0; i < alarms.size(); i++) {
+                    ids[i] = alarms.get(i).id;
+                    types[i] = alarms.get(i).type.ordinal();
+                }
+                intent.putExtra(EXTRA_IDS, ids);
+                intent.putExtra(EXTRA_TYPES, types);
+            }
+            return intent;
         }
 
         private ISetAlarmStrategy initSetStrategyForVersion() {
@@ -72,7 +117,7 @@ public interface AlarmSetter {
         private final class IceCreamSetter implements ISetAlarmStrategy {
             @Override
             public void setRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm, PendingIntent sender) {
-                am.set(AlarmManager.RTC_WAKEUP, alarm.calendar.getTimeInMillis(), sender);
+                am.set(AlarmManager.RTC_WAKEUP, alarm.millis, sender);
             }
         }
 
@@ -80,7 +125,7 @@ public interface AlarmSetter {
         private final class KitKatSetter implements ISetAlarmStrategy {
             @Override
             public void setRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm, PendingIntent sender) {
-                am.setExact(AlarmManager.RTC_WAKEUP, alarm.calendar.getTimeInMillis(), sender);
+                am.setExact(AlarmManager.RTC_WAKEUP, alarm.millis, sender);
             }
         }
 
@@ -91,9 +136,9 @@ public interface AlarmSetter {
                 try {
                     am.getClass()
                             .getMethod("setExactAndAllowWhileIdle", int.class, long.class, PendingIntent.class)
-                            .invoke(am, AlarmManager.RTC_WAKEUP, alarm.calendar.getTimeInMillis(), sender);
+                            .invoke(am, AlarmManager.RTC_WAKEUP, alarm.millis, sender);
                 } catch (ReflectiveOperationException e) {
-                    am.setExact(AlarmManager.RTC_WAKEUP, alarm.calendar.getTimeInMillis(), sender);
+                    am.setExact(AlarmManager.RTC_WAKEUP, alarm.millis, sender);
                 }
             }
         }
@@ -19,58 +19,309 @@ import android.annotation.SuppressLint;
 
 import com.igbt6.lovelyclock.interfaces.Alarm;
 import com.igbt6.lovelyclock.interfaces.IAlarmsManager;
+import com.igbt6.lovelyclock.interfaces.ImmutableAlarmEditor;
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.persistance.AlarmSetFormat;
 import com.igbt6.lovelyclock.persistance.DatabaseQuery;
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.IHandler;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Single;
 import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.SingleSubject;
 
 /**
  * The Alarms implements application domain logic
+ * <p>
+ * Thread safe, alarms can be created and looked up on the main thread while
+ * the AlarmCores and the batches run on the threads of the
+ * {@link HandlerFactory}.
  */
 @SuppressLint("UseSparseArrays")
 public class Alarms implements IAlarmsManager {
+    private static final int COMMIT_BATCH = 1;
+    private static final int IMPORT_BATCH = 2;
+    /** alarms which are imported, written and scheduled together */
+    private static final int IMPORT_BATCH_SIZE = 500;
+
     private final IAlarmsScheduler mAlarmsScheduler;
 
     private final Map<Integer, AlarmCore> alarms;
     private DatabaseQuery query;
     private final AlarmCoreFactory factory;
     private final ContainerFactory containerFactory;
+    private final IHandler batchHandler;
+    /** work which waits until all alarms are loaded */
+    private final List<Runnable> whenReady = new ArrayList<Runnable>();
+    /** AlarmCores created by {@link #start()} per queue, until they are restored */
+    private final List<List<AlarmCore>> loaded = new ArrayList<List<AlarmCore>>();
+    private volatile boolean ready;
+    private long loadStartNanos;
+    private long firstAlarmMillis = -1;
+    private long loadMillis = -1;
 
-    public Alarms(IAlarmsScheduler alarmsScheduler, DatabaseQuery query, final AlarmCoreFactory factory, ContainerFactory containerFactory) {
+    public Alarms(IAlarmsScheduler alarmsScheduler, DatabaseQuery query, final AlarmCoreFactory factory, ContainerFactory containerFactory, HandlerFactory handlerFactory) {
         this.mAlarmsScheduler = alarmsScheduler;
         this.query = query;
         this.factory = factory;
         this.containerFactory = containerFactory;
-        this.alarms = new HashMap<Integer, AlarmCore>();
+        this.alarms = new ConcurrentHashMap<Integer, AlarmCore>();
+        // batches are committed after the messages sent to the AlarmCores
+        this.batchHandler = handlerFactory.createBarrier(new MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what()) {
+                    case COMMIT_BATCH:
+                        commitBatch();
+                        break;
+                    case IMPORT_BATCH:
+                        importBatch((Import) msg.obj().get());
+                        break;
+                }
+            }
+        });
     }
 
+    /**
+     * Loads the alarms from the database. AlarmCores are created while the
+     * rows are read, enabled alarms first, and distributed over the queues of
+     * the {@link HandlerFactory}. When all are loaded, they are restored from
+     * their checkpoints with one message per queue, all of them in one batch.
+     * Use {@link #whenReady(Runnable)} for work which needs the alarms.
+     */
     public void start() {
-        query.query().subscribe(new Consumer<List<AlarmContainer>>() {
+        loadStartNanos = System.nanoTime();
+        beginBatch();
+        for (int i = 0; i < factory.getQueueCount(); i++) {
+            loaded.add(new ArrayList<AlarmCore>());
+        }
+        query.stream().subscribe(new Consumer<AlarmContainer>() {
             @Override
-            public void accept(@NonNull List<AlarmContainer> alarmContainers) throws Exception {
-                for (AlarmContainer container : alarmContainers) {
-                    final AlarmCore a = factory.create(container);
-                    alarms.put(a.getId(), a);
-                    //TODO a.refresh();, but with a delay or something. We do not want to refresh the alarms that have just fired, right?
+            public void accept(@NonNull AlarmContainer container) throws Exception {
+                int queue = alarms.size() % loaded.size();
+                final AlarmCore a = factory.createForRestore(container, queue);
+                loaded.get(queue).add(a);
+                alarms.put(a.getId(), a);
+                if (firstAlarmMillis == -1) {
+                    firstAlarmMillis = millisSinceLoadStart();
                 }
+                //TODO a.refresh();, but with a delay or something. We do not want to refresh the alarms that have just fired, right?
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(@NonNull Throwable throwable) throws Exception {
+                Logger.getDefaultLogger().e("Loading alarms failed", throwable);
+                onLoaded();
+            }
+        }, new Action() {
+            @Override
+            public void run() throws Exception {
+                onLoaded();
             }
         });
     }
 
+    private void onLoaded() {
+        for (int queue = 0; queue < loaded.size(); queue++) {
+            if (!loaded.get(queue).isEmpty()) {
+                factory.restore(loaded.get(queue), queue);
+            }
+        }
+        loaded.clear();
+        // committed after the AlarmCores have been restored
+        commitBatchAfterQueuedMessages();
+        loadMillis = millisSinceLoadStart();
+        Logger.getDefaultLogger().d("Loaded " + alarms.size() + " alarms in " + loadMillis
+                + " ms, first one after " + firstAlarmMillis + " ms");
+        List<Runnable> queued;
+        synchronized (whenReady) {
+            ready = true;
+            queued = new ArrayList<Runnable>(whenReady);
+            whenReady.clear();
+        }
+        for (Runnable runnable : queued) {
+            runnable.run();
+        }
+    }
+
+    private long millisSinceLoadStart() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStartNanos);
+    }
+
+    /**
+     * @return true if all alarms are loaded
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Runs the runnable now if all alarms are loaded or once they are.
+     */
+    public void whenReady(Runnable runnable) {
+        synchronized (whenReady) {
+            if (!ready) {
+                whenReady.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    /**
+     * @return how long it took to load all alarms or -1 if they are not loaded yet
+     */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    /**
+     * @return how many idempotent messages were coalesced by the AlarmCores
+     */
+    public int getCoalescedMessageCount() {
+        int count = 0;
+        for (AlarmCore alarmCore : alarms.values()) {
+            count += alarmCore.getCoalescedMessageCount();
+        }
+        return count;
+    }
+
     public void refresh() {
+        beginBatch();
         for (AlarmCore alarmCore : alarms.values()) {
             alarmCore.refresh();
         }
+        commitBatchAfterQueuedMessages();
     }
 
     public void onTimeSet() {
+        beginBatch();
         for (AlarmCore alarmCore : alarms.values()) {
             alarmCore.onTimeSet();
         }
+        commitBatchAfterQueuedMessages();
+    }
+
+    /**
+     * Starts a batch in the scheduler, the list in the store and the
+     * persistence. Scheduler and store are updated and changes are written
+     * once for all alarms in the batch.
+     */
+    private void beginBatch() {
+        mAlarmsScheduler.beginBatch();
+        factory.alarmList().beginBatch();
+        containerFactory.beginBatch();
+    }
+
+    private void commitBatch() {
+        containerFactory.commitBatch();
+        factory.alarmList().commit();
+        mAlarmsScheduler.commit();
+    }
+
+    /**
+     * AlarmCores process messages asynchronously, so the batch is committed
+     * with a barrier message which is handled after the messages sent to
+     * them.
+     */
+    private void commitBatchAfterQueuedMessages() {
+        batchHandler.obtainMessage(COMMIT_BATCH).send();
+    }
+
+    /**
+     * State of an import, passed from batch to batch
+     */
+    private static class Import {
+        private final AlarmSetFormat.Reader reader;
+        private final SingleSubject<Integer> result = SingleSubject.create();
+        private int count;
+        private boolean finished;
+        private IOException error;
+
+        private Import(AlarmSetFormat.Reader reader) {
+            this.reader = reader;
+        }
+    }
+
+    @Override
+    public Single<Integer> importAlarms(InputStream in) {
+        final Import anImport = new Import(new AlarmSetFormat.Reader(in));
+        whenReady(new Runnable() {
+            @Override
+            public void run() {
+                batchHandler.obtainMessage(IMPORT_BATCH, anImport).send();
+            }
+        });
+        return anImport.result;
+    }
+
+    /**
+     * Reads and creates up to {@link #IMPORT_BATCH_SIZE} alarms and queues
+     * the next batch after the commit of this one, so that only one batch is
+     * in memory at a time.
+     */
+    private void importBatch(Import anImport) {
+        if (anImport.finished) {
+            finishImport(anImport);
+            return;
+        }
+
+        beginBatch();
+        try {
+            for (int i = 0; i < IMPORT_BATCH_SIZE && !anImport.finished; i++) {
+                ImmutableAlarmEditor data = anImport.reader.read();
+                if (data == null) {
+                    anImport.finished = true;
+                } else {
+                    AlarmCore alarm = factory.create(containerFactory.create());
+                    alarms.put(alarm.getId(), alarm);
+                    data.withId(alarm.getId()).withCallback(alarm).commit();
+                    anImport.count++;
+                }
+            }
+        } catch (IOException e) {
+            anImport.error = e;
+            anImport.finished = true;
+        }
+        commitBatchAfterQueuedMessages();
+        batchHandler.obtainMessage(IMPORT_BATCH, anImport).send();
+    }
+
+    private void finishImport(Import anImport) {
+        try {
+            anImport.reader.close();
+        } catch (IOException e) {
+            Logger.getDefaultLogger().w("Closing the imported stream failed: " + e.getMessage());
+        }
+        if (anImport.error != null) {
+            Logger.getDefaultLogger().e("Import failed after " + anImport.count + " alarms", anImport.error);
+            anImport.result.onError(anImport.error);
+        } else {
+            Logger.getDefaultLogger().d("Imported " + anImport.count + " alarms");
+            anImport.result.onSuccess(anImport.count);
+        }
+    }
+
+    @Override
+    public void exportAlarms(OutputStream out) throws IOException {
+        AlarmSetFormat.Writer writer = new AlarmSetFormat.Writer(out);
+        for (AlarmCore alarm : alarms.values()) {
+            writer.write(alarm.edit());
+        }
+        writer.flush();
     }
 
     @Override
@@ -105,6 +356,22 @@ public class Alarms implements IAlarmsManager {
         alarm.onAlarmFired(calendarType);
     }
 
+    /**
+     * Dispatches alarms which were delivered together, e.g. with one RTC
+     * wakeup. The scheduler is updated once for all of them.
+     */
+    public void onAlarmsFired(int[] ids, CalendarType[] calendarTypes) {
+        beginBatch();
+        for (int i = 0; i < ids.length; i++) {
+            AlarmCore alarm = alarms.get(ids[i]);
+            // alarm could have been deleted in the meantime
+            if (alarm != null) {
+                onAlarmFired(alarm, calendarTypes[i]);
+            }
+        }
+        commitBatchAfterQueuedMessages();
+    }
+
     @Override
     public void enable(AlarmValue alarm, boolean enable) {
         alarms.get(alarm.getId()).enable(enable);
@@ -21,55 +21,107 @@ import com.igbt6.lovelyclock.configuration.Prefs;
 import com.igbt6.lovelyclock.configuration.Store;
 import com.igbt6.lovelyclock.logger.Logger;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 
-import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.PriorityQueue;
-
-import io.reactivex.Maybe;
-import io.reactivex.Observable;
-import io.reactivex.annotations.NonNull;
-import io.reactivex.functions.Consumer;
-import io.reactivex.functions.Function;
-import io.reactivex.functions.Predicate;
 
+/**
+ * Keeps the scheduled alarms of all AlarmCores, programs the RTC alarm and
+ * publishes {@link Store#next()}.
+ * <p>
+ * Thread safe, AlarmCores on different threads schedule their alarms while
+ * batches are started and committed by {@link Alarms}. Store is published
+ * while the lock is held, so it is published by one thread at a time.
+ */
 public class AlarmsScheduler implements IAlarmsScheduler {
     public static final String ACTION_FIRED = BuildConfig.APPLICATION_ID + ".ACTION_FIRED";
     public static final String EXTRA_ID = "intent.extra.alarm";
     public static final String EXTRA_TYPE = "intent.extra.type";
+    public static final String EXTRA_IDS = "intent.extra.alarms";
+    public static final String EXTRA_TYPES = "intent.extra.types";
+
+    /** Sorts by time, alarms with the same time are sorted by id */
+    private static final Comparator<ScheduledAlarm> DEADLINE_ORDER = new Comparator<ScheduledAlarm>() {
+        @Override
+        public int compare(ScheduledAlarm lhs, ScheduledAlarm rhs) {
+            int byTime = lhs.compareTo(rhs);
+            return byTime != 0 ? byTime : (lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1));
+        }
+    };
 
     private final Store store;
     private final Prefs prefs;
 
     private final AlarmSetter setter;
-    private final PriorityQueue<ScheduledAlarm> queue;
+    private final ScheduledAlarmQueue queue;
+    /** Same alarms as in {@link #queue} except for {@link CalendarType#AUTOSILENCE} */
+    private final ScheduledAlarmQueue normalQueue;
+    /** Alarm which was last published to {@link Store#next()} */
+    private ScheduledAlarm publishedNext;
+    private int nextRecomputedCount;
+    private int nextSkippedCount;
+    /** Nesting depth of {@link #beginBatch()} */
+    private int batchDepth;
+    /** Head of the {@link #queue} when the batch was started */
+    private ScheduledAlarm batchPreviousHead;
+    /** Alarms which are currently programmed in the AlarmManager */
+    private List<ScheduledAlarm> programmedAlarms = Collections.emptyList();
+    private int issuedRtcCount;
+    private int suppressedRtcCount;
     private final Logger log;
     private final Calendars calendars;
+    private long coalescingWindowMillis;
+
+    /**
+     * Data structure which keeps scheduled alarms ordered by time
+     */
+    public enum QueueType {
+        /** Binary heap, good for the number of alarms a user has */
+        HEAP {
+            @Override
+            ScheduledAlarmQueue create() {
+                return new ScheduledAlarmHeap();
+            }
+        },
+        /**
+         * Hierarchical timing wheel with O(1) set and remove, good for hundreds
+         * of thousands of alarms which are constantly rescheduled
+         */
+        TIMING_WHEEL {
+            @Override
+            ScheduledAlarmQueue create() {
+                return new ScheduledAlarmTimingWheel();
+            }
+        };
+
+        abstract ScheduledAlarmQueue create();
+    }
 
     public class ScheduledAlarm implements Comparable<ScheduledAlarm> {
         public final int id;
-        public final Calendar calendar;
+        /** time in milliseconds since epoch */
+        public final long millis;
         public final CalendarType type;
-        private final DateFormat df;
         private final Optional<AlarmValue> alarmValue;
 
-        public ScheduledAlarm(int id, Calendar calendar, CalendarType type, AlarmValue alarmValue) {
+        public ScheduledAlarm(int id, long millis, CalendarType type, AlarmValue alarmValue) {
             this.id = id;
-            this.calendar = calendar;
+            this.millis = millis;
             this.type = type;
             this.alarmValue = Optional.of(alarmValue);
-            this.df = new SimpleDateFormat("dd-MM-yy HH:mm:ss", Locale.GERMANY);
         }
 
         public ScheduledAlarm(int id) {
             this.id = id;
-            this.calendar = null;
+            this.millis = 0;
             this.type = null;
             this.alarmValue = Optional.absent();
-            this.df = new SimpleDateFormat("dd-MM-yy HH:mm:ss", Locale.GERMANY);
         }
 
         @Override
@@ -79,7 +131,7 @@ public class AlarmsScheduler implements IAlarmsScheduler {
 
         @Override
         public int compareTo(ScheduledAlarm another) {
-            return this.calendar.compareTo(another.calendar);
+            return millis < another.millis ? -1 : (millis == another.millis ? 0 : 1);
         }
 
         @Override
@@ -87,80 +139,200 @@ public class AlarmsScheduler implements IAlarmsScheduler {
             StringBuilder sb = new StringBuilder();
             sb.append(id).append(" ");
             sb.append(type != null ? type.toString() : "null").append(" ");
-            sb.append("on ").append(calendar != null ? df.format(calendar.getTime()) : "null");
+            sb.append("on ").append(type != null ? new SimpleDateFormat("dd-MM-yy HH:mm:ss", Locale.GERMANY).format(new Date(millis)) : "null");
             return sb.toString();
         }
     }
 
     public AlarmsScheduler(AlarmSetter setter, Logger logger, Store store, Prefs prefs, Calendars calendars) {
+        this(setter, logger, store, prefs, calendars, 0);
+    }
+
+    /**
+     * @param coalescingWindowMillis alarms which are due within this window after
+     *                               the next alarm are delivered with the same
+     *                               RTC wakeup. With 0 only alarms set for
+     *                               exactly the same time are coalesced.
+     */
+    public AlarmsScheduler(AlarmSetter setter, Logger logger, Store store, Prefs prefs, Calendars calendars, long coalescingWindowMillis) {
+        this(setter, logger, store, prefs, calendars, coalescingWindowMillis, QueueType.HEAP);
+    }
+
+    public AlarmsScheduler(AlarmSetter setter, Logger logger, Store store, Prefs prefs, Calendars calendars, long coalescingWindowMillis, QueueType queueType) {
         this.setter = setter;
         this.store = store;
         this.prefs = prefs;
-        queue = new PriorityQueue<ScheduledAlarm>();
+        queue = queueType.create();
+        normalQueue = queueType.create();
         this.log = logger;
         this.calendars = calendars;
+        this.coalescingWindowMillis = coalescingWindowMillis;
+    }
+
+    /**
+     * Changes the coalescing window, see
+     * {@link #AlarmsScheduler(AlarmSetter, Logger, Store, Prefs, Calendars, long)}.
+     * Alarms in the window are fired up to the window too early, 0 fires every
+     * alarm at its own time. The RTC alarm is reprogrammed if needed.
+     */
+    public synchronized void setCoalescingWindow(long coalescingWindowMillis) {
+        Preconditions.checkArgument(coalescingWindowMillis >= 0, "Negative window %s", coalescingWindowMillis);
+        if (this.coalescingWindowMillis == coalescingWindowMillis) return;
+        this.coalescingWindowMillis = coalescingWindowMillis;
+        ScheduledAlarm head = queue.peek();
+        if (batchDepth == 0 && head != null) {
+            setUpRTCAlarm(findAlarmsInCoalescingWindow(head), false);
+        }
     }
 
     @Override
-    public void setAlarm(int id, CalendarType type, Calendar calendar, AlarmValue alarmValue) {
-        ScheduledAlarm scheduledAlarm = new ScheduledAlarm(id, calendar, type, alarmValue);
+    public synchronized void setAlarm(int id, CalendarType type, long millis, AlarmValue alarmValue) {
+        ScheduledAlarm scheduledAlarm = new ScheduledAlarm(id, millis, type, alarmValue);
         replaceAlarm(scheduledAlarm, true);
     }
 
     @Override
-    public void removeAlarm(int id) {
+    public synchronized void removeAlarm(int id) {
         replaceAlarm(new ScheduledAlarm(id), false);
     }
 
     @Override
-    public void onAlarmFired(int id) {
+    public synchronized void onAlarmFired(int id) {
+        for (ScheduledAlarm programmedAlarm : programmedAlarms) {
+            if (programmedAlarm.id == id) {
+                // pending intent was delivered, it has to be set again
+                programmedAlarms = Collections.emptyList();
+                break;
+            }
+        }
         replaceAlarm(new ScheduledAlarm(id), false);
     }
 
     private void replaceAlarm(ScheduledAlarm newAlarm, boolean add) {
         ScheduledAlarm previousHead = queue.peek();
 
-        // remove if we have already an alarm
-        for (Iterator<ScheduledAlarm> iterator = queue.iterator(); iterator.hasNext(); ) {
-            ScheduledAlarm presentAlarm = iterator.next();
-            if (presentAlarm.id == newAlarm.id) {
-                iterator.remove();
-                log.d(presentAlarm.id + " was removed");
-            }
+        // replace or remove if we have already an alarm
+        ScheduledAlarm presentAlarm = add ? queue.put(newAlarm) : queue.remove(newAlarm.id);
+        if (presentAlarm != null) {
+            log.d(presentAlarm.id + " was removed");
         }
 
-        if (add) {
-            queue.add(newAlarm);
+        if (add && newAlarm.type != CalendarType.AUTOSILENCE) {
+            normalQueue.put(newAlarm);
+        } else {
+            normalQueue.remove(newAlarm.id);
         }
 
+        if (batchDepth == 0) {
+            onQueueChanged(previousHead);
+        }
+    }
+
+    @Override
+    public synchronized void beginBatch() {
+        if (batchDepth++ == 0) {
+            batchPreviousHead = queue.peek();
+        }
+    }
+
+    @Override
+    public synchronized void commit() {
+        Preconditions.checkState(batchDepth > 0, "commit() without beginBatch()");
+        if (--batchDepth == 0) {
+            ScheduledAlarm previousHead = batchPreviousHead;
+            batchPreviousHead = null;
+            onQueueChanged(previousHead);
+        }
+    }
+
+    private void onQueueChanged(ScheduledAlarm previousHead) {
         fireAlarmsInThePast();
 
         ScheduledAlarm currentHead = queue.peek();
-        // compare by reference!
-        if (previousHead != currentHead) {
-            if (!queue.isEmpty()) {
-                setter.setUpRTCAlarm(currentHead);
-            } else {
-                log.d("no more alarms to schedule, remove pending intent");
-                setter.removeRTCAlarm();
+        if (currentHead != null) {
+            // compare by reference!
+            setUpRTCAlarm(findAlarmsInCoalescingWindow(currentHead), previousHead != currentHead);
+        } else if (previousHead != null) {
+            log.d("no more alarms to schedule, remove pending intent");
+            setter.removeRTCAlarm();
+            programmedAlarms = Collections.emptyList();
+        }
+        notifyListeners();
+    }
+
+    private List<ScheduledAlarm> findAlarmsInCoalescingWindow(ScheduledAlarm head) {
+        List<ScheduledAlarm> alarms = new ArrayList<ScheduledAlarm>(1);
+        queue.collectNotLaterThan(head.millis + coalescingWindowMillis, alarms);
+        Collections.sort(alarms, DEADLINE_ORDER);
+        return alarms;
+    }
+
+    /**
+     * A new {@link ScheduledAlarm} is created every time an alarm is set, even
+     * if the time did not change. AlarmManager is only reprogrammed if the
+     * alarms differ from the ones which are already programmed.
+     */
+    private void setUpRTCAlarm(List<ScheduledAlarm> alarms, boolean headChanged) {
+        if (isProgrammed(alarms)) {
+            if (headChanged) {
+                suppressedRtcCount++;
             }
-            notifyListeners();
+            return;
+        }
+
+        if (alarms.size() == 1) {
+            setter.setUpRTCAlarm(alarms.get(0));
+        } else {
+            setter.setUpRTCAlarm(alarms);
         }
+        issuedRtcCount++;
+        programmedAlarms = alarms;
+    }
+
+    private boolean isProgrammed(List<ScheduledAlarm> alarms) {
+        if (alarms.size() != programmedAlarms.size()) {
+            return false;
+        }
+        for (int i = 0; i < alarms.size(); i++) {
+            ScheduledAlarm alarm = alarms.get(i);
+            ScheduledAlarm programmed = programmedAlarms.get(i);
+            if (alarm.id != programmed.id
+                    || alarm.type != programmed.type
+                    || alarm.millis != programmed.millis) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * If two alarms were set for the same time, then the second alarm will be
      * processed in the past. In this case we remove it from the queue and fire
-     * it.
+     * it. After a reboot or a long doze many alarms can be in the past, all of
+     * them are fired with one broadcast.
      */
 
     private void fireAlarmsInThePast() {
-        Calendar now = calendars.now();
-        while (!queue.isEmpty() && queue.peek().calendar.before(now)) {
+        long now = calendars.now().getTimeInMillis();
+        List<ScheduledAlarm> firedInThePastAlarms = null;
+        while (!queue.isEmpty() && queue.peek().millis < now) {
             // remove happens in fire
             ScheduledAlarm firedInThePastAlarm = queue.poll();
+            normalQueue.remove(firedInThePastAlarm.id);
             log.d("In the past - " + firedInThePastAlarm.toString());
-            setter.fireNow(firedInThePastAlarm);
+            if (firedInThePastAlarms == null) {
+                firedInThePastAlarms = new ArrayList<ScheduledAlarm>(1);
+            }
+            firedInThePastAlarms.add(firedInThePastAlarm);
+        }
+
+        if (firedInThePastAlarms == null) {
+            return;
+        } else if (firedInThePastAlarms.size() == 1) {
+            setter.fireNow(firedInThePastAlarms.get(0));
+        } else {
+            Collections.sort(firedInThePastAlarms, DEADLINE_ORDER);
+            setter.fireNow(firedInThePastAlarms);
         }
     }
 
@@ -172,42 +344,61 @@ public class AlarmsScheduler implements IAlarmsScheduler {
      * rest.
      */
     private void notifyListeners() {
-        findNextNormalAlarm()
-                .map(new Function<ScheduledAlarm, Optional<Store.Next>>() {
-                    @Override
-                    public Optional<Store.Next> apply(@NonNull ScheduledAlarm scheduledAlarm) throws Exception {
-                        boolean isPrealarm = scheduledAlarm.type == CalendarType.PREALARM;
-                        return Optional.of((Store.Next) ImmutableNext.builder()
-                                .alarm(scheduledAlarm.alarmValue.get())
-                                .isPrealarm(isPrealarm)
-                                .nextNonPrealarmTime(isPrealarm ? findNormalTime(scheduledAlarm) : scheduledAlarm.calendar.getTimeInMillis())
-                                .build());
-                    }
-
-                    private long findNormalTime(ScheduledAlarm scheduledAlarm) {
-                        // we can only assume that the real one will be a little later,
-                        // namely:
-                        int prealarmOffsetInMillis = prefs.preAlarmDuration().blockingFirst() * 60 * 1000;
-                        return scheduledAlarm.calendar.getTimeInMillis() + prealarmOffsetInMillis;
-                    }
-                })
-                .defaultIfEmpty(Optional.<Store.Next>absent())
-                .subscribe(new Consumer<Optional<Store.Next>>() {
-                    @Override
-                    public void accept(@NonNull Optional<Store.Next> nextOptional) throws Exception {
-                        store.next().onNext(nextOptional);
-                    }
-                });
-    }
-
-    private Maybe<ScheduledAlarm> findNextNormalAlarm() {
-        return Observable.fromIterable(queue)
-                .sorted()
-                .filter(new Predicate<ScheduledAlarm>() {
-                    @Override
-                    public boolean test(@NonNull ScheduledAlarm scheduledAlarm) throws Exception {
-                        return scheduledAlarm.type != CalendarType.AUTOSILENCE;
-                    }
-                }).firstElement();
+        ScheduledAlarm nextNormalAlarm = normalQueue.peek();
+        // compare by reference!
+        if (nextNormalAlarm == publishedNext) {
+            nextSkippedCount++;
+            return;
+        }
+
+        nextRecomputedCount++;
+        publishedNext = nextNormalAlarm;
+        if (nextNormalAlarm == null) {
+            store.next().onNext(Optional.<Store.Next>absent());
+        } else {
+            boolean isPrealarm = nextNormalAlarm.type == CalendarType.PREALARM;
+            store.next().onNext(Optional.<Store.Next>of(ImmutableNext.builder()
+                    .alarm(nextNormalAlarm.alarmValue.get())
+                    .isPrealarm(isPrealarm)
+                    .nextNonPrealarmTime(isPrealarm ? findNormalTime(nextNormalAlarm) : nextNormalAlarm.millis)
+                    .build()));
+        }
+    }
+
+    private long findNormalTime(ScheduledAlarm scheduledAlarm) {
+        // we can only assume that the real one will be a little later,
+        // namely:
+        int prealarmOffsetInMillis = prefs.preAlarmDuration().blockingFirst() * 60 * 1000;
+        return scheduledAlarm.millis + prealarmOffsetInMillis;
+    }
+
+    /**
+     * @return how many times {@link Store#next()} was published
+     */
+    public synchronized int getNextRecomputedCount() {
+        return nextRecomputedCount;
+    }
+
+    /**
+     * @return how many times publishing {@link Store#next()} was skipped
+     * because the next normal alarm did not change
+     */
+    public synchronized int getNextSkippedCount() {
+        return nextSkippedCount;
+    }
+
+    /**
+     * @return how many times AlarmManager was programmed
+     */
+    public synchronized int getIssuedRtcCount() {
+        return issuedRtcCount;
+    }
+
+    /**
+     * @return how many times programming AlarmManager was skipped because
+     * the same alarm was already programmed
+     */
+    public synchronized int getSuppressedRtcCount() {
+        return suppressedRtcCount;
     }
 }
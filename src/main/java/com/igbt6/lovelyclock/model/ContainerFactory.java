@@ -10,4 +10,16 @@ public interface ContainerFactory {
     AlarmContainer create();
 
     AlarmContainer create(Cursor cursor);
+
+    /**
+     * Starts a batch. Changes of containers are collected until
+     * {@link #commitBatch()} and then written together. Batches can be
+     * nested.
+     */
+    void beginBatch();
+
+    /**
+     * Commits the batch started with {@link #beginBatch()}
+     */
+    void commitBatch();
 }
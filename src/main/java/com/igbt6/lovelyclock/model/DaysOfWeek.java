@@ -8,6 +8,7 @@ import org.immutables.value.Value;
 
 import java.text.DateFormatSymbols;
 import java.util.Calendar;
+import java.util.Locale;
 
 /*
  * Days of week code as a single int. 0x00: no day 0x01: Monday 0x02:
@@ -20,41 +21,90 @@ public abstract class DaysOfWeek {
     private static final int[] DAY_MAP = new int[]{Calendar.MONDAY, Calendar.TUESDAY, Calendar.WEDNESDAY,
             Calendar.THURSDAY, Calendar.FRIDAY, Calendar.SATURDAY, Calendar.SUNDAY,};
 
-    public String toString(Context context, boolean showNever) {
-        StringBuilder ret = new StringBuilder();
-
-        // no days
-        if (getCoded() == 0) return showNever ? context.getText(R.string.never).toString() : "";
-
-        // every day
-        if (getCoded() == 0x7f) return context.getText(R.string.every_day).toString();
+    /**
+     * Number of days until the next alarm for each code and each day of week
+     * (0 is Monday)
+     */
+    private static final byte[][] NEXT_ALARM = createNextAlarmTable();
 
-        // count selected days
-        int dayCount = 0;
-        int days = getCoded();
+    /**
+     * Labels for the current locale, created on demand. Read and replaced by
+     * the threads of the AlarmCores and on locale changes, volatile publishes
+     * fully built labels.
+     */
+    private static volatile Labels labels;
 
-        while (days > 0) {
-            if ((days & 1) == 1) {
-                dayCount++;
+    /**
+     * Rendered labels for all 128 codes. Several days use the short form,
+     * a single day uses the long form.
+     */
+    private static final class Labels {
+        private final Locale locale;
+        private final String never;
+        private final String[] labels = new String[0x80];
+
+        private Labels(Context context, Locale locale) {
+            this.locale = locale;
+            this.never = context.getText(R.string.never).toString();
+
+            DateFormatSymbols dfs = new DateFormatSymbols(locale);
+            String[] shortWeekdays = dfs.getShortWeekdays();
+            String[] weekdays = dfs.getWeekdays();
+            String dayConcat = context.getText(R.string.day_concat).toString();
+
+            labels[0] = "";
+            for (int coded = 1; coded < 0x7f; coded++) {
+                int dayCount = Integer.bitCount(coded);
+                String[] dayList = dayCount > 1 ? shortWeekdays : weekdays;
+                StringBuilder ret = new StringBuilder();
+                for (int i = 0; i < 7; i++) {
+                    if ((coded & 1 << i) != 0) {
+                        ret.append(dayList[DAY_MAP[i]]);
+                        dayCount -= 1;
+                        if (dayCount > 0) {
+                            ret.append(dayConcat);
+                        }
+                    }
+                }
+                labels[coded] = ret.toString();
             }
-            days >>= 1;
+            labels[0x7f] = context.getText(R.string.every_day).toString();
         }
+    }
 
-        // short or long form?
-        DateFormatSymbols dfs = new DateFormatSymbols();
-        String[] dayList = dayCount > 1 ? dfs.getShortWeekdays() : dfs.getWeekdays();
-
-        // selected days
-        for (int i = 0; i < 7; i++) {
-            if ((getCoded() & 1 << i) != 0) {
-                ret.append(dayList[DAY_MAP[i]]);
-                dayCount -= 1;
-                if (dayCount > 0) {
-                    ret.append(context.getText(R.string.day_concat));
+    private static byte[][] createNextAlarmTable() {
+        byte[][] table = new byte[0x80][7];
+        for (int coded = 0; coded < 0x80; coded++) {
+            for (int today = 0; today < 7; today++) {
+                int dayCount = 0;
+                while (dayCount < 7 && (coded & 1 << (today + dayCount) % 7) == 0) {
+                    dayCount++;
                 }
+                table[coded][today] = (byte) dayCount;
             }
         }
-        return ret.toString();
+        return table;
+    }
+
+    /**
+     * Drops cached labels, must be called when the locale changes
+     */
+    public static void invalidateLabels() {
+        labels = null;
+    }
+
+    public String toString(Context context, boolean showNever) {
+        Locale locale = Locale.getDefault();
+        Labels current = labels;
+        if (current == null || !current.locale.equals(locale)) {
+            current = new Labels(context, locale);
+            labels = current;
+        }
+
+        // no days
+        if (getCoded() == 0) return showNever ? current.never : "";
+
+        return current.labels[getCoded()];
     }
 
     private boolean isSet(int day) {
@@ -85,18 +135,16 @@ public abstract class DaysOfWeek {
      * @param c must be set to today
      */
     public int getNextAlarm(Calendar c) {
-        if (getCoded() == 0) return -1;
-
-        int today = (c.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return getNextAlarm(getCoded(), (c.get(Calendar.DAY_OF_WEEK) + 5) % 7);
+    }
 
-        int day = 0;
-        int dayCount = 0;
-        for (; dayCount < 7; dayCount++) {
-            day = (today + dayCount) % 7;
-            if (isSet(day)) {
-                break;
-            }
-        }
-        return dayCount;
+    /**
+     * @param coded days of week
+     * @param today 0 is Monday, 6 is Sunday
+     * @return number of days from today until next alarm or -1 if no days are set
+     */
+    static int getNextAlarm(int coded, int today) {
+        if (coded == 0) return -1;
+        return NEXT_ALARM[coded][today];
     }
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package com.igbt6.lovelyclock.model;
+
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.IHandler;
+import com.igbt6.lovelyclock.statemachine.ImmutableMessage;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HandlerFactory} which handles messages on a background
+ * {@link Executor} instead of the main looper.
+ * <p>
+ * Handlers are distributed round robin over a fixed number of stripes. Each
+ * stripe is a mailbox which is drained by at most one task at a time, so
+ * messages of one handler are handled one after another and in order, like
+ * on a looper. Different stripes run in parallel on the threads of the
+ * executor. {@link IHandler#sendMessageAtFrontOfQueue(Message)} puts the
+ * message at the front of the mailbox of the stripe.
+ * <p>
+ * Messages of handlers created with {@link #createBarrier(MessageHandler)}
+ * first pass a marker through every stripe and are handled after the last
+ * stripe has reached it.
+ * <p>
+ * Thread safe, messages can be sent from any thread.
+ */
+public class ExecutorHandlerFactory implements HandlerFactory {
+    /** messages handled by one task before the stripe yields the thread */
+    private static final int MAX_MESSAGES_PER_TASK = 64;
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /** messages and markers which are queued or being handled */
+    private final Object idleLock = new Object();
+    private int inFlight;
+
+    /**
+     * Stripes run on a pool with a thread per stripe
+     */
+    public ExecutorHandlerFactory(int stripes) {
+        this(Executors.newFixedThreadPool(stripes, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "AlarmCore-" + count.incrementAndGet());
+            }
+        }), stripes);
+    }
+
+    /**
+     * @param executor runs the stripes, should have at least as many threads
+     *                 as there are stripes
+     * @param stripes  how many handlers can handle messages in parallel
+     */
+    public ExecutorHandlerFactory(Executor executor, int stripes) {
+        if (stripes < 1) throw new IllegalArgumentException("stripes must be at least 1, was " + stripes);
+        this.executor = executor;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public IHandler create(MessageHandler messageHandler) {
+        return new StripeHandler(nextStripe(), messageHandler);
+    }
+
+    @Override
+    public IHandler createBarrier(final MessageHandler messageHandler) {
+        final Stripe home = nextStripe();
+        return new StripeHandler(home, messageHandler) {
+            @Override
+            public void sendMessage(final Message message) {
+                final AtomicInteger remaining = new AtomicInteger(stripes.length);
+                Runnable marker = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remaining.decrementAndGet() == 0) {
+                            home.enqueue(deliver(message), false);
+                        }
+                    }
+                };
+                for (Stripe stripe : stripes) {
+                    stripe.enqueue(marker, false);
+                }
+            }
+
+            @Override
+            public void sendMessageAtFrontOfQueue(Message message) {
+                // a barrier can not overtake anything
+                sendMessage(message);
+            }
+        };
+    }
+
+    @Override
+    public int getQueueCount() {
+        return stripes.length;
+    }
+
+    @Override
+    public HandlerFactory onQueue(int queue) {
+        final Stripe stripe = stripes[Preconditions.checkElementIndex(queue, stripes.length)];
+        return new HandlerFactory() {
+            @Override
+            public IHandler create(MessageHandler messageHandler) {
+                return new StripeHandler(stripe, messageHandler);
+            }
+
+            @Override
+            public IHandler createBarrier(MessageHandler messageHandler) {
+                return ExecutorHandlerFactory.this.createBarrier(messageHandler);
+            }
+
+            @Override
+            public int getQueueCount() {
+                return 1;
+            }
+
+            @Override
+            public HandlerFactory onQueue(int queue) {
+                Preconditions.checkElementIndex(queue, 1);
+                return this;
+            }
+        };
+    }
+
+    /**
+     * Waits until all queued messages, including the ones they sent, were
+     * handled.
+     *
+     * @return true if idle, false if the timeout has elapsed
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (idleLock) {
+            while (inFlight > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(idleLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    private Stripe nextStripe() {
+        return stripes[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private void onEnqueued() {
+        synchronized (idleLock) {
+            inFlight++;
+        }
+    }
+
+    private void onHandled() {
+        synchronized (idleLock) {
+            if (--inFlight == 0) {
+                idleLock.notifyAll();
+            }
+        }
+    }
+
+    private class StripeHandler implements IHandler {
+        private final Stripe stripe;
+        private final MessageHandler messageHandler;
+
+        StripeHandler(Stripe stripe, MessageHandler messageHandler) {
+            this.stripe = stripe;
+            this.messageHandler = messageHandler;
+        }
+
+        @Override
+        public void sendMessageAtFrontOfQueue(Message message) {
+            stripe.enqueue(deliver(message), true);
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            stripe.enqueue(deliver(message), false);
+        }
+
+        @Override
+        public ImmutableMessage obtainMessage(int what, Object obj) {
+            return obtainMessage(what).withObj(obj);
+        }
+
+        @Override
+        public ImmutableMessage obtainMessage(int what) {
+            return ImmutableMessage.builder().what(what).handler(this).build();
+        }
+
+        Runnable deliver(final Message message) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    messageHandler.handleMessage(message);
+                }
+            };
+        }
+    }
+
+    /**
+     * Mailbox which is drained by at most one task at a time
+     */
+    private class Stripe implements Runnable {
+        private final ArrayDeque<Runnable> mailbox = new ArrayDeque<Runnable>();
+        /** true while a task is submitted or running */
+        private boolean scheduled;
+
+        void enqueue(Runnable runnable, boolean atFront) {
+            onEnqueued();
+            boolean schedule;
+            synchronized (this) {
+                if (atFront) {
+                    mailbox.addFirst(runnable);
+                } else {
+                    mailbox.addLast(runnable);
+                }
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean scheduledByThisTask = true;
+            try {
+                for (int i = 0; i < MAX_MESSAGES_PER_TASK; i++) {
+                    Runnable next;
+                    synchronized (this) {
+                        next = mailbox.pollFirst();
+                        if (next == null) {
+                            scheduled = false;
+                            scheduledByThisTask = false;
+                            return;
+                        }
+                    }
+                    try {
+                        next.run();
+                    } finally {
+                        onHandled();
+                    }
+                }
+            } finally {
+                // also after an exception, which goes on to the executor
+                if (scheduledByThisTask) {
+                    resubmitIfNotEmpty();
+                }
+            }
+        }
+
+        private void resubmitIfNotEmpty() {
+            synchronized (this) {
+                if (mailbox.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            executor.execute(this);
+        }
+    }
+}
@@ -15,8 +15,6 @@
  */
 package com.igbt6.lovelyclock.model;
 
-import java.util.Calendar;
-
 public interface IAlarmsScheduler {
     /** remove all Calendars of the AlarmCore with given id */
     public void removeAlarm(int id);
@@ -25,9 +23,23 @@ public interface IAlarmsScheduler {
      * Set all from a map.
      * 
      * @param id
+     * @param millis time in milliseconds since epoch
      */
-    public void setAlarm(int id, CalendarType calendarType, Calendar calendar, AlarmValue alarmValue);
+    public void setAlarm(int id, CalendarType calendarType, long millis, AlarmValue alarmValue);
 
     @Deprecated
     public void onAlarmFired(int id);
+
+    /**
+     * Starts a batch. Until {@link #commit()} is called, changes are only
+     * recorded. Alarms in the past are not fired, RTC alarm is not programmed
+     * and listeners are not notified. Batches can be nested, changes are
+     * applied when the outermost batch is committed.
+     */
+    public void beginBatch();
+
+    /**
+     * Commits the batch started with {@link #beginBatch()}
+     */
+    public void commit();
 }
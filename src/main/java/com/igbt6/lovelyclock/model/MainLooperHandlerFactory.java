@@ -44,4 +44,22 @@ public class MainLooperHandlerFactory implements HandlerFactory {
             }
         };
     }
+
+    /**
+     * All handlers share one queue
+     */
+    @Override
+    public IHandler createBarrier(MessageHandler messageHandler) {
+        return create(messageHandler);
+    }
+
+    @Override
+    public int getQueueCount() {
+        return 1;
+    }
+
+    @Override
+    public HandlerFactory onQueue(int queue) {
+        return this;
+    }
 }
@@ -0,0 +1,111 @@
+package com.igbt6.lovelyclock.model;
+
+import java.util.TimeZone;
+
+/**
+ * Calculates when an alarm fires next, using milliseconds since epoch and
+ * {@link TimeZone#getOffset(long)} instead of {@link java.util.Calendar}
+ * arithmetic. Nothing is allocated.
+ * <p>
+ * Days of week are coded like in {@link DaysOfWeek}: 0x01 is Monday, 0x40 is
+ * Sunday, 0 means that the alarm does not repeat.
+ * <p>
+ * Local times which do not exist because of a DST gap are moved forward by the
+ * length of the gap, e.g. 02:30 becomes 03:30. Local times which exist twice
+ * because of a DST overlap resolve to the first occurrence.
+ */
+public final class NextOccurrence {
+    private static final long MINUTE = 60 * 1000;
+    private static final long DAY = 24 * 60 * MINUTE;
+    /** No time zone has two transitions closer than this */
+    private static final long TRANSITION_PROBE = 6 * 60 * MINUTE;
+
+    private NextOccurrence() {
+    }
+
+    /**
+     * @return first time at hour:minute local time on one of the days of week
+     * which is not before now
+     */
+    public static long next(int hour, int minute, int daysOfWeek, long now, TimeZone zone) {
+        long today = floorDiv(now + zone.getOffset(now), DAY);
+        return occurrence(today, (hour * 60 + minute) * MINUTE, daysOfWeek, now, zone);
+    }
+
+    /**
+     * Moves the time forward by whole days (keeping the local time) until it
+     * is not before now and falls on one of the days of week.
+     */
+    public static long advance(long millis, int daysOfWeek, long now, TimeZone zone) {
+        long local = millis + zone.getOffset(millis);
+        long day = floorDiv(local, DAY);
+        return occurrence(day, local - day * DAY, daysOfWeek, now, zone);
+    }
+
+    /**
+     * @return number of days from given day until the next day which is set in
+     * daysOfWeek or -1 if no days are set
+     */
+    public static int daysUntilNext(int daysOfWeek, int dayOfWeek) {
+        return DaysOfWeek.getNextAlarm(daysOfWeek, dayOfWeek);
+    }
+
+    private static long occurrence(long day, long millisOfDay, int daysOfWeek, long now, TimeZone zone) {
+        long time = toMillis(day * DAY + millisOfDay, zone);
+        if (time < now) {
+            day++;
+            time = toMillis(day * DAY + millisOfDay, zone);
+        }
+        int addDays = daysUntilNext(daysOfWeek, dayOfWeek(day));
+        if (addDays > 0) {
+            time = toMillis((day + addDays) * DAY + millisOfDay, zone);
+        }
+        return time;
+    }
+
+    /**
+     * @return 0 for Monday, 6 for Sunday
+     */
+    private static int dayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday
+        return (int) floorMod(epochDay + 3, 7);
+    }
+
+    /**
+     * Converts local time to milliseconds since epoch.
+     */
+    static long toMillis(long local, TimeZone zone) {
+        int offset = zone.getOffset(local - zone.getRawOffset());
+        long millis = local - offset;
+        int before = zone.getOffset(millis - TRANSITION_PROBE);
+        int after = zone.getOffset(millis + TRANSITION_PROBE);
+        if (before == offset && after == offset) {
+            // no transition nearby
+            return millis;
+        }
+
+        // offsets before and after the transition
+        boolean validBefore = zone.getOffset(local - before) == before;
+        boolean validAfter = zone.getOffset(local - after) == after;
+        if (validBefore && validAfter) {
+            // overlap, first occurrence
+            return Math.min(local - before, local - after);
+        } else if (validBefore) {
+            return local - before;
+        } else if (validAfter) {
+            return local - after;
+        } else {
+            // gap, move forward by the length of the gap
+            return local - before;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
@@ -0,0 +1,148 @@
+package com.igbt6.lovelyclock.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary min-heap of {@link AlarmsScheduler.ScheduledAlarm}s which is indexed by
+ * alarm id. Every alarm id is present at most once. Position of each id in the
+ * heap array is tracked, so that replacing or removing an alarm does not
+ * require a linear scan like {@link java.util.PriorityQueue#remove(Object)}.
+ * <p>
+ * {@link #peek()} is O(1), {@link #put(AlarmsScheduler.ScheduledAlarm)},
+ * {@link #remove(int)} and {@link #poll()} are O(log n).
+ */
+class ScheduledAlarmHeap implements ScheduledAlarmQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private AlarmsScheduler.ScheduledAlarm[] heap = new AlarmsScheduler.ScheduledAlarm[INITIAL_CAPACITY];
+    private int size;
+    /** id to index in {@link #heap} */
+    private final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm put(AlarmsScheduler.ScheduledAlarm alarm) {
+        Integer position = positions.get(alarm.id);
+        if (position != null) {
+            AlarmsScheduler.ScheduledAlarm previous = heap[position];
+            heap[position] = alarm;
+            if (alarm.compareTo(previous) < 0) {
+                siftUp(position);
+            } else {
+                siftDown(position);
+            }
+            return previous;
+        }
+
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = alarm;
+        positions.put(alarm.id, size);
+        siftUp(size++);
+        return null;
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm remove(int id) {
+        Integer position = positions.get(id);
+        return position == null ? null : removeAt(position);
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm poll() {
+        return size == 0 ? null : removeAt(0);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Alarms are added in heap order. Only the subtree of the matching alarms
+     * is visited.
+     */
+    @Override
+    public void collectNotLaterThan(long millis, List<AlarmsScheduler.ScheduledAlarm> out) {
+        collectNotLaterThan(0, millis, out);
+    }
+
+    private void collectNotLaterThan(int position, long millis, List<AlarmsScheduler.ScheduledAlarm> out) {
+        if (position >= size || heap[position].millis > millis) {
+            return;
+        }
+        out.add(heap[position]);
+        collectNotLaterThan(2 * position + 1, millis, out);
+        collectNotLaterThan(2 * position + 2, millis, out);
+    }
+
+    private AlarmsScheduler.ScheduledAlarm removeAt(int position) {
+        AlarmsScheduler.ScheduledAlarm removed = heap[position];
+        positions.remove(removed.id);
+        int last = --size;
+        if (position != last) {
+            AlarmsScheduler.ScheduledAlarm moved = heap[last];
+            heap[position] = moved;
+            positions.put(moved.id, position);
+            heap[last] = null;
+            if (position > 0 && moved.compareTo(heap[(position - 1) >>> 1]) < 0) {
+                siftUp(position);
+            } else {
+                siftDown(position);
+            }
+        } else {
+            heap[last] = null;
+        }
+        return removed;
+    }
+
+    private void siftUp(int position) {
+        AlarmsScheduler.ScheduledAlarm alarm = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            AlarmsScheduler.ScheduledAlarm parentAlarm = heap[parent];
+            if (alarm.compareTo(parentAlarm) >= 0) {
+                break;
+            }
+            heap[position] = parentAlarm;
+            positions.put(parentAlarm.id, position);
+            position = parent;
+        }
+        heap[position] = alarm;
+        positions.put(alarm.id, position);
+    }
+
+    private void siftDown(int position) {
+        AlarmsScheduler.ScheduledAlarm alarm = heap[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && heap[right].compareTo(heap[child]) < 0) {
+                child = right;
+            }
+            AlarmsScheduler.ScheduledAlarm childAlarm = heap[child];
+            if (alarm.compareTo(childAlarm) <= 0) {
+                break;
+            }
+            heap[position] = childAlarm;
+            positions.put(childAlarm.id, position);
+            position = child;
+        }
+        heap[position] = alarm;
+        positions.put(alarm.id, position);
+    }
+}
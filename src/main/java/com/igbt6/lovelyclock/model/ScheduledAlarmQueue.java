@@ -0,0 +1,36 @@
+package com.igbt6.lovelyclock.model;
+
+import java.util.List;
+
+/**
+ * Queue of {@link AlarmsScheduler.ScheduledAlarm}s ordered by time. Every alarm
+ * id is present at most once.
+ */
+interface ScheduledAlarmQueue {
+    /**
+     * Adds an alarm. If an alarm with the same id is already present it is
+     * replaced.
+     *
+     * @return replaced alarm or null
+     */
+    AlarmsScheduler.ScheduledAlarm put(AlarmsScheduler.ScheduledAlarm alarm);
+
+    /**
+     * @return removed alarm or null if there was no alarm with this id
+     */
+    AlarmsScheduler.ScheduledAlarm remove(int id);
+
+    AlarmsScheduler.ScheduledAlarm peek();
+
+    AlarmsScheduler.ScheduledAlarm poll();
+
+    boolean isEmpty();
+
+    int size();
+
+    /**
+     * Adds all alarms which are due not later than given time to the list.
+     * Alarms are not necessarily added in order.
+     */
+    void collectNotLaterThan(long millis, List<AlarmsScheduler.ScheduledAlarm> out);
+}
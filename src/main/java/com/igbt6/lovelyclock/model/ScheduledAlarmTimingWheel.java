@@ -0,0 +1,311 @@
+package com.igbt6.lovelyclock.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of {@link AlarmsScheduler.ScheduledAlarm}s which is
+ * meant for very large numbers of alarms which are constantly rescheduled.
+ * <p>
+ * The wheel starts at a base hour. Alarms within the base hour are kept in
+ * minute buckets, alarms within the next 23 hours in hour buckets, alarms
+ * within the next {@link #DAYS} days in day buckets and everything later in
+ * one overflow bucket. Buckets are intrusive linked lists, so {@link #put} and
+ * {@link #remove} are O(1). When the minute buckets run empty the base is moved
+ * to the next non-empty bucket and this bucket is distributed to finer buckets.
+ * Every alarm is moved at most a few times, so {@link #peek()} is amortized
+ * O(1) plus a scan of the alarms which are due in the same minute.
+ * <p>
+ * Alarms which are set before the base (e.g. a snooze while the earliest alarm
+ * is tomorrow) are kept in a {@link ScheduledAlarmHeap}.
+ */
+class ScheduledAlarmTimingWheel implements ScheduledAlarmQueue {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    private static final int MINUTES = 60;
+    private static final int HOURS = 24;
+    private static final int DAYS = 64;
+
+    private final Bucket[] minutes = createBuckets(MINUTES);
+    private final Bucket[] hours = createBuckets(HOURS);
+    private final Bucket[] days = createBuckets(DAYS);
+    private final Bucket overflow = new Bucket();
+    /** Alarms which are earlier than {@link #baseMinute} */
+    private final ScheduledAlarmHeap early = new ScheduledAlarmHeap();
+    /** id to node for the alarms in the buckets */
+    private final Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+    /** First minute of the base hour, in minutes since epoch */
+    private long baseMinute;
+    private AlarmsScheduler.ScheduledAlarm head;
+    private boolean headValid = true;
+
+    private static final class Node {
+        private final AlarmsScheduler.ScheduledAlarm alarm;
+        private final long millis;
+        private Bucket bucket;
+        private Node prev;
+        private Node next;
+
+        private Node(AlarmsScheduler.ScheduledAlarm alarm) {
+            this.alarm = alarm;
+            this.millis = alarm.millis;
+        }
+    }
+
+    private static final class Bucket {
+        private Node first;
+        private int size;
+
+        private void add(Node node) {
+            node.bucket = this;
+            node.prev = null;
+            node.next = first;
+            if (first != null) {
+                first.prev = node;
+            }
+            first = node;
+            size++;
+        }
+
+        private void remove(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                first = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            }
+            node.bucket = null;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        /**
+         * @return all nodes as a linked list, bucket is empty afterwards
+         */
+        private Node removeAll() {
+            Node all = first;
+            first = null;
+            size = 0;
+            return all;
+        }
+
+        private AlarmsScheduler.ScheduledAlarm earliest() {
+            Node earliest = first;
+            for (Node node = first.next; node != null; node = node.next) {
+                if (node.millis < earliest.millis) {
+                    earliest = node;
+                }
+            }
+            return earliest.alarm;
+        }
+
+        private void collectNotLaterThan(long millis, List<AlarmsScheduler.ScheduledAlarm> out) {
+            for (Node node = first; node != null; node = node.next) {
+                if (node.millis <= millis) {
+                    out.add(node.alarm);
+                }
+            }
+        }
+    }
+
+    private static Bucket[] createBuckets(int count) {
+        Bucket[] buckets = new Bucket[count];
+        for (int i = 0; i < count; i++) {
+            buckets[i] = new Bucket();
+        }
+        return buckets;
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm put(AlarmsScheduler.ScheduledAlarm alarm) {
+        AlarmsScheduler.ScheduledAlarm previous = remove(alarm.id);
+
+        Node node = new Node(alarm);
+        if (isEmpty()) {
+            baseMinute = node.millis / HOUR_MILLIS * MINUTES;
+        }
+
+        if (node.millis < baseMinute * MINUTE_MILLIS) {
+            early.put(alarm);
+        } else {
+            nodes.put(alarm.id, node);
+            place(node);
+        }
+
+        if (headValid && (head == null || alarm.compareTo(head) < 0)) {
+            head = alarm;
+        }
+        return previous;
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm remove(int id) {
+        AlarmsScheduler.ScheduledAlarm removed;
+        Node node = nodes.remove(id);
+        if (node != null) {
+            node.bucket.remove(node);
+            removed = node.alarm;
+        } else {
+            removed = early.remove(id);
+        }
+
+        // compare by reference!
+        if (removed != null && removed == head) {
+            headValid = false;
+            head = null;
+        }
+        return removed;
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm peek() {
+        if (!headValid) {
+            head = findHead();
+            headValid = true;
+        }
+        return head;
+    }
+
+    @Override
+    public AlarmsScheduler.ScheduledAlarm poll() {
+        AlarmsScheduler.ScheduledAlarm polled = peek();
+        if (polled != null) {
+            remove(polled.id);
+        }
+        return polled;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return nodes.isEmpty() && early.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return nodes.size() + early.size();
+    }
+
+    @Override
+    public void collectNotLaterThan(long millis, List<AlarmsScheduler.ScheduledAlarm> out) {
+        early.collectNotLaterThan(millis, out);
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < MINUTES; i++) {
+            if ((baseMinute + i) * MINUTE_MILLIS > millis) return;
+            minutes[i].collectNotLaterThan(millis, out);
+        }
+
+        long baseHour = baseMinute / MINUTES;
+        for (int i = 1; i < HOURS; i++) {
+            if ((baseHour + i) * HOUR_MILLIS > millis) return;
+            hours[(int) ((baseHour + i) % HOURS)].collectNotLaterThan(millis, out);
+        }
+
+        long baseDay = baseHour / HOURS;
+        for (int i = 1; i < DAYS; i++) {
+            if ((baseDay + i) * DAY_MILLIS > millis) return;
+            days[(int) ((baseDay + i) % DAYS)].collectNotLaterThan(millis, out);
+        }
+
+        overflow.collectNotLaterThan(millis, out);
+    }
+
+    /**
+     * Puts the node into the bucket which matches its time. The node must not
+     * be earlier than {@link #baseMinute}.
+     */
+    private void place(Node node) {
+        long minute = node.millis / MINUTE_MILLIS;
+        long hour = minute / MINUTES;
+        long baseHour = baseMinute / MINUTES;
+        if (hour == baseHour) {
+            minutes[(int) (minute - baseMinute)].add(node);
+        } else if (hour < baseHour + HOURS) {
+            hours[(int) (hour % HOURS)].add(node);
+        } else if (hour / HOURS < baseHour / HOURS + DAYS) {
+            days[(int) (hour / HOURS % DAYS)].add(node);
+        } else {
+            overflow.add(node);
+        }
+    }
+
+    private AlarmsScheduler.ScheduledAlarm findHead() {
+        // early alarms are all earlier than the alarms in the buckets
+        if (!early.isEmpty()) {
+            return early.peek();
+        }
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        while (true) {
+            for (Bucket bucket : minutes) {
+                if (bucket.size > 0) {
+                    return bucket.earliest();
+                }
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Moves the base to the next non-empty bucket. Must only be called if all
+     * minute buckets are empty.
+     */
+    private void advance() {
+        long baseHour = baseMinute / MINUTES;
+        for (int i = 1; i < HOURS; i++) {
+            if (hours[(int) ((baseHour + i) % HOURS)].size > 0) {
+                rebase((baseHour + i) * MINUTES);
+                return;
+            }
+        }
+
+        long baseDay = baseHour / HOURS;
+        for (int i = 1; i < DAYS; i++) {
+            if (days[(int) ((baseDay + i) % DAYS)].size > 0) {
+                rebase((baseDay + i) * HOURS * MINUTES);
+                return;
+            }
+        }
+
+        long earliest = Long.MAX_VALUE;
+        for (Node node = overflow.first; node != null; node = node.next) {
+            earliest = Math.min(earliest, node.millis);
+        }
+        rebase(earliest / HOUR_MILLIS * MINUTES);
+    }
+
+    /**
+     * Moves the base forward to the given hour and distributes the buckets
+     * which are now partially or completely covered by finer buckets. There
+     * must be no alarms in the buckets which are earlier than the new base.
+     */
+    private void rebase(long newBaseMinute) {
+        long previousDay = baseMinute / MINUTES / HOURS;
+        baseMinute = newBaseMinute;
+        long hour = baseMinute / MINUTES;
+        long day = hour / HOURS;
+        redistribute(hours[(int) (hour % HOURS)]);
+        redistribute(days[(int) (day % DAYS)]);
+        redistribute(days[(int) ((day + 1) % DAYS)]);
+        if (day != previousDay) {
+            redistribute(overflow);
+        }
+    }
+
+    private void redistribute(Bucket bucket) {
+        Node node = bucket.removeAll();
+        while (node != null) {
+            Node next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+}
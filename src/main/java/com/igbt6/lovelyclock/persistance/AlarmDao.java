@@ -0,0 +1,240 @@
+package com.igbt6.lovelyclock.persistance;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+
+import java.util.Collection;
+
+/**
+ * Direct access to the alarms table for our own process. Uses compiled
+ * statements with bound parameters instead of going through
+ * {@link AlarmProvider}, which stays for external consumers only.
+ * <p>
+ * Every write call notifies the observers of
+ * {@link PersistingContainerFactory.Columns#CONTENT_URI} once, like the
+ * provider does. Writes are announced to the {@link AlarmQueryCache} of the
+ * provider.
+ * <p>
+ * Thread safe, statements are used by one thread at a time.
+ */
+public class AlarmDao {
+    private static final String TABLE = "alarms";
+
+    // @formatter:off
+    private static final String INSERT = "INSERT INTO " + TABLE + " ("
+            + "hour, minutes, daysofweek, alarmtime, enabled, vibrate, message, alert, prealarm, state, _id"
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE = "UPDATE " + TABLE + " SET "
+            + "hour = ?, minutes = ?, daysofweek = ?, alarmtime = ?, enabled = ?, vibrate = ?, message = ?, alert = ?, prealarm = ?, state = ?"
+            + " WHERE _id = ?";
+    private static final String DELETE = "DELETE FROM " + TABLE + " WHERE _id = ?";
+    // @formatter:on
+    /** index of the _id parameter in {@link #INSERT} and {@link #UPDATE} */
+    private static final int ID_INDEX = 11;
+
+    private final AlarmDatabaseHelper helper;
+    private final ContentResolver resolver;
+    private SQLiteStatement insert;
+    private SQLiteStatement update;
+    private SQLiteStatement delete;
+
+    public AlarmDao(AlarmDatabaseHelper helper, ContentResolver resolver) {
+        this.helper = helper;
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return first id of a block of count ids which can be used for new
+     * alarms
+     */
+    public int reserveIds(int count) {
+        return helper.reserveIds(count);
+    }
+
+    /**
+     * Inserts a row with the id of the container, which must have been
+     * reserved with {@link #reserveIds(int)}
+     */
+    public synchronized void insert(AlarmContainer container) {
+        AlarmQueryCache cache = helper.getQueryCache();
+        cache.beginWrite();
+        try {
+            insertRow(container);
+        } finally {
+            cache.endWrite();
+        }
+        notifyChange();
+    }
+
+    /**
+     * @return false if there is no row with the id of the container
+     */
+    public synchronized boolean update(AlarmContainer container) {
+        AlarmQueryCache cache = helper.getQueryCache();
+        boolean updated;
+        cache.beginWrite();
+        try {
+            updated = updateRow(container);
+        } finally {
+            cache.endWrite();
+        }
+        if (updated) {
+            notifyChange();
+        }
+        return updated;
+    }
+
+    /**
+     * Updates the row or inserts it if the container was not written yet
+     */
+    public synchronized void upsert(AlarmContainer container) {
+        AlarmQueryCache cache = helper.getQueryCache();
+        cache.beginWrite();
+        try {
+            upsertRow(container);
+        } finally {
+            cache.endWrite();
+        }
+        notifyChange();
+    }
+
+    /**
+     * Upserts all containers in one transaction. Observers are notified once
+     * after the commit.
+     */
+    public synchronized void upsertAll(Collection<AlarmContainer> containers) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        AlarmQueryCache cache = helper.getQueryCache();
+        cache.beginWrite();
+        db.beginTransaction();
+        try {
+            for (AlarmContainer container : containers) {
+                upsertRow(container);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.endWrite();
+        }
+        notifyChange();
+    }
+
+    public synchronized void delete(int id) {
+        if (delete == null) {
+            delete = helper.getWritableDatabase().compileStatement(DELETE);
+        }
+        delete.bindLong(1, id);
+        AlarmQueryCache cache = helper.getQueryCache();
+        cache.beginWrite();
+        try {
+            delete.executeUpdateDelete();
+        } finally {
+            cache.endWrite();
+        }
+        notifyChange();
+    }
+
+    private void insertRow(AlarmContainer container) {
+        if (insert == null) {
+            insert = helper.getWritableDatabase().compileStatement(INSERT);
+        }
+        bindValues(insert, container);
+        insert.bindLong(ID_INDEX, container.getId());
+        if (insert.executeInsert() < 0) throw new SQLException("Failed to insert row");
+    }
+
+    private boolean updateRow(AlarmContainer container) {
+        if (update == null) {
+            update = helper.getWritableDatabase().compileStatement(UPDATE);
+        }
+        bindValues(update, container);
+        update.bindLong(ID_INDEX, container.getId());
+        return update.executeUpdateDelete() > 0;
+    }
+
+    private void upsertRow(AlarmContainer container) {
+        if (!updateRow(container)) {
+            insertRow(container);
+        }
+    }
+
+    /**
+     * Notifies external observers of the provider, the app itself does not
+     * observe the alarms table
+     */
+    private void notifyChange() {
+        resolver.notifyChange(PersistingContainerFactory.Columns.CONTENT_URI, null);
+    }
+
+    /**
+     * @return cursor with {@link PersistingContainerFactory.Columns#ALARM_QUERY_COLUMNS}
+     */
+    public Cursor queryAll() {
+        return helper.getReadableDatabase().query(TABLE,
+                PersistingContainerFactory.Columns.ALARM_QUERY_COLUMNS,
+                null, null, null, null,
+                PersistingContainerFactory.Columns.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * @return cursor with {@link PersistingContainerFactory.Columns#ALARM_QUERY_COLUMNS}
+     * of enabled alarms, earliest first, or of all other alarms
+     */
+    public Cursor queryAll(boolean enabled) {
+        return helper.getReadableDatabase().query(TABLE,
+                PersistingContainerFactory.Columns.ALARM_QUERY_COLUMNS,
+                enabled ? "enabled = 1" : "enabled IS NOT 1", null, null, null,
+                enabled ? "alarmtime ASC" : PersistingContainerFactory.Columns.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * @return cursor with the given columns of the alarm or an empty cursor
+     */
+    public Cursor query(int id, String[] columns) {
+        return helper.getReadableDatabase().query(TABLE, columns,
+                "_id = ?", new String[]{Integer.toString(id)},
+                null, null, null);
+    }
+
+    /**
+     * Uses the (enabled, alarmtime) index, so only the matching rows are read.
+     *
+     * @return cursor with the given columns of the enabled alarms which fire
+     * at or after from and before to, earliest first
+     */
+    public Cursor queryEnabled(long from, long to, String[] columns) {
+        return helper.getReadableDatabase().query(TABLE, columns,
+                "enabled = 1 AND alarmtime >= ? AND alarmtime < ?", new String[]{Long.toString(from), Long.toString(to)},
+                null, null, "alarmtime ASC");
+    }
+
+    /**
+     * Binds parameters 1 to 10 in the order of {@link #INSERT}
+     */
+    private static void bindValues(SQLiteStatement statement, AlarmContainer container) {
+        statement.bindLong(1, container.getHour());
+        statement.bindLong(2, container.getMinutes());
+        statement.bindLong(3, container.getDaysOfWeek().getCoded());
+        statement.bindLong(4, container.getNextTime());
+        statement.bindLong(5, container.isEnabled() ? 1 : 0);
+        statement.bindLong(6, container.isVibrate() ? 1 : 0);
+        bindString(statement, 7, container.getLabel());
+        // A null alert Uri indicates a silent
+        bindString(statement, 8, container.alertString());
+        statement.bindLong(9, container.isPrealarm() ? 1 : 0);
+        bindString(statement, 10, container.getState());
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.igbt6.lovelyclock.persistance;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -29,16 +30,39 @@ import com.igbt6.lovelyclock.logger.Logger;
 
 /**
  * Helper class for opening the database from multiple providers. Also provides
- * some common functionality.
+ * some common functionality. There is one instance per process, so that
+ * {@link AlarmProvider} and {@link AlarmDao} share one connection pool.
  */
 public class AlarmDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "alarms.db";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 7;
+    private static AlarmDatabaseHelper sInstance;
     private final Logger log;
+    private final AlarmQueryCache queryCache = new AlarmQueryCache();
 
-    public AlarmDatabaseHelper(Context context, Logger log) {
+    private AlarmDatabaseHelper(Context context, Logger log) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         this.log = log;
+        // readers do not wait for the writer
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * @param log used if the helper does not exist yet
+     */
+    public static synchronized AlarmDatabaseHelper getInstance(Context context, Logger log) {
+        if (sInstance == null) {
+            sInstance = new AlarmDatabaseHelper(context.getApplicationContext(), log);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return cache of the alarms table, everyone who writes to it must
+     * announce the write with {@link AlarmQueryCache#beginWrite()}
+     */
+    public AlarmQueryCache getQueryCache() {
+        return queryCache;
     }
 
     @Override
@@ -62,17 +86,70 @@ public class AlarmDatabaseHelper extends SQLiteOpenHelper {
                 + "message, alert, prealarm, state) VALUES ";
         db.execSQL(insertMe + "(8, 30, 31, 0, 0, 1, '', '', 0, '');");
         db.execSQL(insertMe + "(9, 00, 96, 0, 0, 1, '', '', 0, '');");
+        createIdSequence(db);
+        createIndexes(db);
+    }
+
+    /**
+     * Enabled alarms in a time range are looked up without a full table scan
+     */
+    private void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS alarms_enabled_alarmtime ON alarms (enabled, alarmtime);");
+    }
+
+    /**
+     * Creates the table which holds the next free alarm id. Ids are reserved
+     * with {@link #reserveIds(int)}, so that new alarms get an id without
+     * inserting a row.
+     */
+    private void createIdSequence(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS alarm_ids");
+        db.execSQL("CREATE TABLE alarm_ids (next_id INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO alarm_ids (next_id) SELECT IFNULL(MAX(_id), 0) + 1 FROM alarms;");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int currentVersion) {
+        if (oldVersion >= 5) {
+            log.d("Upgrading alarms database from version " + oldVersion + " to " + currentVersion);
+            if (oldVersion < 6) {
+                createIdSequence(db);
+            }
+            if (oldVersion < 7) {
+                createIndexes(db);
+            }
+            return;
+        }
         log.d("Upgrading alarms database from version " + oldVersion + " to " + currentVersion
                 + ", which will destroy all old data");
         db.execSQL("DROP TABLE IF EXISTS alarms");
         onCreate(db);
     }
 
+    /**
+     * Reserves a block of ids with one write. Ids which are reserved but not
+     * used are never reused.
+     *
+     * @return first id of the block
+     */
+    public synchronized int reserveIds(int count) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int first = (int) DatabaseUtils.longForQuery(db, "SELECT next_id FROM alarm_ids", null);
+            db.execSQL("UPDATE alarm_ids SET next_id = ?", new Object[]{first + count});
+            db.setTransactionSuccessful();
+            return first;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public Uri commonInsert(ContentValues values) {
+        if (!values.containsKey(PersistingContainerFactory.Columns._ID)) {
+            // do not take ids which are reserved for alarms which are not written yet
+            values.put(PersistingContainerFactory.Columns._ID, reserveIds(1));
+        }
         SQLiteDatabase db = getWritableDatabase();
         long rowId = db.insert("alarms", PersistingContainerFactory.Columns.MESSAGE, values);
         if (rowId < 0) throw new SQLException("Failed to insert row");
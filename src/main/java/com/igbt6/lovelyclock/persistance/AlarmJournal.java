@@ -0,0 +1,572 @@
+package com.igbt6.lovelyclock.persistance;
+
+import com.igbt6.lovelyclock.logger.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of alarm changes in a memory-mapped file.
+ * <p>
+ * The file starts with a magic number followed by records. Each record is
+ * {@code [int length][int crc32][payload]}, the payload is
+ * {@code [byte type][int id][short fields][changed fields]}. Only the fields
+ * which differ from the previous record of the same alarm are written, so a
+ * typical state change takes about 30 bytes.
+ * <p>
+ * Crash consistency: {@link #open(File, int)} replays the records until the
+ * first one which is incomplete or has a wrong checksum. Everything after it
+ * is discarded, so a record torn by a crash is never applied. Records are in
+ * the page cache once {@link #put(Entry)} returns and survive the death of the
+ * process. {@link #sync()} is needed to survive a power loss.
+ * <p>
+ * When the file grows over the compaction threshold, a snapshot of the
+ * current state is written to a new file on the compaction {@link Executor}
+ * while records are still appended to the journal. The records appended in
+ * the meantime are then copied to the new file, which replaces the journal
+ * under the lock of the journal.
+ * <p>
+ * Thread safe, but records are meant to be written by one thread, e.g. the I/O
+ * thread of {@link AsyncPersistence}.
+ */
+public class AlarmJournal implements Closeable {
+    private static final int MAGIC = 0x414A4C31;
+    private static final int HEADER_SIZE = 4;
+    /** length and crc */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private static final int HOUR = 1;
+    private static final int MINUTES = 1 << 1;
+    private static final int DAYS_OF_WEEK = 1 << 2;
+    private static final int NEXT_TIME = 1 << 3;
+    private static final int ENABLED = 1 << 4;
+    private static final int VIBRATE = 1 << 5;
+    private static final int PREALARM = 1 << 6;
+    private static final int LABEL = 1 << 7;
+    private static final int ALERT = 1 << 8;
+    private static final int STATE = 1 << 9;
+    private static final int ALL = (1 << 10) - 1;
+
+    /**
+     * Data of one alarm
+     */
+    public static class Entry {
+        public int id;
+        public int hour;
+        public int minutes;
+        public int daysOfWeek;
+        public long nextTime;
+        public boolean enabled;
+        public boolean vibrate;
+        public boolean prealarm;
+        public String label;
+        public String alert;
+        public String state;
+
+        public Entry copy() {
+            Entry copy = new Entry();
+            copy.id = id;
+            copy.hour = hour;
+            copy.minutes = minutes;
+            copy.daysOfWeek = daysOfWeek;
+            copy.nextTime = nextTime;
+            copy.enabled = enabled;
+            copy.vibrate = vibrate;
+            copy.prealarm = prealarm;
+            copy.label = label;
+            copy.alert = alert;
+            copy.state = state;
+            return copy;
+        }
+    }
+
+    private static ExecutorService defaultCompactor;
+
+    private final File file;
+    private final Executor compactor;
+    private final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>();
+    private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private int compactionThreshold;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int compactionCount;
+    private int discardedBytes;
+    /** true while a compaction is submitted or running */
+    private boolean compacting;
+    private boolean closed;
+
+    private AlarmJournal(File file, int compactionThreshold, Executor compactor) {
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = compactor;
+    }
+
+    /**
+     * Opens the journal and replays it. Creates the file if it does not exist.
+     * Compactions run on a background thread shared by all journals.
+     *
+     * @param compactionThreshold size of the file in bytes which triggers a
+     *                            compaction
+     */
+    public static AlarmJournal open(File file, int compactionThreshold) throws IOException {
+        return open(file, compactionThreshold, defaultCompactor());
+    }
+
+    /**
+     * Opens the journal and replays it. Creates the file if it does not exist.
+     *
+     * @param compactionThreshold size of the file in bytes which triggers a
+     *                            compaction
+     * @param compactor           runs the compactions
+     */
+    public static AlarmJournal open(File file, int compactionThreshold, Executor compactor) throws IOException {
+        AlarmJournal journal = new AlarmJournal(file, compactionThreshold, compactor);
+        journal.map();
+        journal.replay();
+        return journal;
+    }
+
+    private static synchronized Executor defaultCompactor() {
+        if (defaultCompactor == null) {
+            defaultCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AlarmJournal-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultCompactor;
+    }
+
+    /**
+     * @return current state of all alarms, id to entry. Must only be used by
+     * the thread which writes the records.
+     */
+    public Map<Integer, Entry> entries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Appends the fields which have changed since the last record of this
+     * alarm. Nothing is written if nothing has changed.
+     *
+     * @throws IllegalArgumentException if a string is longer than
+     *             {@link Short#MAX_VALUE} bytes in UTF-8 or the record does not
+     *             fit into {@link #MAX_PAYLOAD_SIZE}. Nothing is written then.
+     */
+    public synchronized void put(Entry entry) throws IOException {
+        Entry previous = entries.get(entry.id);
+        int fields = previous == null ? ALL : changedFields(previous, entry);
+        if (fields == 0) return;
+
+        int size = payloadSize(entry, fields);
+        if (size > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Record of alarm " + entry.id + " is " + size
+                    + " bytes, at most " + MAX_PAYLOAD_SIZE + " are allowed");
+        }
+
+        payload.clear();
+        payload.put(TYPE_PUT);
+        payload.putInt(entry.id);
+        payload.putShort((short) fields);
+        writeFields(entry, fields);
+        append();
+        entries.put(entry.id, entry.copy());
+        compactIfNeeded();
+    }
+
+    public synchronized void delete(int id) throws IOException {
+        if (entries.remove(id) == null) return;
+        payload.clear();
+        payload.put(TYPE_DELETE);
+        payload.putInt(id);
+        append();
+        compactIfNeeded();
+    }
+
+    /**
+     * Writes the mapped pages to the disk
+     */
+    public synchronized void sync() {
+        mapped.force();
+    }
+
+    /**
+     * @return bytes in use, including the header
+     */
+    public synchronized int size() {
+        return mapped.position();
+    }
+
+    /**
+     * @return how many times the journal was compacted since it was opened
+     */
+    public synchronized int getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * @return bytes which were discarded on open because the tail of the
+     * journal was incomplete or corrupted
+     */
+    public synchronized int getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        closeFile();
+    }
+
+    /**
+     * Writes all entries to a new file which then replaces the journal, on
+     * the calling thread.
+     */
+    public synchronized void compact() throws IOException {
+        AlarmJournal target = writeSnapshot(snapshot());
+        replaceWith(target, mapped.position());
+    }
+
+    private void compactIfNeeded() {
+        if (compacting || mapped.position() <= compactionThreshold) return;
+        compacting = true;
+        final List<Entry> snapshot = snapshot();
+        final int snapshotEnd = mapped.position();
+        final int generation = compactionCount;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AlarmJournal target = writeSnapshot(snapshot);
+                    synchronized (AlarmJournal.this) {
+                        if (closed || compactionCount != generation) {
+                            // closed or compacted with compact() in the meantime
+                            target.closeFile();
+                            target.file.delete();
+                        } else {
+                            replaceWith(target, snapshotEnd);
+                        }
+                    }
+                } catch (IOException e) {
+                    Logger.getDefaultLogger().e("Compaction of " + file + " failed", e);
+                } finally {
+                    synchronized (AlarmJournal.this) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private List<Entry> snapshot() {
+        List<Entry> snapshot = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            snapshot.add(entry.copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the entries to a new journal next to this one, does not touch
+     * this one
+     */
+    private AlarmJournal writeSnapshot(List<Entry> snapshot) throws IOException {
+        File compacted = File.createTempFile(file.getName(), ".compact", file.getAbsoluteFile().getParentFile());
+        AlarmJournal target = new AlarmJournal(compacted, Integer.MAX_VALUE, null);
+        try {
+            target.createFile();
+            target.map();
+            target.writeHeader();
+            for (Entry entry : snapshot) {
+                target.put(entry);
+            }
+            return target;
+        } catch (IOException e) {
+            if (target.channel != null) {
+                target.closeFile();
+            }
+            compacted.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the records appended after the snapshot to the target and
+     * replaces this journal with it. Called with the lock held.
+     */
+    private void replaceWith(AlarmJournal target, int snapshotEnd) throws IOException {
+        int end = mapped.position();
+        byte[] tail = new byte[end - snapshotEnd];
+        mapped.position(snapshotEnd);
+        mapped.get(tail);
+        mapped.position(end);
+        target.appendRecords(tail);
+        target.sync();
+        target.closeFile();
+
+        closeFile();
+        if (!target.file.renameTo(file)) {
+            target.file.delete();
+            // the journal is still complete, keep using it
+            map();
+            replay();
+            throw new IOException("Could not replace " + file + " with " + target.file);
+        }
+        map();
+        replay();
+        compactionCount++;
+        // do not compact again and again if the alarms alone are that large
+        compactionThreshold = Math.max(compactionThreshold, size() * 2);
+    }
+
+    private void closeFile() throws IOException {
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Appends complete records as they are
+     */
+    private void appendRecords(byte[] records) throws IOException {
+        if (mapped.remaining() < records.length + RECORD_HEADER_SIZE) {
+            grow(records.length);
+        }
+        mapped.put(records);
+    }
+
+    private void createFile() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private void map() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long capacity = Math.max(channel.size(), INITIAL_CAPACITY);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void writeHeader() {
+        mapped.position(0);
+        mapped.putInt(MAGIC);
+    }
+
+    /**
+     * Applies all valid records to {@link #entries}, positions the buffer
+     * after the last valid record and clears everything after it.
+     */
+    private void replay() throws IOException {
+        entries.clear();
+        discardedBytes = 0;
+        mapped.position(0);
+        int magic = mapped.getInt();
+        if (magic == 0) {
+            writeHeader();
+            return;
+        } else if (magic != MAGIC) {
+            throw new IOException(file + " is not an alarm journal");
+        }
+
+        while (mapped.remaining() >= RECORD_HEADER_SIZE) {
+            int start = mapped.position();
+            int length = mapped.getInt();
+            int checksum = mapped.getInt();
+            if (length == 0) {
+                // end of the journal
+                mapped.position(start);
+                return;
+            }
+            if (length < 0 || length > MAX_PAYLOAD_SIZE || length > mapped.remaining()) {
+                discard(start);
+                return;
+            }
+            payload.clear();
+            payload.limit(length);
+            mapped.get(payload.array(), 0, length);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                discard(start);
+                return;
+            }
+            apply();
+        }
+    }
+
+    private void discard(int start) {
+        mapped.position(start);
+        while (mapped.hasRemaining()) {
+            if (mapped.get() != 0) {
+                discardedBytes = mapped.position() - start;
+            }
+        }
+        // zeroes, so that the discarded bytes are not read as records later
+        mapped.position(start);
+        while (mapped.hasRemaining()) {
+            mapped.put((byte) 0);
+        }
+        mapped.position(start);
+    }
+
+    private void apply() {
+        byte type = payload.get();
+        int id = payload.getInt();
+        if (type == TYPE_DELETE) {
+            entries.remove(id);
+        } else {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                entry = new Entry();
+                entry.id = id;
+                entries.put(id, entry);
+            }
+            readFields(entry, payload.getShort());
+        }
+    }
+
+    private void append() throws IOException {
+        payload.flip();
+        int length = payload.limit();
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+
+        if (mapped.remaining() < RECORD_HEADER_SIZE + length + RECORD_HEADER_SIZE) {
+            grow(RECORD_HEADER_SIZE + length);
+        }
+        int start = mapped.position();
+        // length goes last, a torn record must not look complete
+        mapped.position(start + 4);
+        mapped.putInt((int) crc.getValue());
+        mapped.put(payload.array(), 0, length);
+        int end = mapped.position();
+        mapped.putInt(start, length);
+        mapped.position(end);
+    }
+
+    private void grow(int needed) throws IOException {
+        int position = mapped.position();
+        long capacity = Math.max(mapped.capacity() * 2L, position + needed + RECORD_HEADER_SIZE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mapped.position(position);
+    }
+
+    private static int changedFields(Entry previous, Entry entry) {
+        int fields = 0;
+        if (previous.hour != entry.hour) fields |= HOUR;
+        if (previous.minutes != entry.minutes) fields |= MINUTES;
+        if (previous.daysOfWeek != entry.daysOfWeek) fields |= DAYS_OF_WEEK;
+        if (previous.nextTime != entry.nextTime) fields |= NEXT_TIME;
+        if (previous.enabled != entry.enabled) fields |= ENABLED;
+        if (previous.vibrate != entry.vibrate) fields |= VIBRATE;
+        if (previous.prealarm != entry.prealarm) fields |= PREALARM;
+        if (!equal(previous.label, entry.label)) fields |= LABEL;
+        if (!equal(previous.alert, entry.alert)) fields |= ALERT;
+        if (!equal(previous.state, entry.state)) fields |= STATE;
+        return fields;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int payloadSize(Entry entry, int fields) {
+        int size = 1 + 4 + 2;
+        if ((fields & HOUR) != 0) size += 1;
+        if ((fields & MINUTES) != 0) size += 1;
+        if ((fields & DAYS_OF_WEEK) != 0) size += 1;
+        if ((fields & NEXT_TIME) != 0) size += 8;
+        if ((fields & ENABLED) != 0) size += 1;
+        if ((fields & VIBRATE) != 0) size += 1;
+        if ((fields & PREALARM) != 0) size += 1;
+        if ((fields & LABEL) != 0) size += stringSize(entry.id, entry.label);
+        if ((fields & ALERT) != 0) size += stringSize(entry.id, entry.alert);
+        if ((fields & STATE) != 0) size += stringSize(entry.id, entry.state);
+        return size;
+    }
+
+    /**
+     * The length prefix is a short, longer strings would wrap to a negative
+     * length and fail the replay together with every record after them.
+     */
+    private static int stringSize(int id, String string) {
+        if (string == null) return 2;
+        int length = string.getBytes(UTF_8).length;
+        if (length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("String of alarm " + id + " is " + length
+                    + " bytes, at most " + Short.MAX_VALUE + " are allowed");
+        }
+        return 2 + length;
+    }
+
+    private void writeFields(Entry entry, int fields) {
+        if ((fields & HOUR) != 0) payload.put((byte) entry.hour);
+        if ((fields & MINUTES) != 0) payload.put((byte) entry.minutes);
+        if ((fields & DAYS_OF_WEEK) != 0) payload.put((byte) entry.daysOfWeek);
+        if ((fields & NEXT_TIME) != 0) payload.putLong(entry.nextTime);
+        if ((fields & ENABLED) != 0) payload.put((byte) (entry.enabled ? 1 : 0));
+        if ((fields & VIBRATE) != 0) payload.put((byte) (entry.vibrate ? 1 : 0));
+        if ((fields & PREALARM) != 0) payload.put((byte) (entry.prealarm ? 1 : 0));
+        if ((fields & LABEL) != 0) writeString(entry.label);
+        if ((fields & ALERT) != 0) writeString(entry.alert);
+        if ((fields & STATE) != 0) writeString(entry.state);
+    }
+
+    private void readFields(Entry entry, int fields) {
+        if ((fields & HOUR) != 0) entry.hour = payload.get();
+        if ((fields & MINUTES) != 0) entry.minutes = payload.get();
+        if ((fields & DAYS_OF_WEEK) != 0) entry.daysOfWeek = payload.get();
+        if ((fields & NEXT_TIME) != 0) entry.nextTime = payload.getLong();
+        if ((fields & ENABLED) != 0) entry.enabled = payload.get() == 1;
+        if ((fields & VIBRATE) != 0) entry.vibrate = payload.get() == 1;
+        if ((fields & PREALARM) != 0) entry.prealarm = payload.get() == 1;
+        if ((fields & LABEL) != 0) entry.label = readString();
+        if ((fields & ALERT) != 0) entry.alert = readString();
+        if ((fields & STATE) != 0) entry.state = readString();
+    }
+
+    private void writeString(String string) {
+        if (string == null) {
+            payload.putShort((short) -1);
+        } else {
+            byte[] bytes = string.getBytes(UTF_8);
+            payload.putShort((short) bytes.length);
+            payload.put(bytes);
+        }
+    }
+
+    private String readString() {
+        int length = payload.getShort();
+        if (length < 0) return null;
+        String string = new String(payload.array(), payload.position(), length, UTF_8);
+        payload.position(payload.position() + length);
+        return string;
+    }
+}
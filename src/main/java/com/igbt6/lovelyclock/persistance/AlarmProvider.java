@@ -18,7 +18,11 @@
 package com.igbt6.lovelyclock.persistance;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -29,47 +33,127 @@ import android.text.TextUtils;
 
 import com.igbt6.lovelyclock.BuildConfig;
 import com.igbt6.lovelyclock.logger.Logger;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ObjectArrays;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class AlarmProvider extends ContentProvider {
+    /**
+     * Query parameter for {@link PersistingContainerFactory.Columns#ALARM_TIME},
+     * only alarms which fire at or after this time are returned
+     */
+    public static final String QUERY_PARAMETER_FROM = "from";
+    /**
+     * Query parameter for {@link PersistingContainerFactory.Columns#ALARM_TIME},
+     * only alarms which fire before this time are returned
+     */
+    public static final String QUERY_PARAMETER_TO = "to";
+
     private AlarmDatabaseHelper mOpenHelper;
 
+    /**
+     * True while the calling thread executes a batch. Changes are notified
+     * once when the batch is done.
+     */
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     private Logger log;
 
     private static final int ALARMS = 1;
     private static final int ALARMS_ID = 2;
+    private static final int ALARMS_ENABLED = 3;
     private static final UriMatcher sURLMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         sURLMatcher.addURI(BuildConfig.APPLICATION_ID + ".model", "alarm", ALARMS);
         sURLMatcher.addURI(BuildConfig.APPLICATION_ID + ".model", "alarm/#", ALARMS_ID);
+        sURLMatcher.addURI(BuildConfig.APPLICATION_ID + ".model", "alarm/enabled", ALARMS_ENABLED);
     }
 
     @Override
     public boolean onCreate() {
         log = new Logger();
         //log.addLogWriter(LogcatLogWriter.create());
-        mOpenHelper = new AlarmDatabaseHelper(getContext(), log);
+        mOpenHelper = AlarmDatabaseHelper.getInstance(getContext(), log);
         return true;
     }
 
+    /**
+     * Supports alarm, alarm/# and alarm/enabled. Time range can be limited
+     * with {@link #QUERY_PARAMETER_FROM} and {@link #QUERY_PARAMETER_TO}, e.g.
+     * alarm/enabled?from=...&to=... uses the (enabled, alarmtime) index.
+     * <p>
+     * Queries without a selection are answered from the
+     * {@link AlarmQueryCache} if possible.
+     */
     @Override
     public Cursor query(Uri url, String[] projectionIn, String selection, String[] selectionArgs, String sort) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
         // Generate the body of the query
-        Preconditions.checkArgument(sURLMatcher.match(url) == ALARMS, "Invalid URL %s", url);
+        int match = sURLMatcher.match(url);
+        Preconditions.checkArgument(match == ALARMS || match == ALARMS_ID || match == ALARMS_ENABLED, "Invalid URL %s", url);
         qb.setTables("alarms");
+        if (match == ALARMS_ID) {
+            qb.appendWhere(PersistingContainerFactory.Columns._ID + "=" + ContentUris.parseId(url));
+        } else if (match == ALARMS_ENABLED) {
+            qb.appendWhere(PersistingContainerFactory.Columns.ENABLED + "=1");
+        }
+
+        Long from = timeParameter(url, QUERY_PARAMETER_FROM);
+        Long to = timeParameter(url, QUERY_PARAMETER_TO);
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (TextUtils.isEmpty(selection)) {
+            Long id = match == ALARMS_ID ? ContentUris.parseId(url) : null;
+            Cursor cached = mOpenHelper.getQueryCache().query(db, id, match == ALARMS_ENABLED, from, to, projectionIn, sort);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), url);
+                return cached;
+            }
+        }
+
+        List<String> where = new ArrayList<String>(3);
+        List<String> whereArgs = new ArrayList<String>(2);
+        if (from != null) {
+            where.add(PersistingContainerFactory.Columns.ALARM_TIME + ">=?");
+            whereArgs.add(Long.toString(from));
+        }
+        if (to != null) {
+            where.add(PersistingContainerFactory.Columns.ALARM_TIME + "<?");
+            whereArgs.add(Long.toString(to));
+        }
+        if (!where.isEmpty()) {
+            if (!TextUtils.isEmpty(selection)) {
+                where.add("(" + selection + ")");
+            }
+            selection = Joiner.on(" AND ").join(where);
+            String[] rangeArgs = whereArgs.toArray(new String[whereArgs.size()]);
+            selectionArgs = selectionArgs == null ? rangeArgs : ObjectArrays.concat(rangeArgs, selectionArgs, String.class);
+        }
+
         Cursor ret;
         try {
             ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
         } catch (SQLException e) {
             log.e("query failed because of " + e.getMessage() + ", recreating DB");
-            db.execSQL("DROP TABLE IF EXISTS alarms");
-            // I know this is not nice to call onCreate() by ourselves :-)
-            mOpenHelper.onCreate(db);
+            AlarmQueryCache cache = mOpenHelper.getQueryCache();
+            cache.beginWrite();
+            try {
+                db.execSQL("DROP TABLE IF EXISTS alarms");
+                // I know this is not nice to call onCreate() by ourselves :-)
+                mOpenHelper.onCreate(db);
+            } finally {
+                cache.endWrite();
+            }
             ret = qb.query(db, projectionIn, selection, selectionArgs, null, null, sort);
         }
         if (ret != null) {
@@ -79,11 +163,26 @@ public class AlarmProvider extends ContentProvider {
         return ret;
     }
 
+    /**
+     * @return value of the time parameter or null if it is not present
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    private static Long timeParameter(Uri url, String name) {
+        String value = url.getQueryParameter(name);
+        if (value == null) return null;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value + " in " + url);
+        }
+    }
+
     @Override
     public String getType(Uri url) {
         int match = sURLMatcher.match(url);
         switch (match) {
             case ALARMS:
+            case ALARMS_ENABLED:
                 return "vnd.android.cursor.dir/alarms";
             case ALARMS_ID:
                 return "vnd.android.cursor.item/alarms";
@@ -98,17 +197,30 @@ public class AlarmProvider extends ContentProvider {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String segment = url.getPathSegments().get(1);
         long rowId = Long.parseLong(segment);
-        int count = db.update("alarms", values, "_id=" + rowId, null);
-        log.d("*** notifyChange() rowId: " + rowId + " url " + url);
-        getContext().getContentResolver().notifyChange(url, null);
+        AlarmQueryCache cache = mOpenHelper.getQueryCache();
+        int count;
+        cache.beginWrite();
+        try {
+            count = db.update("alarms", values, "_id=" + rowId, null);
+        } finally {
+            cache.endWrite();
+        }
+        notifyChange(url);
         return count;
     }
 
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
         Preconditions.checkArgument(sURLMatcher.match(url) == ALARMS, "Invalid URL %s", url);
-        Uri newUrl = mOpenHelper.commonInsert(initialValues);
-        getContext().getContentResolver().notifyChange(newUrl, null);
+        AlarmQueryCache cache = mOpenHelper.getQueryCache();
+        Uri newUrl;
+        cache.beginWrite();
+        try {
+            newUrl = mOpenHelper.commonInsert(initialValues);
+        } finally {
+            cache.endWrite();
+        }
+        notifyChange(newUrl);
         return newUrl;
     }
 
@@ -117,15 +229,81 @@ public class AlarmProvider extends ContentProvider {
         Preconditions.checkArgument(sURLMatcher.match(url) == ALARMS_ID, "Invalid URL %s", url);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        AlarmQueryCache cache = mOpenHelper.getQueryCache();
         final int count;
         String segment = url.getPathSegments().get(1);
-        if (TextUtils.isEmpty(where)) {
-            count = db.delete("alarms", "_id=" + segment, whereArgs);
-        } else {
-            count = db.delete("alarms", "_id=" + segment + " AND (" + where + ")", whereArgs);
+        cache.beginWrite();
+        try {
+            if (TextUtils.isEmpty(where)) {
+                count = db.delete("alarms", "_id=" + segment, whereArgs);
+            } else {
+                count = db.delete("alarms", "_id=" + segment + " AND (" + where + ")", whereArgs);
+            }
+        } finally {
+            cache.endWrite();
         }
 
-        getContext().getContentResolver().notifyChange(url, null);
+        notifyChange(url);
         return count;
     }
+
+    /**
+     * Applies all operations in one transaction. Observers are notified once
+     * after the commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        AlarmQueryCache cache = mOpenHelper.getQueryCache();
+        ContentProviderResult[] results;
+        mInBatch.set(true);
+        cache.beginWrite();
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.endWrite();
+            mInBatch.set(false);
+        }
+        // a batch which was rolled back did not change anything
+        notifyChange(PersistingContainerFactory.Columns.CONTENT_URI);
+        return results;
+    }
+
+    /**
+     * Inserts all rows in one transaction. Observers are notified once
+     * after the commit.
+     */
+    @Override
+    public int bulkInsert(Uri url, ContentValues[] values) {
+        Preconditions.checkArgument(sURLMatcher.match(url) == ALARMS, "Invalid URL %s", url);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        AlarmQueryCache cache = mOpenHelper.getQueryCache();
+        cache.beginWrite();
+        db.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                mOpenHelper.commonInsert(row);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.endWrite();
+        }
+        notifyChange(url);
+        return values.length;
+    }
+
+    /**
+     * Notifies observers now or, during a batch, when the batch is done
+     */
+    private void notifyChange(Uri url) {
+        if (!mInBatch.get()) {
+            log.d("*** notifyChange() url " + url);
+            getContext().getContentResolver().notifyChange(url, null);
+        }
+    }
 }
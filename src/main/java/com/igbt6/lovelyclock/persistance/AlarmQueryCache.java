@@ -0,0 +1,275 @@
+package com.igbt6.lovelyclock.persistance;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the alarms table for {@link AlarmProvider}. The first
+ * query after a write reads all rows into a snapshot, following queries are
+ * answered from it with a {@link MatrixCursor}.
+ * <p>
+ * Writers enclose every write in {@link #beginWrite()} and
+ * {@link #endWrite()}, the end after the transaction is committed or rolled
+ * back. Both increment the version and thus invalidate the snapshot. Queries
+ * in between go to the database, so a snapshot is neither served nor loaded
+ * while a write may be committed. A snapshot loaded while a write begins
+ * carries the old version and is reloaded on the next query.
+ * <p>
+ * Queries with a selection, an unknown column or sort order are not cached.
+ * Tables with more than {@link #MAX_ROWS} rows are not cached either.
+ * <p>
+ * Thread safe.
+ */
+public class AlarmQueryCache {
+    private static final String TABLE = "alarms";
+    private static final int MAX_ROWS = 1000;
+    private static final String[] COLUMNS = PersistingContainerFactory.Columns.ALARM_QUERY_COLUMNS;
+    private static final int ID = PersistingContainerFactory.Columns.ALARM_ID_INDEX;
+    private static final int HOUR = PersistingContainerFactory.Columns.ALARM_HOUR_INDEX;
+    private static final int MINUTES = PersistingContainerFactory.Columns.ALARM_MINUTES_INDEX;
+    private static final int ALARM_TIME = PersistingContainerFactory.Columns.ALARM_TIME_INDEX;
+    private static final int ENABLED = PersistingContainerFactory.Columns.ALARM_ENABLED_INDEX;
+    /** column name to the index in {@link #COLUMNS} */
+    private static final Map<String, Integer> COLUMN_INDEXES = columnIndexes();
+    private static final int[] ALL_INDEXES = indexes(COLUMNS);
+
+    private static final Comparator<Object[]> DEFAULT_ORDER = new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] lhs, Object[] rhs) {
+            int byHour = compareLongs(lhs[HOUR], rhs[HOUR]);
+            return byHour != 0 ? byHour : compareLongs(lhs[MINUTES], rhs[MINUTES]);
+        }
+    };
+
+    private static final Comparator<Object[]> ALARM_TIME_ORDER = new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] lhs, Object[] rhs) {
+            return compareLongs(lhs[ALARM_TIME], rhs[ALARM_TIME]);
+        }
+    };
+
+    /**
+     * All rows of the table at a version, rows is null if there were too
+     * many to cache
+     */
+    private static class Snapshot {
+        private final long version;
+        private final List<Object[]> rows;
+
+        private Snapshot(long version, List<Object[]> rows) {
+            this.version = version;
+            this.rows = rows;
+        }
+    }
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile Snapshot snapshot;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger bypasses = new AtomicInteger();
+
+    /**
+     * Must be called before every write to the alarms table. Writes can be
+     * nested, e.g. statements in a transaction.
+     */
+    public void beginWrite() {
+        writers.incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Must be called after the write was committed or rolled back, also if
+     * it failed
+     */
+    public void endWrite() {
+        version.incrementAndGet();
+        writers.decrementAndGet();
+    }
+
+    /**
+     * @param id         only the alarm with this id or null for all
+     * @param enabled    only enabled alarms
+     * @param from       only alarms which fire at or after this time or null
+     * @param to         only alarms which fire before this time or null
+     * @param projection columns or null for all
+     * @param sort       null, {@link PersistingContainerFactory.Columns#DEFAULT_SORT_ORDER}
+     *                   or alarmtime ASC
+     * @return cursor with matching rows or null if the query can not be
+     * answered from the cache
+     */
+    @Nullable
+    public Cursor query(SQLiteDatabase db, @Nullable Long id, boolean enabled, @Nullable Long from, @Nullable Long to,
+                        @Nullable String[] projection, @Nullable String sort) {
+        Comparator<Object[]> order;
+        if (sort == null) {
+            order = null;
+        } else if (sort.equals(PersistingContainerFactory.Columns.DEFAULT_SORT_ORDER)) {
+            order = DEFAULT_ORDER;
+        } else if (sort.equals(PersistingContainerFactory.Columns.ALARM_TIME + " ASC")) {
+            order = ALARM_TIME_ORDER;
+        } else {
+            bypasses.incrementAndGet();
+            return null;
+        }
+
+        String[] columns = projection == null ? COLUMNS : projection;
+        int[] indexes = projection == null ? ALL_INDEXES : indexes(projection);
+        if (indexes == null) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+
+        List<Object[]> rows = rows(db);
+        if (rows == null) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+
+        List<Object[]> matching = new ArrayList<Object[]>();
+        for (Object[] row : rows) {
+            Long time = asLong(row[ALARM_TIME]);
+            if (id != null && !id.equals(asLong(row[ID]))) continue;
+            if (enabled && !Long.valueOf(1).equals(asLong(row[ENABLED]))) continue;
+            if (from != null && (time == null || time < from)) continue;
+            if (to != null && (time == null || time >= to)) continue;
+            matching.add(row);
+        }
+        if (order != null) {
+            Collections.sort(matching, order);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, matching.size());
+        for (Object[] row : matching) {
+            Object[] values = new Object[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                values[i] = row[indexes[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return how many queries were answered from a valid snapshot
+     */
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many queries had to load a new snapshot
+     */
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many queries could not be answered from the cache
+     */
+    public int getBypassCount() {
+        return bypasses.get();
+    }
+
+    /**
+     * @return rows of the current version, loaded if needed, or null if a
+     * write is in progress or the table is too large to be cached
+     */
+    @Nullable
+    private List<Object[]> rows(SQLiteDatabase db) {
+        // read before the load, a write during the load makes the snapshot stale
+        long current = version.get();
+        if (writers.get() > 0) return null;
+        Snapshot cached = snapshot;
+        if (cached != null && cached.version == current) {
+            if (cached.rows != null) {
+                hits.incrementAndGet();
+            }
+            return cached.rows;
+        }
+
+        misses.incrementAndGet();
+        Cursor cursor = db.query(TABLE, COLUMNS, null, null, null, null, null);
+        try {
+            List<Object[]> rows = null;
+            if (cursor.getCount() <= MAX_ROWS) {
+                rows = new ArrayList<Object[]>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    rows.add(read(cursor));
+                }
+                rows = Collections.unmodifiableList(rows);
+            }
+            snapshot = new Snapshot(current, rows);
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Map<String, Integer> columnIndexes() {
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            indexes.put(COLUMNS[i], i);
+        }
+        return Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * @return indexes of the columns in {@link #COLUMNS} or null if one of
+     * them is unknown
+     */
+    @Nullable
+    private static int[] indexes(String[] columns) {
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Integer index = COLUMN_INDEXES.get(columns[i]);
+            if (index == null) return null;
+            indexes[i] = index;
+        }
+        return indexes;
+    }
+
+    private static Object[] read(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+            }
+        }
+        return row;
+    }
+
+    private static Long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    private static int compareLongs(Object lhs, Object rhs) {
+        long l = lhs instanceof Number ? ((Number) lhs).longValue() : Long.MIN_VALUE;
+        long r = rhs instanceof Number ? ((Number) rhs).longValue() : Long.MIN_VALUE;
+        return l < r ? -1 : (l == r ? 0 : 1);
+    }
+}
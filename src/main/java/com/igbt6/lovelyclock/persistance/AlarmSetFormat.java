@@ -0,0 +1,230 @@
+package com.igbt6.lovelyclock.persistance;
+
+import com.igbt6.lovelyclock.interfaces.ImmutableAlarmEditor;
+import com.igbt6.lovelyclock.model.AlarmChangeData;
+import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Consumer;
+
+/**
+ * Line oriented format for sets of alarms. The first line is
+ * {@link #HEADER}, then there is one line per alarm with tab separated
+ * fields:
+ * <pre>
+ * hour  minutes  daysOfWeek  enabled  vibrate  prealarm  label  alert
+ * 7     30       31          1        1        0         Work   content://...
+ * </pre>
+ * Booleans are 0 or 1, days of week are coded like in the database. Tabs,
+ * line breaks and backslashes in the label and the alert are escaped with a
+ * backslash. Empty lines and lines starting with # are ignored.
+ * <p>
+ * Both reading and writing are streaming, one line at a time, so the size of
+ * the set is not limited by memory.
+ */
+public class AlarmSetFormat {
+    public static final String HEADER = "# LovelyClock alarms 1";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FIELDS = 8;
+
+    /**
+     * Callback of the editors returned by {@link Reader#read()}, they are
+     * not bound to an alarm
+     */
+    private static final Consumer<AlarmChangeData> NOT_BOUND = new Consumer<AlarmChangeData>() {
+        @Override
+        public void accept(@NonNull AlarmChangeData alarmChangeData) throws Exception {
+            throw new IllegalStateException("Alarm read from a set is not bound to an alarm");
+        }
+    };
+
+    public static class Reader implements Closeable {
+        private final BufferedReader reader;
+        private int lineNumber;
+
+        public Reader(InputStream in) {
+            this.reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        }
+
+        /**
+         * @return next alarm, without an id and a callback, or null at the end
+         * of the stream
+         * @throws IOException if reading fails or the line is malformed
+         */
+        public ImmutableAlarmEditor read() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && !HEADER.equals(line)) {
+                    throw new IOException("Not an alarm set, first line is not " + HEADER);
+                }
+                if (line.length() != 0 && !line.startsWith("#")) {
+                    return parse(line);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return number of the last line which was read
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private ImmutableAlarmEditor parse(String line) throws IOException {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != FIELDS) {
+                throw new IOException("Line " + lineNumber + ": expected " + FIELDS + " fields, found " + fields.length);
+            }
+            try {
+                return ImmutableAlarmEditor.builder()
+                        .id(-1)
+                        .hour(range(Integer.parseInt(fields[0]), 0, 23))
+                        .minutes(range(Integer.parseInt(fields[1]), 0, 59))
+                        .daysOfWeek(ImmutableDaysOfWeek.of(range(Integer.parseInt(fields[2]), 0, 127)))
+                        .isEnabled(bool(fields[3]))
+                        .isVibrate(bool(fields[4]))
+                        .isPrealarm(bool(fields[5]))
+                        .label(unescape(fields[6]))
+                        .alertString(unescape(fields[7]))
+                        .callback(NOT_BOUND)
+                        .build();
+            } catch (IllegalArgumentException e) {
+                // also NumberFormatException
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public static class Writer implements Closeable, Flushable {
+        private final BufferedWriter writer;
+
+        public Writer(OutputStream out) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            writer.write(HEADER);
+            writer.write('\n');
+        }
+
+        public void write(AlarmChangeData alarm) throws IOException {
+            writer.write(Integer.toString(alarm.getHour()));
+            writer.write('\t');
+            writer.write(Integer.toString(alarm.getMinutes()));
+            writer.write('\t');
+            writer.write(Integer.toString(alarm.getDaysOfWeek().getCoded()));
+            writer.write('\t');
+            writer.write(alarm.isEnabled() ? '1' : '0');
+            writer.write('\t');
+            writer.write(alarm.isVibrate() ? '1' : '0');
+            writer.write('\t');
+            writer.write(alarm.isPrealarm() ? '1' : '0');
+            writer.write('\t');
+            writer.write(escape(alarm.getLabel()));
+            writer.write('\t');
+            writer.write(escape(alarm.alertString()));
+            writer.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static int range(int value, int min, int max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(value + " is not in [" + min + ", " + max + "]");
+        }
+        return value;
+    }
+
+    private static boolean bool(String field) {
+        if ("1".equals(field)) return true;
+        if ("0".equals(field)) return false;
+        throw new IllegalArgumentException(field + " is not 0 or 1");
+    }
+
+    static String escape(String value) {
+        if (value == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package com.igbt6.lovelyclock.persistance;
+
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.model.AlarmContainer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link AlarmContainer.Persistence} which hands all writes over to a single
+ * I/O thread, so that the threads which change the containers (the stripes
+ * of the {@link com.igbt6.lovelyclock.model.ExecutorHandlerFactory} the
+ * AlarmCores run on) never wait for the database. Writes are executed in the
+ * order in which they were submitted, so the last version of a container
+ * always wins.
+ * <p>
+ * Durability: a write is only durable once the I/O thread has executed it.
+ * Queued writes are lost if the process dies before that, and the alarm
+ * starts from the previously written state on the next start.
+ * <p>
+ * {@link #awaitWrites(long, TimeUnit)} waits until the queued writes are
+ * executed. It is only called by tests, there is no shutdown path in the app
+ * which waits for the writes.
+ */
+public class AsyncPersistence implements AlarmContainer.Persistence {
+    private final AlarmContainer.Persistence delegate;
+    private final ExecutorService executor;
+
+    public AsyncPersistence(AlarmContainer.Persistence delegate) {
+        this(delegate, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AlarmPersistence");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param executor must execute tasks one by one in submission order
+     */
+    public AsyncPersistence(AlarmContainer.Persistence delegate, ExecutorService executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public void persist(final AlarmContainer container) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delegate.persist(container);
+                } catch (RuntimeException e) {
+                    Logger.getDefaultLogger().e("Failed to persist " + container.getId(), e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void persistAll(Collection<AlarmContainer> containers) {
+        final List<AlarmContainer> copy = new ArrayList<AlarmContainer>(containers);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delegate.persistAll(copy);
+                } catch (RuntimeException e) {
+                    Logger.getDefaultLogger().e("Failed to persist " + copy.size() + " alarms", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void delete(final AlarmContainer container) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delegate.delete(container);
+                } catch (RuntimeException e) {
+                    Logger.getDefaultLogger().e("Failed to delete " + container.getId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Flushes the delegate after the writes which were submitted so far. Does
+     * not block, see {@link #awaitWrites(long, TimeUnit)}.
+     */
+    @Override
+    public void flush() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delegate.flush();
+            }
+        });
+    }
+
+    /**
+     * Blocks until all writes which were submitted before this call are
+     * executed.
+     *
+     * @return false if the writes were not done within the timeout
+     */
+    public boolean awaitWrites(long timeout, TimeUnit unit) throws InterruptedException {
+        Future<?> barrier = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                //NOP
+            }
+        });
+        try {
+            barrier.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Executes the writes which were submitted so far and stops the I/O thread.
+     * Writes submitted afterwards are rejected.
+     *
+     * @return false if the writes were not done within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -1,23 +1,16 @@
 package com.igbt6.lovelyclock.persistance;
 
-import android.content.ContentResolver;
 import android.database.Cursor;
 
+import com.igbt6.lovelyclock.logger.Logger;
 import com.igbt6.lovelyclock.model.AlarmContainer;
 import com.igbt6.lovelyclock.model.ContainerFactory;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
-import org.reactivestreams.Publisher;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
-import io.reactivex.Flowable;
-import io.reactivex.Single;
-import io.reactivex.SingleEmitter;
-import io.reactivex.SingleOnSubscribe;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.ObservableOnSubscribe;
+import io.reactivex.Scheduler;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.functions.Function;
 
@@ -26,52 +19,56 @@ import io.reactivex.functions.Function;
  */
 
 public class DatabaseQuery {
-    private final ContentResolver contentResolver;
+    private final AlarmDao dao;
     private final ContainerFactory factory;
+    private final Scheduler readScheduler;
+    private final Scheduler resultScheduler;
 
-    public DatabaseQuery(ContentResolver contentResolver, ContainerFactory factory) {
-        this.contentResolver = contentResolver;
+    /**
+     * @param readScheduler   rows are read here
+     * @param resultScheduler containers are emitted here
+     */
+    public DatabaseQuery(AlarmDao dao, ContainerFactory factory, Scheduler readScheduler, Scheduler resultScheduler) {
+        this.dao = dao;
         this.factory = factory;
+        this.readScheduler = readScheduler;
+        this.resultScheduler = resultScheduler;
     }
 
-    public Single<List<AlarmContainer>> query() {
-
-        return Single
-                .create(new SingleOnSubscribe<Cursor>() {
-                    @Override
-                    public void subscribe(@NonNull SingleEmitter<Cursor> e) throws Exception {
-                        final Cursor cursor = contentResolver
-                                .query(PersistingContainerFactory.Columns.CONTENT_URI, PersistingContainerFactory.Columns.ALARM_QUERY_COLUMNS, null, null, PersistingContainerFactory.Columns.DEFAULT_SORT_ORDER);
-                        e.onSuccess(Preconditions.checkNotNull(cursor));
-                    }
-                })
-                .retryWhen(new Function<Flowable<Throwable>, Publisher<?>>() {
+    /**
+     * Emits the containers while the rows are read. Enabled alarms come
+     * first, earliest first, so that they can be scheduled before the rest
+     * is read. Completes after the last row or, if reading fails, after the
+     * rows which could be read.
+     */
+    public Observable<AlarmContainer> stream() {
+        return Observable
+                .create(new ObservableOnSubscribe<AlarmContainer>() {
                     @Override
-                    public Publisher<?> apply(@NonNull Flowable<Throwable> errors) throws Exception {
-                        return errors
-                                //retry 120 times
-                                .take(120)
-                                //every half a second
-                                .delay(500, TimeUnit.MILLISECONDS);
+                    public void subscribe(@NonNull ObservableEmitter<AlarmContainer> e) throws Exception {
+                        emitAll(Preconditions.checkNotNull(dao.queryAll(true)), e);
+                        emitAll(Preconditions.checkNotNull(dao.queryAll(false)), e);
+                        e.onComplete();
                     }
                 })
-                .map(new Function<Cursor, List<AlarmContainer>>() {
+                .onErrorResumeNext(new Function<Throwable, Observable<AlarmContainer>>() {
                     @Override
-                    public List<AlarmContainer> apply(@NonNull Cursor cursor) throws Exception {
-                        List<AlarmContainer> alarms = new ArrayList<AlarmContainer>();
-                        try {
-                            if (cursor.moveToFirst()) {
-                                do {
-                                    alarms.add(factory.create(cursor));
-                                } while (cursor.moveToNext());
-                            }
-                        } finally {
-                            cursor.close();
-                        }
-                        return alarms;
+                    public Observable<AlarmContainer> apply(@NonNull Throwable throwable) throws Exception {
+                        Logger.getDefaultLogger().e("Reading alarms failed", throwable);
+                        return Observable.empty();
                     }
                 })
-                //emit an empty list if it all fails
-                .onErrorResumeNext(Single.just(Lists.<AlarmContainer>newArrayList()));
+                .subscribeOn(readScheduler)
+                .observeOn(resultScheduler);
+    }
+
+    private void emitAll(Cursor cursor, ObservableEmitter<AlarmContainer> emitter) {
+        try {
+            while (cursor.moveToNext() && !emitter.isDisposed()) {
+                emitter.onNext(factory.create(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
     }
 }
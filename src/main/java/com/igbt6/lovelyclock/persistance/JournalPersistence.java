@@ -0,0 +1,103 @@
+package com.igbt6.lovelyclock.persistance;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
+import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistence which writes alarms to an {@link AlarmJournal} instead of the
+ * database. Can be used as the delegate of {@link AsyncPersistence} in place
+ * of {@link PersistingContainerFactory}, so that the journal is only touched
+ * by the I/O thread.
+ */
+public class JournalPersistence implements AlarmContainer.Persistence {
+    private final AlarmJournal journal;
+
+    public JournalPersistence(AlarmJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Creates containers for all alarms in the journal
+     *
+     * @param persistence which the containers will use, they are marked as
+     *                    persisted in it
+     */
+    public List<AlarmContainer> load(WriteBehindPersistence persistence) {
+        List<AlarmContainer> containers = new ArrayList<AlarmContainer>(journal.entries().size());
+        for (AlarmJournal.Entry entry : journal.entries().values()) {
+            AlarmContainer container = ImmutableAlarmContainer.builder()
+                    .id(entry.id)
+                    .isEnabled(entry.enabled)
+                    .hour(entry.hour)
+                    .minutes(entry.minutes)
+                    .daysOfWeek(ImmutableDaysOfWeek.of(entry.daysOfWeek))
+                    .isVibrate(entry.vibrate)
+                    .isPrealarm(entry.prealarm)
+                    .nextTime(entry.nextTime)
+                    .label(entry.label == null ? "" : entry.label)
+                    .alertString(entry.alert)
+                    .state(entry.state)
+                    .persistence(persistence)
+                    .build();
+            persistence.markPersisted(container);
+            containers.add(container);
+        }
+        return containers;
+    }
+
+    @Override
+    public void persist(AlarmContainer container) {
+        try {
+            journal.put(entry(container));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + container, e);
+        }
+    }
+
+    @Override
+    public void persistAll(Collection<AlarmContainer> containers) {
+        for (AlarmContainer container : containers) {
+            persist(container);
+        }
+    }
+
+    @Override
+    public void delete(AlarmContainer container) {
+        try {
+            journal.delete(container.getId());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + container, e);
+        }
+    }
+
+    /**
+     * Records are in the page cache as soon as they are appended, nothing to
+     * do here
+     */
+    @Override
+    public void flush() {
+        //NOP
+    }
+
+    private static AlarmJournal.Entry entry(AlarmContainer container) {
+        AlarmJournal.Entry entry = new AlarmJournal.Entry();
+        entry.id = container.getId();
+        entry.hour = container.getHour();
+        entry.minutes = container.getMinutes();
+        entry.daysOfWeek = container.getDaysOfWeek().getCoded();
+        entry.nextTime = container.getNextTime();
+        entry.enabled = container.isEnabled();
+        entry.vibrate = container.isVibrate();
+        entry.prealarm = container.isPrealarm();
+        entry.label = container.getLabel();
+        entry.alert = container.alertString();
+        entry.state = container.getState();
+        return entry;
+    }
+}
@@ -1,8 +1,5 @@
 package com.igbt6.lovelyclock.persistance;
 
-import android.content.ContentUris;
-import android.content.ContentValues;
-import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
@@ -15,6 +12,7 @@ import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
 import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
 
 import java.util.Calendar;
+import java.util.Collection;
 
 /**
  * Active record container for all alarm data.
@@ -22,8 +20,18 @@ import java.util.Calendar;
  * @author Yuriy
  */
 public class PersistingContainerFactory implements ContainerFactory, AlarmContainer.Persistence {
+    /**
+     * Ids for new alarms are reserved in blocks, so that most new alarms get
+     * an id without a database write
+     */
+    private static final int ID_BLOCK_SIZE = 16;
     private final Calendars calendars;
-    private final Context mContext;
+    private final AlarmDao dao;
+    private final AsyncPersistence async;
+    private final WriteBehindPersistence writeBehind;
+    /** guarded by this, alarms are created on the main thread and by imports */
+    private int nextId;
+    private int idBlockEnd;
 
     // ////////////////////////////
     // Column definitions
@@ -34,6 +42,11 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
          */
         public static final Uri CONTENT_URI = Uri.parse("content://" + BuildConfig.APPLICATION_ID + ".model/alarm");
 
+        /**
+         * The content:// style URL for enabled alarms
+         */
+        public static final Uri CONTENT_ENABLED_URI = Uri.withAppendedPath(CONTENT_URI, "enabled");
+
         /**
          * Hour in 24-hour localtime 0 - 23.
          * <p>
@@ -122,6 +135,12 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
         public static final String[] ALARM_QUERY_COLUMNS = {_ID, HOUR, MINUTES, DAYS_OF_WEEK, ALARM_TIME, ENABLED,
                 VIBRATE, MESSAGE, ALERT, PREALARM, STATE};
 
+        /**
+         * Columns which are needed to show an alarm in a list
+         */
+        public static final String[] ALARM_LIST_COLUMNS = {_ID, HOUR, MINUTES, DAYS_OF_WEEK, ALARM_TIME, ENABLED,
+                MESSAGE};
+
         /**
          * These save calls to cursor.getColumnIndexOrThrow() THEY MUST BE KEPT
          * IN SYNC WITH ABOVE QUERY COLUMNS
@@ -139,9 +158,12 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
         public static final int ALARM_STATE_INDEX = 10;
     }
 
-    public PersistingContainerFactory(Calendars calendars, Context context) {
+    public PersistingContainerFactory(Calendars calendars, AlarmDao dao) {
         this.calendars = calendars;
-        this.mContext = context;
+        this.dao = dao;
+        // containers -> write-behind -> I/O thread -> dao
+        this.async = new AsyncPersistence(this);
+        this.writeBehind = new WriteBehindPersistence(async);
     }
 
     @Override
@@ -156,9 +178,7 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
                 .isPrealarm(c.getInt(Columns.ALARM_PREALARM_INDEX) == 1)
                 .state(c.getString(Columns.ALARM_STATE_INDEX));
 
-        Calendar nextTime = calendars.now();
-        nextTime.setTimeInMillis(c.getLong(Columns.ALARM_TIME_INDEX));
-        builder.nextTime(nextTime);
+        builder.nextTime(c.getLong(Columns.ALARM_TIME_INDEX));
 
         String nullableLabel = c.getString(Columns.ALARM_MESSAGE_INDEX);
         if (nullableLabel == null) {
@@ -169,18 +189,36 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
 
         builder.alertString(c.getString(Columns.ALARM_ALERT_INDEX));
 
-        builder.persistence(this);
+        builder.persistence(writeBehind);
 
-        return builder.build();
+        AlarmContainer container = builder.build();
+        // just read from the database, nothing to write
+        writeBehind.markPersisted(container);
+        return container;
     }
 
+    @Override
+    public void beginBatch() {
+        writeBehind.beginBatch();
+    }
+
+    @Override
+    public void commitBatch() {
+        writeBehind.commitBatch();
+    }
+
+    /**
+     * Creates a container with a reserved id. The row is inserted when the
+     * alarm is committed for the first time, see
+     * {@link WriteBehindPersistence#markNew(AlarmContainer)}.
+     */
     @Override
     public AlarmContainer create() {
         Calendar now = calendars.now();
-        ImmutableAlarmContainer defaultContainer = ImmutableAlarmContainer.builder()
-                .id(-1)
+        AlarmContainer container = ImmutableAlarmContainer.builder()
+                .id(nextId())
                 .isEnabled(false)
-                .nextTime(now)
+                .nextTime(now.getTimeInMillis())
                 .hour(now.get(Calendar.HOUR_OF_DAY))
                 .minutes(now.get(Calendar.MINUTE))
                 .isVibrate(true)
@@ -189,46 +227,58 @@ public class PersistingContainerFactory implements ContainerFactory, AlarmContai
                 .isPrealarm(false)
                 .label("")
                 .state("")
-                .persistence(AlarmContainer.PERSISTENCE_STUB)
+                .persistence(writeBehind)
                 .build();
+        writeBehind.markNew(container);
+        return container;
+    }
+
+    private synchronized int nextId() {
+        if (nextId == idBlockEnd) {
+            nextId = dao.reserveIds(ID_BLOCK_SIZE);
+            idBlockEnd = nextId + ID_BLOCK_SIZE;
+        }
+        return nextId++;
+    }
+
+    /**
+     * @return persistence which is used by the created containers
+     */
+    public WriteBehindPersistence getWriteBehind() {
+        return writeBehind;
+    }
 
-        //generate a new id
-        Uri uri = mContext.getContentResolver().insert(Columns.CONTENT_URI, createContentValues(defaultContainer));
-        //assign the id and return an onject with it. TODO here we have an annecassary DB flush
-        return defaultContainer.withId((int) ContentUris.parseId(uri)).withPersistence(this);
+    /**
+     * @return persistence which executes the writes on the I/O thread
+     */
+    public AsyncPersistence getAsync() {
+        return async;
     }
 
     /**
-     * Persist data in the database
+     * Persist data in the database. Called on the I/O thread.
      */
     @Override
     public void persist(AlarmContainer container) {
-        ContentValues values = createContentValues(container);
-        Uri uriWithAppendedId = ContentUris.withAppendedId(PersistingContainerFactory.Columns.CONTENT_URI, container.getId());
-        mContext.getContentResolver().update(uriWithAppendedId, values, null, null);
+        dao.upsert(container);
     }
 
-    private ContentValues createContentValues(AlarmContainer container) {
-        ContentValues values = new ContentValues(12);
-        // id
-        values.put(Columns.ENABLED, container.isEnabled());
-        values.put(Columns.HOUR, container.getHour());
-        values.put(Columns.MINUTES, container.getMinutes());
-        values.put(Columns.DAYS_OF_WEEK, container.getDaysOfWeek().getCoded());
-        values.put(Columns.VIBRATE, container.isVibrate());
-        values.put(Columns.MESSAGE, container.getLabel());
-        // A null alert Uri indicates a silent
-        values.put(Columns.ALERT, container.alertString());
-        values.put(Columns.PREALARM, container.isPrealarm());
-        values.put(Columns.ALARM_TIME, container.getNextTime().getTimeInMillis());
-        values.put(Columns.STATE, container.getState());
-
-        return values;
+    /**
+     * Persist data of all containers in one transaction. Called on the I/O
+     * thread.
+     */
+    @Override
+    public void persistAll(Collection<AlarmContainer> containers) {
+        dao.upsertAll(containers);
     }
 
     @Override
     public void delete(AlarmContainer container) {
-        Uri uri = ContentUris.withAppendedId(Columns.CONTENT_URI, container.getId());
-        mContext.getContentResolver().delete(uri, "", null);
+        dao.delete(container.getId());
+    }
+
+    @Override
+    public void flush() {
+        // writes are done immediately
     }
 }
@@ -0,0 +1,145 @@
+package com.igbt6.lovelyclock.persistance;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link AlarmContainer.Persistence} which only marks containers as dirty and
+ * writes the latest version of each dirty container on {@link #flush()}. A
+ * state transition changes the container several times (state, next time,
+ * enabled), this way it results in at most one write. Containers which are
+ * equal to the last written version are not written at all. If several
+ * containers are dirty, they are written with one
+ * {@link AlarmContainer.Persistence#persistAll(Collection)}. Between
+ * {@link #beginBatch()} and {@link #commitBatch()} flushes are deferred, so
+ * that changes of many alarms are written together. New containers, see
+ * {@link #markNew(AlarmContainer)}, are not written until they were committed.
+ * <p>
+ * Thread safe, containers are created while alarms are read on another thread.
+ */
+public class WriteBehindPersistence implements AlarmContainer.Persistence {
+    private final AlarmContainer.Persistence delegate;
+    /** id to latest not written container, in order of the first change */
+    private final Map<Integer, AlarmContainer> dirty = new LinkedHashMap<Integer, AlarmContainer>();
+    /** id to last written container */
+    private final Map<Integer, AlarmContainer> written = new HashMap<Integer, AlarmContainer>();
+    /** ids of new containers which were not committed yet */
+    private final Set<Integer> uncommitted = new HashSet<Integer>();
+    private int persistCount;
+    private int writeCount;
+    private int batchDepth;
+
+    public WriteBehindPersistence(AlarmContainer.Persistence delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized void persist(AlarmContainer container) {
+        persistCount++;
+        dirty.put(container.getId(), container);
+    }
+
+    @Override
+    public synchronized void persistAll(Collection<AlarmContainer> containers) {
+        for (AlarmContainer container : containers) {
+            persist(container);
+        }
+    }
+
+    @Override
+    public synchronized void delete(AlarmContainer container) {
+        dirty.remove(container.getId());
+        written.remove(container.getId());
+        if (!uncommitted.remove(container.getId())) {
+            delegate.delete(container);
+        } // else there is no row
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (batchDepth > 0) return;
+        if (!dirty.isEmpty()) {
+            List<AlarmContainer> changed = new ArrayList<AlarmContainer>(dirty.size());
+            for (AlarmContainer container : dirty.values()) {
+                if (uncommitted.contains(container.getId())) {
+                    if (container.getState().isEmpty()) continue;
+                    uncommitted.remove(container.getId());
+                }
+                if (!container.equals(written.get(container.getId()))) {
+                    changed.add(container);
+                    written.put(container.getId(), container);
+                }
+            }
+            dirty.clear();
+
+            if (changed.size() == 1) {
+                delegate.persist(changed.get(0));
+            } else if (changed.size() > 1) {
+                delegate.persistAll(changed);
+            }
+            writeCount += changed.size();
+        }
+        delegate.flush();
+    }
+
+    /**
+     * Starts a batch. Until {@link #commitBatch()} is called, {@link #flush()}
+     * does nothing. Batches can be nested.
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Commits the batch started with {@link #beginBatch()}. When the
+     * outermost batch is committed, all changes are flushed.
+     */
+    public synchronized void commitBatch() {
+        Preconditions.checkState(batchDepth > 0, "commitBatch() without beginBatch()");
+        if (--batchDepth == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Remembers that the container is already stored as it is, e.g. because
+     * it was just read or inserted.
+     */
+    public synchronized void markPersisted(AlarmContainer container) {
+        dirty.remove(container.getId());
+        written.put(container.getId(), container);
+    }
+
+    /**
+     * Remembers that the container was just created and is not stored. It is
+     * written once a version with a state is persisted, which happens when
+     * the alarm is committed for the first time.
+     */
+    public synchronized void markNew(AlarmContainer container) {
+        uncommitted.add(container.getId());
+    }
+
+    /**
+     * @return how many times a container was changed
+     */
+    public synchronized int getPersistCount() {
+        return persistCount;
+    }
+
+    /**
+     * @return how many times a container was actually written, containers
+     * written together are counted one by one
+     */
+    public synchronized int getWriteCount() {
+        return writeCount;
+    }
+}
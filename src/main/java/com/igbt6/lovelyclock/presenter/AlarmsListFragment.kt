@@ -17,6 +17,7 @@ import com.igbt6.lovelyclock.R
 import com.igbt6.lovelyclock.configuration.AlarmApplication.container
 import com.igbt6.lovelyclock.model.AlarmValue
 import io.reactivex.Observable
+import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.Disposable
 import io.reactivex.disposables.Disposables
 import java.util.*
@@ -190,6 +191,7 @@ class AlarmsListFragment : Fragment() {
 
         alarmsSub = uiStore.transitioningToNewAlarmDetails()
                 .switchMap { transitioning -> if (transitioning) Observable.never() else store.alarms() }
+                .observeOn(AndroidSchedulers.mainThread())
                 .subscribe { alarms ->
                     val sorted = alarms
                             .sortedWith(Comparators.MinuteComparator())
@@ -25,6 +25,7 @@ import com.google.common.base.Optional;
 
 import java.util.Calendar;
 
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
@@ -109,7 +110,7 @@ public class InfoFragment extends Fragment implements ViewFactory {
         remainingTime.setInAnimation(in);
         remainingTime.setOutAnimation(out);
         getActivity().registerReceiver(mTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
-        nextDisposable = store.next().subscribe(new AlarmChangedReceiver());
+        nextDisposable = store.next().observeOn(AndroidSchedulers.mainThread()).subscribe(new AlarmChangedReceiver());
         return view;
     }
 
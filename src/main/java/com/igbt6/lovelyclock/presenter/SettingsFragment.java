@@ -27,6 +27,7 @@ import static com.igbt6.lovelyclock.configuration.AlarmApplication.container;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_ALARM_IN_SILENT_MODE;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_ALARM_SNOOZE;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_AUTO_SILENCE;
+import static com.igbt6.lovelyclock.configuration.Prefs.KEY_COALESCING_WINDOW_SEC;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_DEFAULT_RINGTONE;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_FADE_IN_TIME_SEC;
 import static com.igbt6.lovelyclock.configuration.Prefs.KEY_PREALARM_DURATION;
@@ -176,6 +177,23 @@ public class SettingsFragment extends PreferenceFragment {
                     });
             dispoables.add(disposable);
         }
+        {
+            final ListPreference coalescingWindow = (ListPreference) findPreference(KEY_COALESCING_WINDOW_SEC);
+            Disposable disposable = rxSharedPreferences.getString(KEY_COALESCING_WINDOW_SEC)
+                    .asObservable()
+                    .subscribe(new Consumer<String>() {
+                        @Override
+                        public void accept(@NonNull String newValue) throws Exception {
+                            int i = Integer.parseInt(newValue);
+                            if (i == 0) {
+                                coalescingWindow.setSummary(getString(R.string.coalescing_window_off_summary));
+                            } else {
+                                coalescingWindow.setSummary(getString(R.string.coalescing_window_summary, i));
+                            }
+                        }
+                    });
+            dispoables.add(disposable);
+        }
         {
             Disposable disposable = updatePreferenceSummary(rxSharedPreferences, findPreference(KEY_DEFAULT_RINGTONE), getActivity());
             dispoables.add(disposable);
@@ -27,13 +27,17 @@ import com.igbt6.lovelyclock.model.AlarmCore;
 import com.igbt6.lovelyclock.model.Alarms;
 import com.igbt6.lovelyclock.model.AlarmsScheduler;
 import com.igbt6.lovelyclock.model.CalendarType;
+import com.igbt6.lovelyclock.model.DaysOfWeek;
 import com.igbt6.lovelyclock.util.Service;
 
+import java.util.Arrays;
+
 import static com.igbt6.lovelyclock.configuration.AlarmApplication.container;
 
 public class AlarmsService extends Service {
     /**
-     * TODO SM should report when it is done
+     * TODO SM should report when it is done. Counted from the moment when the
+     * alarms are loaded and the intent is handled.
      */
     private static final int WAKELOCK_HOLD_TIME = 5000;
     private static final int EVENT_RELEASE_WAKELOCK = 1;
@@ -67,10 +71,34 @@ public class AlarmsService extends Service {
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        if (!alarms.isReady()) {
+            log.d("Alarms are not loaded yet, queueing " + intent.getAction());
+        }
+        // alarms may still be loading after the process was started for this intent
+        alarms.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                handleIntent(intent);
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    private void handleIntent(Intent intent) {
         try {
             String action = intent.getAction();
-            if (action.equals(AlarmsScheduler.ACTION_FIRED)) {
+            if (action.equals(AlarmsScheduler.ACTION_FIRED) && intent.hasExtra(AlarmsScheduler.EXTRA_IDS)) {
+                int[] ids = intent.getIntArrayExtra(AlarmsScheduler.EXTRA_IDS);
+                int[] types = intent.getIntArrayExtra(AlarmsScheduler.EXTRA_TYPES);
+                CalendarType[] calendarTypes = new CalendarType[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    calendarTypes[i] = CalendarType.values()[types[i]];
+                }
+                alarms.onAlarmsFired(ids, calendarTypes);
+                log.d("AlarmCores fired " + Arrays.toString(ids));
+
+            } else if (action.equals(AlarmsScheduler.ACTION_FIRED)) {
                 int id = intent.getIntExtra(AlarmsScheduler.EXTRA_ID, -1);
 
                 AlarmCore alarm = alarms.getAlarm(id);
@@ -80,6 +108,9 @@ public class AlarmsService extends Service {
 
             } else if (action.equals(Intent.ACTION_BOOT_COMPLETED) || action.equals(Intent.ACTION_TIMEZONE_CHANGED)
                     || action.equals(Intent.ACTION_LOCALE_CHANGED)) {
+                if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
+                    DaysOfWeek.invalidateLabels();
+                }
                 log.d("Refreshing alarms because of " + action);
                 alarms.refresh();
 
@@ -102,7 +133,5 @@ public class AlarmsService extends Service {
         Message msg = handler.obtainMessage(EVENT_RELEASE_WAKELOCK);
         msg.obj = intent;
         handler.sendMessageDelayed(msg, WAKELOCK_HOLD_TIME);
-
-        return START_NOT_STICKY;
     }
 }
@@ -0,0 +1,125 @@
+package com.igbt6.lovelyclock.statemachine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handler of a state machine which keeps at most one message of every
+ * coalesced what in the queue. The queued message is replaced with the
+ * latest one sent after it, see {@link #latest(Message)}. Messages of other
+ * whats are passed through.
+ * <p>
+ * Messages can be sent from any thread, {@link #latest(Message)} is called
+ * by the thread which handles them.
+ */
+class CoalescingHandler implements IHandler {
+    private final IHandler handler;
+    /** what to the slot, null if the what is not coalesced */
+    private volatile Slot[] slots = new Slot[0];
+
+    /**
+     * Latest pending message of a what. The slot is not empty while a
+     * message of the what is in the queue.
+     */
+    private static class Slot extends AtomicReference<Message> {
+        private final AtomicInteger coalesced = new AtomicInteger();
+    }
+
+    CoalescingHandler(IHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @see StateMachine#setCoalescing(int, StateMachine.Coalescing)
+     */
+    void setCoalescing(int what, StateMachine.Coalescing coalescing) {
+        if (what < 0) throw new IllegalArgumentException("what must not be negative, was " + what);
+        synchronized (this) {
+            Slot[] copy = Arrays.copyOf(slots, Math.max(slots.length, what + 1));
+            copy[what] = coalescing == StateMachine.Coalescing.LATEST ? new Slot() : null;
+            slots = copy;
+        }
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        Slot slot = slot(message.what());
+        if (slot == null || slot.getAndSet(message) == null) {
+            handler.sendMessage(message);
+        } else {
+            // the queued message is replaced with this one
+            slot.coalesced.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void sendMessageAtFrontOfQueue(Message message) {
+        Slot slot = slot(message.what());
+        if (slot == null || slot.getAndSet(message) == null) {
+            handler.sendMessageAtFrontOfQueue(message);
+        } else {
+            // handled at the position of the queued one
+            slot.coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Puts a deferred message back at the front of the queue unless a newer
+     * message of the same what is pending.
+     *
+     * @return false if the message was dropped, it is not referenced by the
+     * handler anymore
+     */
+    boolean redeliver(Message message) {
+        Slot slot = slot(message.what());
+        if (slot == null || slot.compareAndSet(null, message)) {
+            handler.sendMessageAtFrontOfQueue(message);
+            return true;
+        } else {
+            slot.coalesced.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @param queued message taken from the queue
+     * @return the message which has to be handled instead of the queued one
+     */
+    Message latest(Message queued) {
+        Slot slot = slot(queued.what());
+        if (slot == null) return queued;
+        Message latest = slot.getAndSet(null);
+        return latest != null ? latest : queued;
+    }
+
+    int getCoalescedCount(int what) {
+        Slot slot = slot(what);
+        return slot == null ? 0 : slot.coalesced.get();
+    }
+
+    int getCoalescedCount() {
+        int count = 0;
+        for (Slot slot : slots) {
+            if (slot != null) {
+                count += slot.coalesced.get();
+            }
+        }
+        return count;
+    }
+
+    private Slot slot(int what) {
+        Slot[] slots = this.slots;
+        return what >= 0 && what < slots.length ? slots[what] : null;
+    }
+
+    @Override
+    public ImmutableMessage obtainMessage(int what, Object obj) {
+        return obtainMessage(what).withObj(obj);
+    }
+
+    @Override
+    public ImmutableMessage obtainMessage(int what) {
+        return ImmutableMessage.builder().what(what).handler(this).build();
+    }
+}
@@ -5,4 +5,24 @@ package com.igbt6.lovelyclock.statemachine;
  */
 public interface HandlerFactory {
     IHandler create(MessageHandler messageHandler);
+
+    /**
+     * Creates a handler which handles a message only after all messages
+     * which were sent before through other handlers of this factory. Handlers
+     * which share one queue can simply return {@link #create(MessageHandler)}.
+     */
+    IHandler createBarrier(MessageHandler messageHandler);
+
+    /**
+     * @return number of queues. Messages of the handlers which share a queue
+     * are handled one after another on the same thread.
+     */
+    int getQueueCount();
+
+    /**
+     * @param queue from 0 to {@link #getQueueCount()} - 1
+     * @return factory which creates all handlers on this queue. Factories
+     * with one queue can simply return themselves.
+     */
+    HandlerFactory onQueue(int queue);
 }
@@ -21,6 +21,30 @@ public abstract class Message {
 
     public abstract Optional<Object> obj();
 
+    /**
+     * Same as {@code arg1().or(defaultValue)}, without boxing for
+     * {@link PooledMessage}
+     */
+    public int arg1Or(int defaultValue) {
+        return arg1().or(defaultValue);
+    }
+
+    /**
+     * Same as {@code arg2().or(defaultValue)}, without boxing for
+     * {@link PooledMessage}
+     */
+    public int arg2Or(int defaultValue) {
+        return arg2().or(defaultValue);
+    }
+
+    /**
+     * Same as {@code obj().orNull()}, without an Optional for
+     * {@link PooledMessage}
+     */
+    public Object objOrNull() {
+        return obj().orNull();
+    }
+
     public void send() {
         handler().sendMessage(this);
     }
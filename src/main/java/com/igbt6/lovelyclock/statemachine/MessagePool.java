@@ -0,0 +1,51 @@
+package com.igbt6.lovelyclock.statemachine;
+
+/**
+ * Small pool of {@link PooledMessage}s of one handler. Messages can be
+ * obtained from any thread, they are recycled by the thread which handles
+ * them. Messages beyond {@link #MAX_SIZE} are left to the garbage collector.
+ */
+class MessagePool {
+    static final int MAX_SIZE = 10;
+
+    private final IHandler handler;
+    private final Object lock = new Object();
+    private PooledMessage head;
+    private int size;
+
+    MessagePool(IHandler handler) {
+        this.handler = handler;
+    }
+
+    IHandler handler() {
+        return handler;
+    }
+
+    PooledMessage obtain(int what) {
+        PooledMessage message;
+        synchronized (lock) {
+            message = head;
+            if (message != null) {
+                head = message.next;
+                message.next = null;
+                size--;
+            }
+        }
+        if (message == null) {
+            message = new PooledMessage(this);
+        }
+        message.init(what);
+        return message;
+    }
+
+    void recycle(PooledMessage message) {
+        message.clear();
+        synchronized (lock) {
+            if (size < MAX_SIZE) {
+                message.next = head;
+                head = message;
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.igbt6.lovelyclock.statemachine;
+
+import com.google.common.base.Optional;
+
+/**
+ * Recyclable {@link Message} with primitive arguments. Obtained with
+ * {@link StateMachine#obtainPooledMessage(int)}, filled with the setters and
+ * sent exactly once. After the state machine has handled the message it is
+ * returned to the pool of the state machine and must not be used anymore.
+ * Deferred messages are returned after they were handled again.
+ * <p>
+ * Accessors returning {@link Optional} are there for compatibility, prefer
+ * {@link #arg1Or(int)}, {@link #arg2Or(int)} and {@link #objOrNull()}.
+ */
+public final class PooledMessage extends Message {
+    private static final int FREE = 0;
+    private static final int OBTAINED = 1;
+    private static final int SENT = 2;
+
+    private final MessagePool pool;
+    private int state;
+
+    private int what;
+    private int arg1;
+    private int arg2;
+    private boolean hasArg1;
+    private boolean hasArg2;
+    private Object obj;
+
+    /** set while the message is in the deferred list of the state machine */
+    boolean deferred;
+
+    /** next free message in the pool */
+    PooledMessage next;
+
+    PooledMessage(MessagePool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public int what() {
+        return what;
+    }
+
+    @Override
+    public IHandler handler() {
+        return pool.handler();
+    }
+
+    @Override
+    public Optional<Integer> arg1() {
+        return hasArg1 ? Optional.of(arg1) : Optional.<Integer>absent();
+    }
+
+    @Override
+    public Optional<Integer> arg2() {
+        return hasArg2 ? Optional.of(arg2) : Optional.<Integer>absent();
+    }
+
+    @Override
+    public Optional<Object> obj() {
+        return Optional.fromNullable(obj);
+    }
+
+    @Override
+    public int arg1Or(int defaultValue) {
+        return hasArg1 ? arg1 : defaultValue;
+    }
+
+    @Override
+    public int arg2Or(int defaultValue) {
+        return hasArg2 ? arg2 : defaultValue;
+    }
+
+    @Override
+    public Object objOrNull() {
+        return obj;
+    }
+
+    public PooledMessage setArg1(int arg1) {
+        checkState(OBTAINED);
+        this.arg1 = arg1;
+        this.hasArg1 = true;
+        return this;
+    }
+
+    public PooledMessage setArg2(int arg2) {
+        checkState(OBTAINED);
+        this.arg2 = arg2;
+        this.hasArg2 = true;
+        return this;
+    }
+
+    public PooledMessage setObj(Object obj) {
+        checkState(OBTAINED);
+        this.obj = obj;
+        return this;
+    }
+
+    @Override
+    public void send() {
+        checkState(OBTAINED);
+        state = SENT;
+        pool.handler().sendMessage(this);
+    }
+
+    @Override
+    public void sendAtFront() {
+        checkState(OBTAINED);
+        state = SENT;
+        pool.handler().sendMessageAtFrontOfQueue(this);
+    }
+
+    /**
+     * Called by the state machine for a message which it handles without
+     * sending it, e.g. in {@link StateMachine#resumeNow()}
+     */
+    void markSent() {
+        checkState(OBTAINED);
+        state = SENT;
+    }
+
+    /**
+     * Called by the pool
+     */
+    void init(int what) {
+        this.what = what;
+        this.state = OBTAINED;
+    }
+
+    /**
+     * Called by the pool
+     */
+    void clear() {
+        checkState(SENT);
+        state = FREE;
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        hasArg1 = false;
+        hasArg2 = false;
+        obj = null;
+        deferred = false;
+    }
+
+    private void checkState(int expected) {
+        if (state != expected) {
+            throw new IllegalStateException(this + " is " + stateToString(state) + ", expected " + stateToString(expected));
+        }
+    }
+
+    private static String stateToString(int state) {
+        switch (state) {
+            case FREE:
+                return "recycled";
+            case OBTAINED:
+                return "not sent";
+            default:
+                return "sent";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PooledMessage{what=" + what
+                + (hasArg1 ? ", arg1=" + arg1 : "")
+                + (hasArg2 ? ", arg2=" + arg2 : "")
+                + (obj != null ? ", obj=" + obj : "")
+                + "}";
+    }
+}
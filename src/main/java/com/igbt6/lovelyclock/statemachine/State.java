@@ -58,6 +58,18 @@ public class State implements IState {
         return false;
     }
 
+    /**
+     * Used by the state machine to build its dispatch table once it is
+     * started. Messages which a state can not handle are passed to its parent
+     * without calling {@link #processMessage(Message)}.
+     *
+     * @return false if {@link #processMessage(Message)} returns NOT_HANDLED
+     * for every message with this what and does nothing else
+     */
+    public boolean mayHandle(int what) {
+        return true;
+    }
+
     /**
      * Name of State for debugging purposes.
      * <p>
@@ -24,6 +24,20 @@ import java.util.HashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class StateMachine {
+    /**
+     * What happens with a message if messages with the same what are
+     * already queued
+     */
+    public enum Coalescing {
+        /** every message is handled */
+        NONE,
+        /**
+         * only the latest of the pending messages is handled, at the position
+         * of the first one. For idempotent messages.
+         */
+        LATEST
+    }
+
     private final String mName;
 
     private final Logger log;
@@ -33,6 +47,12 @@ public class StateMachine {
      */
     private static final int SM_INIT_CMD = -2;
 
+    /** Separates the ordinals of the stack in a checkpoint */
+    private static final char CHECKPOINT_ORDINAL_SEPARATOR = '.';
+
+    /** Separates the ordinals from the name of the state in a checkpoint */
+    private static final char CHECKPOINT_NAME_SEPARATOR = ':';
+
     private SmHandler mSmHandler;
 
     private static class SmHandler implements MessageHandler {
@@ -59,11 +79,20 @@ public class StateMachine {
         /** Reference to the StateMachine */
         private StateMachine mSm;
 
-        private final IHandler handler;
+        private final CoalescingHandler handler;
+
+        /** Messages obtained with StateMachine#obtainPooledMessage */
+        private final MessagePool pool;
 
         /** The map of all of the states in the state machine */
         private final HashMap<State, StateInfo> mStateInfo = new HashMap<State, StateInfo>();
 
+        /** State names to the states, for restoring the persisted state */
+        private final HashMap<String, State> mStatesByName = new HashMap<String, State>();
+
+        /** States in the order in which they were added, see StateInfo#ordinal */
+        private final ArrayList<StateInfo> mStatesByOrdinal = new ArrayList<StateInfo>();
+
         /** The initial state that will process the first message */
         private State mInitialState;
 
@@ -88,6 +117,21 @@ public class StateMachine {
             /** True when the state has been entered and on the stack */
             public boolean active;
 
+            /** Number of states from the root to this one, 0 if not computed yet */
+            public int depth;
+
+            /** Position in which the state was added to the state machine */
+            public int ordinal;
+
+            /** See StateMachine#getCheckpoint(IState), null if not computed yet */
+            public String checkpoint;
+
+            /**
+             * what to this state or the closest ancestor which may handle the
+             * message, null if none of them does
+             */
+            public StateInfo[] dispatch;
+
             /**
              * Convert StateInfo to string
              */
@@ -105,9 +149,18 @@ public class StateMachine {
          * to a new state.
          */
         @Override
-        public final void handleMessage(Message msg) {
+        public final void handleMessage(Message queued) {
+            Message msg = handler.latest(queued);
+            if (msg != queued && queued instanceof PooledMessage) {
+                // replaced by a newer message with the same what
+                pool.recycle((PooledMessage) queued);
+            }
+
             /** Save the current message */
             mMsg = msg;
+            if (msg instanceof PooledMessage) {
+                ((PooledMessage) msg).deferred = false;
+            }
 
             if (mIsConstructionCompleted) {
                 /** Normal path */
@@ -115,11 +168,25 @@ public class StateMachine {
             } else if (!mIsConstructionCompleted && mMsg.what() == SM_INIT_CMD) {
                 /** Initial one time path. */
                 mIsConstructionCompleted = true;
-                boolean resume = msg.arg1().or(-100500) == 1;
+                boolean resume = msg.arg1Or(-100500) == 1;
                 invokeEnterMethods(0, resume);
-            } else throw new RuntimeException("StateMachine.handleMessage: "
-                    + "The start method not called, received msg: " + msg);
+                moveDeferredMessageAtFrontOfQueue();
+            } else {
+                /**
+                 * Not started yet, e.g. waiting for a restore on the handling
+                 * thread. Handled after the start.
+                 */
+                deferMessage(msg);
+                mMsg = null;
+                return;
+            }
             performTransitions();
+            mSm.onPostHandleMessage(msg);
+
+            mMsg = null;
+            if (msg instanceof PooledMessage && !((PooledMessage) msg).deferred) {
+                pool.recycle((PooledMessage) msg);
+            }
         }
 
         /**
@@ -164,18 +231,16 @@ public class StateMachine {
          * Complete the construction of the state machine.
          *
          * @param resume
+         * @param now    true to invoke the enter methods on the calling thread
          */
-        private final void completeConstruction(boolean resume) {
+        private final void completeConstruction(boolean resume, boolean now) {
             /**
              * Determine the maximum depth of the state hierarchy so we can
-             * allocate the state stacks.
+             * allocate the state stacks. Depths of the parents are reused.
              */
             int maxDepth = 0;
             for (StateInfo si : mStateInfo.values()) {
-                int depth = 0;
-                for (StateInfo i = si; i != null; depth++) {
-                    i = i.parentStateInfo;
-                }
+                int depth = depth(si);
                 if (maxDepth < depth) {
                     maxDepth = depth;
                 }
@@ -184,16 +249,107 @@ public class StateMachine {
             mStateStack = new StateInfo[maxDepth];
             mTempStateStack = new StateInfo[maxDepth];
             setupInitialStateStack();
+            compileDispatchTables(mSm.getLargestMessageWhat());
+
+            if (now) {
+                // same as handling SM_INIT_CMD, without a round trip through the queue
+                PooledMessage init = pool.obtain(SM_INIT_CMD).setArg1(resume ? 1 : 0);
+                init.markSent();
+                handleMessage(init);
+            } else {
+                /**
+                 * Sending SM_INIT_CMD message to invoke enter methods
+                 * asynchronously
+                 */
+                pool.obtain(SM_INIT_CMD)
+                        .setArg1(resume ? 1 : 0)
+                        .sendAtFront();
+            }
 
-            /**
-             * Sending SM_INIT_CMD message to invoke enter methods
-             * asynchronously
-             */
-            handler.obtainMessage(SM_INIT_CMD)
-                    .withArg1(resume ? 1 : 0)
-                    .sendAtFront();
+            if (log.isDebugEnabled()) {
+                log.d("completed construction of " + mSm.getName());
+            }
+        }
+
+        /** @see StateMachine#getCheckpoint(IState) */
+        private String getCheckpoint(State state) {
+            StateInfo si = mStateInfo.get(state);
+            if (si.checkpoint == null) {
+                StringBuilder sb = new StringBuilder();
+                for (StateInfo i = si; i != null; i = i.parentStateInfo) {
+                    if (i != si) sb.append(CHECKPOINT_ORDINAL_SEPARATOR);
+                    sb.append(i.ordinal);
+                }
+                si.checkpoint = sb.append(CHECKPOINT_NAME_SEPARATOR).append(state.getName()).toString();
+            }
+            return si.checkpoint;
+        }
+
+        /** @see StateMachine#getStateByCheckpoint(String) */
+        private State getStateByCheckpoint(String checkpoint) {
+            int nameStart = checkpoint.indexOf(CHECKPOINT_NAME_SEPARATOR);
+            if (nameStart < 0) {
+                // persisted before checkpoints were introduced
+                return getState(checkpoint);
+            }
+            StateInfo si = parseStack(checkpoint, 0, nameStart);
+            if (si != null && si.state.getName().length() == checkpoint.length() - nameStart - 1
+                    && checkpoint.startsWith(si.state.getName(), nameStart + 1)) {
+                return si.state;
+            }
+            // states were added or removed since the checkpoint was written
+            return getState(checkpoint.substring(nameStart + 1));
+        }
+
+        /**
+         * Reads the ordinals from start to end and verifies that every one is
+         * the parent of the previous one and that the last one is a root.
+         *
+         * @return the state with the first ordinal, null if the ordinals do not
+         * match the hierarchy
+         */
+        private StateInfo parseStack(String checkpoint, int start, int end) {
+            int ordinal = 0;
+            int i = start;
+            for (; i < end && Character.isDigit(checkpoint.charAt(i)); i++) {
+                ordinal = ordinal * 10 + checkpoint.charAt(i) - '0';
+                if (ordinal >= mStatesByOrdinal.size()) return null;
+            }
+            if (i == start) return null;
+            StateInfo si = mStatesByOrdinal.get(ordinal);
+            if (i == end) {
+                return si.parentStateInfo == null ? si : null;
+            }
+            if (checkpoint.charAt(i) != CHECKPOINT_ORDINAL_SEPARATOR) return null;
+            StateInfo parent = parseStack(checkpoint, i + 1, end);
+            return parent != null && si.parentStateInfo == parent ? si : null;
+        }
 
-            log.d("completed construction of " + mSm.getName());
+        private int depth(StateInfo si) {
+            if (si.depth == 0) {
+                si.depth = si.parentStateInfo == null ? 1 : depth(si.parentStateInfo) + 1;
+            }
+            return si.depth;
+        }
+
+        /**
+         * For every state and every what up to largestWhat, finds the state
+         * which is the first one to process the message. Same result as
+         * walking up the hierarchy and skipping the states which can not
+         * handle the message.
+         */
+        private void compileDispatchTables(int largestWhat) {
+            if (largestWhat < 0) return;
+            for (StateInfo si : mStateInfo.values()) {
+                si.dispatch = new StateInfo[largestWhat + 1];
+                for (int what = 0; what <= largestWhat; what++) {
+                    StateInfo handler = si;
+                    while (handler != null && !handler.state.mayHandle(what)) {
+                        handler = handler.parentStateInfo;
+                    }
+                    si.dispatch[what] = handler;
+                }
+            }
         }
 
         /**
@@ -203,8 +359,18 @@ public class StateMachine {
          */
         private final void processMsg(Message msg) {
             StateInfo curStateInfo = mStateStack[mStateStackTopIndex];
+            boolean debug = log.isDebugEnabled();
             // TODO handled/not handled
-            log.d('[' + mSm.getName() + "] " + curStateInfo.state.getName() + " <- " + msg);
+            if (debug) {
+                log.d('[' + mSm.getName() + "] " + curStateInfo.state.getName() + " <- " + msg);
+            }
+
+            int what = msg.what();
+            StateInfo[] dispatch = curStateInfo.dispatch;
+            if (dispatch != null && what >= 0 && what < dispatch.length) {
+                processMsg(msg, dispatch[what], what, debug);
+                return;
+            }
 
             while (!curStateInfo.state.processMessage(msg)) {
                 /**
@@ -218,7 +384,26 @@ public class StateMachine {
                     mSm.log.e(mSm.mName + " was not able to handle " + msg);
                     break;
                 }
-                log.d('[' + mSm.getName() + "] \\" + curStateInfo.state.getName());
+                if (debug) {
+                    log.d('[' + mSm.getName() + "] \\" + curStateInfo.state.getName());
+                }
+            }
+        }
+
+        /**
+         * Same as walking up the hierarchy, but only the states which may
+         * handle the message are visited
+         */
+        private void processMsg(Message msg, StateInfo curStateInfo, int what, boolean debug) {
+            while (curStateInfo != null && !curStateInfo.state.processMessage(msg)) {
+                StateInfo parent = curStateInfo.parentStateInfo;
+                curStateInfo = parent == null ? null : parent.dispatch[what];
+                if (debug && curStateInfo != null) {
+                    log.d('[' + mSm.getName() + "] \\" + curStateInfo.state.getName());
+                }
+            }
+            if (curStateInfo == null) {
+                mSm.log.e(mSm.mName + " was not able to handle " + msg);
             }
         }
 
@@ -265,8 +450,14 @@ public class StateMachine {
              */
             for (int i = mDeferredMessages.size() - 1; i >= 0; i--) {
                 Message curMsg = mDeferredMessages.get(i);
-                log.d(curMsg + " in " + mSm.getName());
-                handler.sendMessageAtFrontOfQueue(curMsg);
+                if (log.isDebugEnabled()) {
+                    log.d(curMsg + " in " + mSm.getName());
+                }
+                if (!handler.redeliver(curMsg) && curMsg instanceof PooledMessage) {
+                    // a newer message with the same what is pending
+                    ((PooledMessage) curMsg).deferred = false;
+                    pool.recycle((PooledMessage) curMsg);
+                }
             }
             mDeferredMessages.clear();
         }
@@ -371,7 +562,10 @@ public class StateMachine {
             StateInfo stateInfo = mStateInfo.get(state);
             if (stateInfo == null) {
                 stateInfo = new StateInfo();
+                stateInfo.ordinal = mStatesByOrdinal.size();
                 mStateInfo.put(state, stateInfo);
+                mStatesByName.put(state.getName(), state);
+                mStatesByOrdinal.add(stateInfo);
             }
 
             // Validate that we aren't adding the same state in two different
@@ -387,7 +581,8 @@ public class StateMachine {
         private SmHandler(HandlerFactory hf, StateMachine sm, Logger log) {
             mSm = sm;
             this.log = log;
-            this.handler = hf.create(this);
+            this.handler = new CoalescingHandler(hf.create(this));
+            this.pool = new MessagePool(handler);
         }
 
         /** @see StateMachine#setInitialState(State) */
@@ -398,13 +593,21 @@ public class StateMachine {
         /** @see StateMachine#transitionTo(IState) */
         private final void transitionTo(IState destState) {
             mDestState = (State) destState;
-            log.d("[" + mSm.getName() + "] " + mStateStack[mStateStackTopIndex].state.getName() + " -> "
-                    + mDestState.getName());
+            if (log.isDebugEnabled()) {
+                log.d("[" + mSm.getName() + "] " + mStateStack[mStateStackTopIndex].state.getName() + " -> "
+                        + mDestState.getName());
+            }
         }
 
         /** @see StateMachine#deferMessage(Message) */
         private final void deferMessage(Message msg) {
-            log.d(msg + " in " + mSm.getName());
+            if (log.isDebugEnabled()) {
+                log.d(msg + " in " + mSm.getName());
+            }
+            if (msg instanceof PooledMessage) {
+                // recycled after it was handled again
+                ((PooledMessage) msg).deferred = true;
+            }
             mDeferredMessages.add(msg);
         }
 
@@ -417,6 +620,11 @@ public class StateMachine {
             return mStateInfo.keySet();
         }
 
+        /** @see StateMachine#getState(String) */
+        private State getState(String name) {
+            return mStatesByName.get(name);
+        }
+
         private void onStateChanged(State state) {
             for (IOnStateChangedListener onStateChangedListener : onStateChangedListeners) {
                 onStateChangedListener.onStateChanged(state);
@@ -457,12 +665,69 @@ public class StateMachine {
     }
 
     /**
-     * @return current message
+     * @return the state with this {@link State#getName()}, null if there is
+     * none. Used to restore a persisted state without going through all
+     * states.
+     */
+    protected final State getState(String name) {
+        return mSmHandler.getState(name);
+    }
+
+    /**
+     * Checkpoint of the state, which can be persisted and restored with
+     * {@link #getStateByCheckpoint(String)}. It has the ordinal of the state
+     * followed by the ordinals of the states on the stack down to the root
+     * and the name of the state, e.g. {@code "7.5.1:NormalSetState"}.
+     * Ordinals are the positions in which the states were added. Computed
+     * once per state.
+     */
+    protected final String getCheckpoint(IState state) {
+        return mSmHandler.getCheckpoint((State) state);
+    }
+
+    /**
+     * Restores a state from a {@link #getCheckpoint(IState)} without a lookup
+     * by name. The stack of the checkpoint is verified against the hierarchy.
+     * If it does not match, e.g. because states were added since the
+     * checkpoint was written, or if it is a plain state name written before
+     * checkpoints were introduced, the state is looked up by name.
+     *
+     * @return the state or null if there is no state with this name
+     */
+    protected final State getStateByCheckpoint(String checkpoint) {
+        return mSmHandler.getStateByCheckpoint(checkpoint);
+    }
+
+    /**
+     * @return current message, null if no message is being handled. Pooled
+     * messages must not be kept after handling.
      */
     protected final Message getCurrentMessage() {
         return mSmHandler.getCurrentMessage();
     }
 
+    /**
+     * Called after a message was processed and all transitions were performed.
+     * Can be overridden to do work which should happen once per message.
+     *
+     * @param msg processed message
+     */
+    protected void onPostHandleMessage(Message msg) {
+        //NOP
+    }
+
+    /**
+     * Messages with what from 0 to the returned value are dispatched with
+     * tables which are built when the state machine is started, see
+     * {@link State#mayHandle(int)}. Other messages walk up the hierarchy.
+     *
+     * @return largest what which is sent to this state machine or -1 to walk
+     * up the hierarchy for all messages
+     */
+    protected int getLargestMessageWhat() {
+        return -1;
+    }
+
     /**
      * @return current state
      */
@@ -533,6 +798,35 @@ public class StateMachine {
         throw new RuntimeException("State not found!");
     }
 
+    /**
+     * Sets what happens with messages with this what if one is already
+     * queued. Messages are not coalesced by default.
+     * <p>
+     * With {@link Coalescing#LATEST} a message which is sent to the front of
+     * the queue while another one with the same what is queued replaces it.
+     * It is handled at the position of the queued one, not at the front.
+     * Deferred messages are dropped if a newer one is pending.
+     */
+    protected final void setCoalescing(int what, Coalescing coalescing) {
+        mSmHandler.handler.setCoalescing(what, coalescing);
+    }
+
+    /**
+     * @return how many messages with this what were dropped or replaced by a
+     * newer one before they were handled
+     */
+    public final int getCoalescedCount(int what) {
+        return mSmHandler.handler.getCoalescedCount(what);
+    }
+
+    /**
+     * @return how many messages were dropped or replaced by a newer one
+     * before they were handled
+     */
+    public final int getCoalescedCount() {
+        return mSmHandler.handler.getCoalescedCount();
+    }
+
     /**
      * Defer this message until next state transition. Upon transitioning all
      * deferred messages will be placed on the queue and reprocessed in the
@@ -564,24 +858,46 @@ public class StateMachine {
      * Enqueue a message to this state machine.
      */
     public final void sendMessage(int what) {
-        mSmHandler.handler.obtainMessage(what).send();
+        mSmHandler.pool.obtain(what).send();
     }
 
     public final ImmutableMessage obtainMessage(int what) {
         return mSmHandler.handler.obtainMessage(what);
     }
 
+    /**
+     * Obtains a message from the pool of this state machine. The message is
+     * recycled after it was handled, see {@link PooledMessage}.
+     */
+    public final PooledMessage obtainPooledMessage(int what) {
+        return mSmHandler.pool.obtain(what);
+    }
+
     /**
      * Start the state machine.
      */
     public void start() {
-        mSmHandler.completeConstruction(false);
+        mSmHandler.completeConstruction(false, false);
     }
 
     /**
      * Start the state machine.
      */
     public void resume() {
-        mSmHandler.completeConstruction(true);
+        mSmHandler.completeConstruction(true, false);
+    }
+
+    /**
+     * Resume the state machine on the calling thread instead of with a
+     * message, so that many state machines can be restored with one message
+     * to their handling thread. Transitions made by the resume methods are
+     * performed before this method returns. Messages which were handled
+     * before are deferred, they are put back to the front of the queue.
+     * <p>
+     * The calling thread must be the one which handles the messages of the
+     * state machine. Otherwise use {@link #resume()}.
+     */
+    public void resumeNow() {
+        mSmHandler.completeConstruction(true, true);
     }
 }
@@ -0,0 +1,43 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.persistance.AlarmJournal;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Appends to an {@link AlarmJournal} with compactions in the background. See
+ * AlarmDaoBenchmark in androidTest for the comparison with SQLite.
+ */
+public class AlarmJournalBenchmark {
+    private static final int RECORDS = 100000;
+
+    @Test
+    public void appendThroughput() throws IOException {
+        File file = File.createTempFile("alarms", ".journal");
+        file.delete();
+        try {
+            for (int round = 0; round < 3; round++) {
+                AlarmJournal journal = AlarmJournal.open(file, 256 * 1024);
+                long start = System.nanoTime();
+                for (int i = 0; i < RECORDS; i++) {
+                    AlarmJournal.Entry entry = new AlarmJournal.Entry();
+                    entry.id = i % 50;
+                    entry.hour = i % 24;
+                    entry.label = "label";
+                    entry.alert = "";
+                    entry.state = (i % 2 == 0) ? "EnabledState" : "SetState";
+                    journal.put(entry);
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println(String.format("AlarmJournal: %d records/s, %d compactions",
+                        RECORDS * 1000000000L / elapsed, journal.getCompactionCount()));
+                journal.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.persistance.AlarmJournal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AlarmJournalTest {
+    private static final int THRESHOLD = 1024 * 1024;
+    /** compacts on the writing thread */
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("alarms", ".journal");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        for (File compacted : compactedFiles()) {
+            compacted.delete();
+        }
+    }
+
+    @Test
+    public void entriesAreReplayed() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        journal.put(entry(2, 8, "DisabledState"));
+        journal.put(entry(1, 9, "SetState"));
+        journal.delete(2);
+        journal.put(entry(3, 10, null));
+        journal.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+        assertEquals(2, reopened.entries().size());
+        assertEquals(9, reopened.entries().get(1).hour);
+        assertEquals("SetState", reopened.entries().get(1).state);
+        assertEquals("label", reopened.entries().get(1).label);
+        assertFalse(reopened.entries().containsKey(2));
+        assertNull(reopened.entries().get(3).state);
+        assertEquals(0, reopened.getDiscardedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void tooLongStringIsRejectedBeforeWriting() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        int size = journal.size();
+
+        AlarmJournal.Entry tooLong = entry(1, 8, "SetState");
+        tooLong.label = repeat('a', Short.MAX_VALUE + 1);
+        try {
+            journal.put(tooLong);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(size, journal.size());
+        assertEquals(7, journal.entries().get(1).hour);
+
+        AlarmJournal.Entry longest = entry(1, 9, "SetState");
+        longest.label = repeat('a', Short.MAX_VALUE);
+        journal.put(longest);
+        journal.put(entry(2, 10, "EnabledState"));
+        journal.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+        assertEquals(longest.label, reopened.entries().get(1).label);
+        assertEquals(10, reopened.entries().get(2).hour);
+        assertEquals(0, reopened.getDiscardedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void tooLargeRecordIsRejectedBeforeWriting() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        int size = journal.size();
+
+        AlarmJournal.Entry tooLarge = entry(2, 8, "SetState");
+        tooLarge.label = repeat('a', Short.MAX_VALUE);
+        tooLarge.alert = repeat('b', Short.MAX_VALUE);
+        try {
+            journal.put(tooLarge);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(size, journal.size());
+        assertFalse(journal.entries().containsKey(2));
+        journal.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+        assertEquals(1, reopened.entries().size());
+        assertEquals(0, reopened.getDiscardedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void onlyChangedFieldsAreWritten() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        int first = journal.size();
+        journal.put(entry(1, 7, "SetState"));
+        int change = journal.size() - first;
+        journal.put(entry(1, 7, "SetState"));
+        assertEquals(first + change, journal.size());
+        assertTrue(change < first - 4);
+        journal.close();
+    }
+
+    @Test
+    public void truncatedTailRecordIsDiscarded() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        journal.put(entry(2, 8, "EnabledState"));
+        int complete = journal.size();
+        journal.put(entry(1, 9, "SetState"));
+        int end = journal.size();
+        journal.close();
+
+        // a crash in the middle of the last record, at every possible byte
+        for (int cut = complete + 1; cut < end; cut++) {
+            writeZeroes(file, cut, end);
+            AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+            assertEquals(2, reopened.entries().size());
+            assertEquals(7, reopened.entries().get(1).hour);
+            assertEquals("EnabledState", reopened.entries().get(1).state);
+            assertEquals(complete, reopened.size());
+            reopened.close();
+        }
+
+        // appending after the discarded record works
+        AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+        reopened.put(entry(1, 10, "SnoozedState"));
+        reopened.close();
+        AlarmJournal afterAppend = AlarmJournal.open(file, THRESHOLD);
+        assertEquals(10, afterAppend.entries().get(1).hour);
+        assertEquals(8, afterAppend.entries().get(2).hour);
+        afterAppend.close();
+    }
+
+    @Test
+    public void corruptedRecordAndEverythingAfterItIsDiscarded() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, THRESHOLD);
+        journal.put(entry(1, 7, "EnabledState"));
+        int complete = journal.size();
+        journal.put(entry(2, 8, "EnabledState"));
+        journal.put(entry(3, 9, "EnabledState"));
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(complete + 12);
+        raf.write(raf.read() ^ 0xFF);
+        raf.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, THRESHOLD);
+        assertEquals(1, reopened.entries().size());
+        assertEquals(7, reopened.entries().get(1).hour);
+        assertTrue(reopened.getDiscardedBytes() > 0);
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsState() throws IOException {
+        AlarmJournal journal = AlarmJournal.open(file, 4096, INLINE);
+        for (int i = 0; i < 1000; i++) {
+            journal.put(entry(i % 10, i % 24, "State" + i));
+        }
+        journal.delete(5);
+        assertTrue(journal.getCompactionCount() > 0);
+        assertTrue(journal.size() <= 4096);
+        journal.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, 4096, INLINE);
+        assertEquals(9, reopened.entries().size());
+        assertEquals(999 % 24, reopened.entries().get(9).hour);
+        assertEquals("State999", reopened.entries().get(9).state);
+        assertEquals("State990", reopened.entries().get(0).state);
+        assertFalse(reopened.entries().containsKey(5));
+        reopened.close();
+    }
+
+    @Test
+    public void recordsAppendedDuringCompactionAreKept() throws IOException {
+        QueueExecutor compactor = new QueueExecutor();
+        AlarmJournal journal = AlarmJournal.open(file, 4096, compactor);
+        int i = 0;
+        while (compactor.queue.isEmpty()) {
+            journal.put(entry(i % 10, i % 24, "State" + i));
+            i++;
+        }
+        // compaction is submitted, the journal is still written
+        journal.put(entry(1, 5, "AfterSnapshot"));
+        journal.put(entry(42, 6, "New"));
+        journal.delete(3);
+        assertEquals(0, journal.getCompactionCount());
+
+        compactor.runAll();
+        assertEquals(1, journal.getCompactionCount());
+        journal.put(entry(2, 7, "AfterCompaction"));
+        journal.close();
+
+        AlarmJournal reopened = AlarmJournal.open(file, 4096, compactor);
+        assertEquals(10, reopened.entries().size());
+        assertEquals("AfterSnapshot", reopened.entries().get(1).state);
+        assertEquals(5, reopened.entries().get(1).hour);
+        assertEquals("New", reopened.entries().get(42).state);
+        assertEquals("AfterCompaction", reopened.entries().get(2).state);
+        assertFalse(reopened.entries().containsKey(3));
+        assertEquals(0, reopened.getDiscardedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void compactionOfAClosedJournalIsDropped() throws IOException {
+        QueueExecutor compactor = new QueueExecutor();
+        AlarmJournal journal = AlarmJournal.open(file, 4096, compactor);
+        for (int i = 0; compactor.queue.isEmpty(); i++) {
+            journal.put(entry(i % 10, i % 24, "State" + i));
+        }
+        journal.close();
+        compactor.runAll();
+
+        assertEquals(0, journal.getCompactionCount());
+        assertEquals(0, compactedFiles().length);
+        AlarmJournal reopened = AlarmJournal.open(file, 4096, compactor);
+        assertEquals(10, reopened.entries().size());
+        reopened.close();
+    }
+
+    /**
+     * Runs the submitted tasks when asked to
+     */
+    private static class QueueExecutor implements Executor {
+        final Queue<Runnable> queue = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            queue.add(runnable);
+        }
+
+        void runAll() {
+            Runnable next;
+            while ((next = queue.poll()) != null) {
+                next.run();
+            }
+        }
+    }
+
+    private File[] compactedFiles() {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(file.getName()) && name.endsWith(".compact");
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static AlarmJournal.Entry entry(int id, int hour, String state) {
+        AlarmJournal.Entry entry = new AlarmJournal.Entry();
+        entry.id = id;
+        entry.hour = hour;
+        entry.minutes = 30;
+        entry.daysOfWeek = 31;
+        entry.nextTime = 1500000000000L + hour * 3600000L;
+        entry.enabled = true;
+        entry.vibrate = true;
+        entry.label = "label";
+        entry.alert = "";
+        entry.state = state;
+        return entry;
+    }
+
+    private static void writeZeroes(File file, int from, int to) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(from);
+        raf.write(new byte[to - from]);
+        raf.close();
+    }
+}
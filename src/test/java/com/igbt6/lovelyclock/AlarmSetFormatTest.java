@@ -0,0 +1,107 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.interfaces.ImmutableAlarmEditor;
+import com.igbt6.lovelyclock.model.AlarmChangeData;
+import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+import com.igbt6.lovelyclock.persistance.AlarmSetFormat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AlarmSetFormatTest {
+    private static final Consumer<AlarmChangeData> NOP = new Consumer<AlarmChangeData>() {
+        @Override
+        public void accept(@NonNull AlarmChangeData alarmChangeData) throws Exception {
+            //NOP
+        }
+    };
+
+    @Test
+    public void writtenAlarmsAreRead() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AlarmSetFormat.Writer writer = new AlarmSetFormat.Writer(out);
+        writer.write(alarm(7, 30, 31, true, "Work\tday\\n\n", "content://media/internal/audio/media/12"));
+        writer.write(alarm(23, 59, 0, false, "", "silent"));
+        writer.close();
+
+        AlarmSetFormat.Reader reader = new AlarmSetFormat.Reader(new ByteArrayInputStream(out.toByteArray()));
+        ImmutableAlarmEditor first = reader.read();
+        assertEquals(7, first.getHour());
+        assertEquals(30, first.getMinutes());
+        assertEquals(31, first.getDaysOfWeek().getCoded());
+        assertTrue(first.isEnabled());
+        assertTrue(first.isVibrate());
+        assertFalse(first.isPrealarm());
+        assertEquals("Work\tday\\n\n", first.getLabel());
+        assertEquals("content://media/internal/audio/media/12", first.alertString());
+
+        ImmutableAlarmEditor second = reader.read();
+        assertEquals(23, second.getHour());
+        assertFalse(second.isEnabled());
+        assertEquals("", second.getLabel());
+        assertEquals("silent", second.alertString());
+
+        assertNull(reader.read());
+        reader.close();
+    }
+
+    @Test
+    public void commentsAndEmptyLinesAreSkipped() throws IOException {
+        AlarmSetFormat.Reader reader = reader(AlarmSetFormat.HEADER + "\n\n# morning\n6\t0\t0\t1\t1\t0\tWake up\t\n");
+        assertEquals("Wake up", reader.read().getLabel());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void malformedLineIsReportedWithItsNumber() throws IOException {
+        AlarmSetFormat.Reader reader = reader(AlarmSetFormat.HEADER + "\n6\t0\t0\t1\t1\t0\t\t\n25\t0\t0\t1\t1\t0\t\t\n");
+        reader.read();
+        try {
+            reader.read();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Line 3"));
+        }
+    }
+
+    @Test
+    public void streamWithoutHeaderIsRejected() throws IOException {
+        try {
+            reader("6\t0\t0\t1\t1\t0\t\t\n").read();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(AlarmSetFormat.HEADER));
+        }
+    }
+
+    private static AlarmSetFormat.Reader reader(String text) {
+        return new AlarmSetFormat.Reader(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    private static AlarmChangeData alarm(int hour, int minutes, int days, boolean enabled, String label, String alert) {
+        return ImmutableAlarmEditor.builder()
+                .id(1)
+                .hour(hour)
+                .minutes(minutes)
+                .daysOfWeek(ImmutableDaysOfWeek.of(days))
+                .isEnabled(enabled)
+                .isVibrate(true)
+                .isPrealarm(false)
+                .label(label)
+                .alertString(alert)
+                .callback(NOP)
+                .build();
+    }
+}
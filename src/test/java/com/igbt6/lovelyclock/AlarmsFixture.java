@@ -0,0 +1,94 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.configuration.ImmutablePrefs;
+import com.igbt6.lovelyclock.configuration.ImmutableStore;
+import com.igbt6.lovelyclock.configuration.Store;
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.logger.SysoutLogWriter;
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.AlarmCore;
+import com.igbt6.lovelyclock.model.AlarmCoreFactory;
+import com.igbt6.lovelyclock.model.AlarmSetter;
+import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.model.Alarms;
+import com.igbt6.lovelyclock.model.AlarmsScheduler;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.igbt6.lovelyclock.model.ContainerFactory;
+import com.igbt6.lovelyclock.persistance.DatabaseQuery;
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.google.common.base.Optional;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Store, prefs and mocks around {@link Alarms}, shared by {@link AlarmsTest}
+ * and {@link ExecutorAlarmsTest} which run the alarms on different
+ * {@link HandlerFactory}s.
+ */
+class AlarmsFixture {
+    final Logger logger;
+    final Calendars calendars;
+    final ImmutablePrefs prefs;
+    final ImmutableStore store;
+    final AlarmCore.IStateNotifier stateNotifierMock;
+    final AlarmSetter alarmSetterMock;
+
+    AlarmsFixture() {
+        logger = Logger.create().addLogWriter(new SysoutLogWriter());
+
+        calendars = new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        };
+
+        prefs = ImmutablePrefs.builder()
+                .preAlarmDuration(BehaviorSubject.createDefault(10))
+                .snoozeDuration(BehaviorSubject.createDefault(10))
+                .autoSilence(BehaviorSubject.createDefault(10))
+                .is24HoutFormat(Single.just(true))
+                .build();
+
+        // sets are published from the threads of the state machines
+        store = ImmutableStore.builder()
+                .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
+                .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
+                .sets(PublishSubject.<Store.AlarmSet>create().toSerialized())
+                .build();
+
+        stateNotifierMock = mock(AlarmCore.IStateNotifier.class);
+        alarmSetterMock = mock(AlarmSetter.class);
+    }
+
+    Alarms createAlarms(DatabaseQuery query, ContainerFactory containerFactory, HandlerFactory handlerFactory) {
+        AlarmsScheduler alarmsScheduler = new AlarmsScheduler(alarmSetterMock, logger, store, prefs, calendars);
+        return new Alarms(alarmsScheduler, query, new AlarmCoreFactory(logger,
+                alarmsScheduler,
+                stateNotifierMock,
+                handlerFactory,
+                prefs,
+                store,
+                calendars
+        ), containerFactory, handlerFactory);
+    }
+
+    /**
+     * @return query without alarms in the database
+     */
+    static DatabaseQuery mockQuery() {
+        DatabaseQuery query = mock(DatabaseQuery.class);
+        when(query.stream()).thenReturn(Observable.<AlarmContainer>empty());
+        return query;
+    }
+}
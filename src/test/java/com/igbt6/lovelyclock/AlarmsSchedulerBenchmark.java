@@ -0,0 +1,190 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.configuration.ImmutablePrefs;
+import com.igbt6.lovelyclock.configuration.ImmutableStore;
+import com.igbt6.lovelyclock.configuration.Store;
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.model.AlarmsScheduler;
+import com.igbt6.lovelyclock.model.CalendarType;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.google.common.base.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import io.reactivex.Single;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * Compares {@link AlarmsScheduler} with both {@link AlarmsScheduler.QueueType}s
+ * against the linear scan over a {@link PriorityQueue} which was used before.
+ */
+public class AlarmsSchedulerBenchmark {
+    private static final int[] SIZES = {10, 1000, 100000};
+    private static final int RESCHEDULES = 2000;
+
+    private Calendars calendars;
+    private ImmutableStore store;
+    private ImmutablePrefs prefs;
+    private AlarmValue alarmValue;
+
+    @Before
+    public void setUp() {
+        calendars = new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        };
+
+        prefs = ImmutablePrefs.builder()
+                .preAlarmDuration(BehaviorSubject.createDefault(10))
+                .snoozeDuration(BehaviorSubject.createDefault(10))
+                .autoSilence(BehaviorSubject.createDefault(10))
+                .is24HoutFormat(Single.just(true))
+                .build();
+
+        store = ImmutableStore.builder()
+                .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
+                .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
+                .sets(PublishSubject.<Store.AlarmSet>create())
+                .build();
+
+        alarmValue = new TestContainerFactory(calendars).create();
+    }
+
+    @Test
+    public void rescheduleIndexedHeapVsPriorityQueue() {
+        for (int size : SIZES) {
+            long heap = measureScheduler(size, AlarmsScheduler.QueueType.HEAP);
+            long wheel = measureScheduler(size, AlarmsScheduler.QueueType.TIMING_WHEEL);
+            long priorityQueue = measurePriorityQueue(size);
+            System.out.println(String.format("%6d alarms: heap %8d ns/op, timing wheel %8d ns/op, PriorityQueue %8d ns/op",
+                    size, heap / RESCHEDULES, wheel / RESCHEDULES, priorityQueue / RESCHEDULES));
+        }
+    }
+
+    /**
+     * Snoozes and autosilence timers which are set a few minutes from now and
+     * removed again, while the rest of the alarms stays in the queue
+     */
+    @Test
+    public void churnHeapVsTimingWheel() {
+        for (int size : SIZES) {
+            long heap = measureChurn(size, AlarmsScheduler.QueueType.HEAP);
+            long wheel = measureChurn(size, AlarmsScheduler.QueueType.TIMING_WHEEL);
+            System.out.println(String.format("%6d alarms: heap %8d ns/op, timing wheel %8d ns/op",
+                    size, heap / RESCHEDULES, wheel / RESCHEDULES));
+        }
+    }
+
+    /**
+     * Before alarms were kept as epoch millis, every ScheduledAlarm held a
+     * Calendar and a SimpleDateFormat.
+     */
+    @Test
+    public void heapBytesPerScheduledAlarm() {
+        AlarmsScheduler scheduler = new AlarmsScheduler(new TestAlarmSetter(), Logger.create(), store, prefs, calendars);
+        int count = 10000;
+        Object[] retained = new Object[count];
+
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            retained[i] = new Object[]{
+                    scheduler.new ScheduledAlarm(i, i, CalendarType.NORMAL, alarmValue),
+                    Calendar.getInstance(),
+                    new SimpleDateFormat("dd-MM-yy HH:mm:ss", Locale.GERMANY)};
+        }
+        long withCalendar = (usedHeap() - before) / count;
+        Arrays.fill(retained, null);
+
+        before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            retained[i] = scheduler.new ScheduledAlarm(i, i, CalendarType.NORMAL, alarmValue);
+        }
+        long withMillis = (usedHeap() - before) / count;
+
+        System.out.println(String.format("ScheduledAlarm with Calendar %5d bytes, with millis %5d bytes", withCalendar, withMillis));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long measureChurn(int size, AlarmsScheduler.QueueType queueType) {
+        AlarmsScheduler scheduler = new AlarmsScheduler(new TestAlarmSetter(), Logger.create(), store, prefs, calendars, 0, queueType);
+        Random random = new Random(size);
+        for (int id = 0; id < size; id++) {
+            scheduler.setAlarm(id, CalendarType.NORMAL, randomTime(random), alarmValue);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RESCHEDULES; i++) {
+            int id = random.nextInt(size);
+            long snooze = calendars.now().getTimeInMillis() + (1 + random.nextInt(10)) * 60 * 1000L;
+            scheduler.setAlarm(id, random.nextBoolean() ? CalendarType.NORMAL : CalendarType.AUTOSILENCE, snooze, alarmValue);
+            scheduler.setAlarm(id, CalendarType.NORMAL, randomTime(random), alarmValue);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureScheduler(int size, AlarmsScheduler.QueueType queueType) {
+        AlarmsScheduler scheduler = new AlarmsScheduler(new TestAlarmSetter(), Logger.create(), store, prefs, calendars, 0, queueType);
+        Random random = new Random(size);
+        for (int id = 0; id < size; id++) {
+            scheduler.setAlarm(id, CalendarType.NORMAL, randomTime(random), alarmValue);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RESCHEDULES; i++) {
+            scheduler.setAlarm(random.nextInt(size), CalendarType.NORMAL, randomTime(random), alarmValue);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measurePriorityQueue(int size) {
+        AlarmsScheduler scheduler = new AlarmsScheduler(new TestAlarmSetter(), Logger.create(), store, prefs, calendars);
+        PriorityQueue<AlarmsScheduler.ScheduledAlarm> queue = new PriorityQueue<AlarmsScheduler.ScheduledAlarm>();
+        Random random = new Random(size);
+        for (int id = 0; id < size; id++) {
+            queue.add(scheduler.new ScheduledAlarm(id, randomTime(random), CalendarType.NORMAL, alarmValue));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RESCHEDULES; i++) {
+            AlarmsScheduler.ScheduledAlarm newAlarm = scheduler.new ScheduledAlarm(random.nextInt(size), randomTime(random), CalendarType.NORMAL, alarmValue);
+            queue.peek();
+            for (Iterator<AlarmsScheduler.ScheduledAlarm> iterator = queue.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().id == newAlarm.id) {
+                    iterator.remove();
+                }
+            }
+            queue.add(newAlarm);
+            queue.peek();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long randomTime(Random random) {
+        Calendar calendar = calendars.now();
+        calendar.add(Calendar.DAY_OF_YEAR, 1);
+        calendar.add(Calendar.MINUTE, random.nextInt(7 * 24 * 60));
+        return calendar.getTimeInMillis();
+    }
+}
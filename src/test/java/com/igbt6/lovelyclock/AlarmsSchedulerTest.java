@@ -0,0 +1,314 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.configuration.ImmutablePrefs;
+import com.igbt6.lovelyclock.configuration.ImmutableStore;
+import com.igbt6.lovelyclock.configuration.Store;
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.logger.SysoutLogWriter;
+import com.igbt6.lovelyclock.model.AlarmSetter;
+import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.model.AlarmsScheduler;
+import com.igbt6.lovelyclock.model.CalendarType;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.google.common.base.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import io.reactivex.Single;
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Predicate;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class AlarmsSchedulerTest {
+    private ImmutableStore store;
+    private ImmutablePrefs prefs;
+    private Logger logger;
+    private Calendars calendars;
+    private TestContainerFactory containerFactory;
+    private TestAlarmSetter alarmSetter;
+    private AlarmsScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        calendars = new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        };
+
+        prefs = ImmutablePrefs.builder()
+                .preAlarmDuration(BehaviorSubject.createDefault(10))
+                .snoozeDuration(BehaviorSubject.createDefault(10))
+                .autoSilence(BehaviorSubject.createDefault(10))
+                .is24HoutFormat(Single.just(true))
+                .build();
+
+        store = ImmutableStore.builder()
+                .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
+                .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
+                .sets(PublishSubject.<Store.AlarmSet>create())
+                .build();
+
+        containerFactory = new TestContainerFactory(calendars);
+        logger = Logger.create().addLogWriter(new SysoutLogWriter());
+        alarmSetter = new TestAlarmSetter();
+        scheduler = new AlarmsScheduler(alarmSetter, logger, store, prefs, calendars);
+    }
+
+    private long inMinutes(int minutes) {
+        return calendars.now().getTimeInMillis() + minutes * 60 * 1000L;
+    }
+
+    @Test
+    public void autoSilenceIsNotPublishedAsNext() {
+        final AlarmValue autoSilenced = containerFactory.create();
+        final AlarmValue normal = containerFactory.create();
+
+        scheduler.setAlarm(autoSilenced.getId(), CalendarType.AUTOSILENCE, inMinutes(1), autoSilenced);
+        scheduler.setAlarm(normal.getId(), CalendarType.NORMAL, inMinutes(10), normal);
+
+        store.next().test().assertValue(new Predicate<Optional<Store.Next>>() {
+            @Override
+            public boolean test(@NonNull Optional<Store.Next> next) throws Exception {
+                return next.isPresent() && next.get().alarm().getId() == normal.getId();
+            }
+        });
+    }
+
+    @Test
+    public void nextIsRecomputedOnlyWhenNextNormalAlarmChanges() {
+        AlarmValue first = containerFactory.create();
+        AlarmValue second = containerFactory.create();
+        AlarmValue autoSilenced = containerFactory.create();
+
+        scheduler.setAlarm(first.getId(), CalendarType.NORMAL, inMinutes(10), first);
+        scheduler.setAlarm(second.getId(), CalendarType.NORMAL, inMinutes(20), second);
+        scheduler.setAlarm(autoSilenced.getId(), CalendarType.AUTOSILENCE, inMinutes(1), autoSilenced);
+        scheduler.removeAlarm(autoSilenced.getId());
+
+        assertEquals(1, scheduler.getNextRecomputedCount());
+        assertEquals(3, scheduler.getNextSkippedCount());
+
+        scheduler.removeAlarm(first.getId());
+        scheduler.removeAlarm(second.getId());
+
+        assertEquals(3, scheduler.getNextRecomputedCount());
+        store.next().test().assertValue(Optional.<Store.Next>absent());
+    }
+
+    @Test
+    public void batchIsAppliedOnCommit() {
+        AlarmSetter setter = mock(AlarmSetter.class);
+        scheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars);
+
+        scheduler.beginBatch();
+        for (int i = 0; i < 10; i++) {
+            AlarmValue alarm = containerFactory.create();
+            scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, inMinutes(100 - i), alarm);
+        }
+        verify(setter, never()).setUpRTCAlarm(any(AlarmsScheduler.ScheduledAlarm.class));
+        assertEquals(0, scheduler.getNextRecomputedCount());
+
+        scheduler.commit();
+        verify(setter, times(1)).setUpRTCAlarm(any(AlarmsScheduler.ScheduledAlarm.class));
+        assertEquals(1, scheduler.getNextRecomputedCount());
+    }
+
+    @Test
+    public void sameAlarmIsNotProgrammedTwice() {
+        AlarmValue alarm = containerFactory.create();
+        long time = inMinutes(10);
+
+        scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, time, alarm);
+        scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, time, alarm);
+
+        assertEquals(1, alarmSetter.getSetUpRTCAlarmCount());
+        assertEquals(1, scheduler.getIssuedRtcCount());
+        assertEquals(1, scheduler.getSuppressedRtcCount());
+
+        scheduler.setAlarm(alarm.getId(), CalendarType.PREALARM, time, alarm);
+        assertEquals(2, alarmSetter.getSetUpRTCAlarmCount());
+    }
+
+    @Test
+    public void firedAlarmIsProgrammedAgain() {
+        AlarmValue alarm = containerFactory.create();
+        long time = inMinutes(10);
+
+        scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, time, alarm);
+        scheduler.onAlarmFired(alarm.getId());
+        scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, time, alarm);
+
+        assertEquals(2, alarmSetter.getSetUpRTCAlarmCount());
+        assertEquals(0, scheduler.getSuppressedRtcCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void alarmsWithinCoalescingWindowAreSetTogether() {
+        AlarmSetter setter = mock(AlarmSetter.class);
+        scheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars, 5000);
+        AlarmValue first = containerFactory.create();
+        AlarmValue second = containerFactory.create();
+        AlarmValue later = containerFactory.create();
+        long time = inMinutes(10);
+        long secondTime = time + 3 * 1000;
+        long laterTime = time + 30 * 1000;
+
+        scheduler.beginBatch();
+        scheduler.setAlarm(later.getId(), CalendarType.NORMAL, laterTime, later);
+        scheduler.setAlarm(second.getId(), CalendarType.AUTOSILENCE, secondTime, second);
+        scheduler.setAlarm(first.getId(), CalendarType.NORMAL, time, first);
+        scheduler.commit();
+
+        ArgumentCaptor<List<AlarmsScheduler.ScheduledAlarm>> captor = ArgumentCaptor.forClass((Class) List.class);
+        verify(setter).setUpRTCAlarm(captor.capture());
+        List<AlarmsScheduler.ScheduledAlarm> alarms = captor.getValue();
+        assertEquals(2, alarms.size());
+        assertEquals(first.getId(), alarms.get(0).id);
+        assertEquals(second.getId(), alarms.get(1).id);
+        assertEquals(CalendarType.AUTOSILENCE, alarms.get(1).type);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void alarmsAreNotFiredEarlyWithoutCoalescingWindow() {
+        AlarmSetter setter = mock(AlarmSetter.class);
+        scheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars, 0);
+        AlarmValue first = containerFactory.create();
+        AlarmValue second = containerFactory.create();
+        long time = inMinutes(10);
+        long secondTime = time + 3 * 1000;
+
+        scheduler.beginBatch();
+        scheduler.setAlarm(second.getId(), CalendarType.NORMAL, secondTime, second);
+        scheduler.setAlarm(first.getId(), CalendarType.NORMAL, time, first);
+        scheduler.commit();
+        scheduler.onAlarmFired(first.getId());
+
+        ArgumentCaptor<AlarmsScheduler.ScheduledAlarm> captor = ArgumentCaptor.forClass(AlarmsScheduler.ScheduledAlarm.class);
+        verify(setter, times(2)).setUpRTCAlarm(captor.capture());
+        verify(setter, never()).setUpRTCAlarm(any(List.class));
+        assertEquals(first.getId(), captor.getAllValues().get(0).id);
+        assertEquals(time, captor.getAllValues().get(0).millis);
+        assertEquals(second.getId(), captor.getAllValues().get(1).id);
+        assertEquals(secondTime, captor.getAllValues().get(1).millis);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void changedCoalescingWindowIsApplied() {
+        AlarmSetter setter = mock(AlarmSetter.class);
+        scheduler = new AlarmsScheduler(setter, logger, store, prefs, calendars, 0);
+        AlarmValue first = containerFactory.create();
+        AlarmValue second = containerFactory.create();
+        long time = inMinutes(10);
+
+        scheduler.setAlarm(first.getId(), CalendarType.NORMAL, time, first);
+        scheduler.setAlarm(second.getId(), CalendarType.NORMAL, time + 3 * 1000, second);
+        verify(setter, never()).setUpRTCAlarm(any(List.class));
+
+        scheduler.setCoalescingWindow(5000);
+
+        ArgumentCaptor<List<AlarmsScheduler.ScheduledAlarm>> captor = ArgumentCaptor.forClass((Class) List.class);
+        verify(setter).setUpRTCAlarm(captor.capture());
+        assertEquals(2, captor.getValue().size());
+
+        scheduler.setCoalescingWindow(0);
+        verify(setter, times(2)).setUpRTCAlarm(any(AlarmsScheduler.ScheduledAlarm.class));
+    }
+
+    @Test
+    public void alarmsInThePastAreFiredWithOneBroadcast() {
+        scheduler.beginBatch();
+        for (int i = 0; i < 5; i++) {
+            AlarmValue alarm = containerFactory.create();
+            scheduler.setAlarm(alarm.getId(), CalendarType.NORMAL, inMinutes(-10 - i), alarm);
+        }
+        AlarmValue future = containerFactory.create();
+        scheduler.setAlarm(future.getId(), CalendarType.NORMAL, inMinutes(10), future);
+        scheduler.commit();
+
+        assertEquals(1, alarmSetter.getFireNowCount());
+        assertEquals(1, alarmSetter.getSetUpRTCAlarmCount());
+    }
+
+    @Test
+    public void timingWheelProgramsSameAlarmsAsHeap() {
+        RecordingAlarmSetter heapSetter = new RecordingAlarmSetter();
+        RecordingAlarmSetter wheelSetter = new RecordingAlarmSetter();
+        AlarmsScheduler heap = new AlarmsScheduler(heapSetter, logger, store, prefs, calendars, 5000, AlarmsScheduler.QueueType.HEAP);
+        AlarmsScheduler wheel = new AlarmsScheduler(wheelSetter, logger, store, prefs, calendars, 5000, AlarmsScheduler.QueueType.TIMING_WHEEL);
+        AlarmValue alarm = containerFactory.create();
+        Random random = new Random(42);
+        // from a few seconds to a few months
+        int[] ranges = {60, 60 * 60, 24 * 60 * 60, 100 * 24 * 60 * 60};
+
+        for (int i = 0; i < 5000; i++) {
+            int id = random.nextInt(50);
+            if (random.nextInt(4) == 0) {
+                heap.removeAlarm(id);
+                wheel.removeAlarm(id);
+            } else {
+                long time = inMinutes(1) + random.nextInt(ranges[random.nextInt(ranges.length)]) * 1000L;
+                CalendarType type = CalendarType.values()[random.nextInt(CalendarType.values().length)];
+                heap.setAlarm(id, type, time, alarm);
+                wheel.setAlarm(id, type, time, alarm);
+            }
+            assertEquals(heapSetter.programmed, wheelSetter.programmed);
+        }
+    }
+
+    /**
+     * Remembers what was programmed last
+     */
+    private static class RecordingAlarmSetter implements AlarmSetter {
+        private String programmed;
+
+        @Override
+        public void removeRTCAlarm() {
+            programmed = null;
+        }
+
+        @Override
+        public void setUpRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm) {
+            setUpRTCAlarm(Collections.singletonList(alarm));
+        }
+
+        @Override
+        public void setUpRTCAlarm(List<AlarmsScheduler.ScheduledAlarm> alarms) {
+            StringBuilder sb = new StringBuilder();
+            for (AlarmsScheduler.ScheduledAlarm alarm : alarms) {
+                sb.append(alarm.id).append(alarm.type).append(alarm.millis).append(" ");
+            }
+            programmed = sb.toString();
+        }
+
+        @Override
+        public void fireNow(AlarmsScheduler.ScheduledAlarm firedInThePastAlarm) {
+            //NOP
+        }
+
+        @Override
+        public void fireNow(List<AlarmsScheduler.ScheduledAlarm> firedInThePastAlarms) {
+            //NOP
+        }
+    }
+}
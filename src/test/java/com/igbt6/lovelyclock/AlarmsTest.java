@@ -1,18 +1,11 @@
 package com.igbt6.lovelyclock;
 
-import android.content.ContentResolver;
-
-import com.igbt6.lovelyclock.configuration.ImmutablePrefs;
 import com.igbt6.lovelyclock.configuration.ImmutableStore;
-import com.igbt6.lovelyclock.configuration.Store;
 import com.igbt6.lovelyclock.interfaces.Alarm;
 import com.igbt6.lovelyclock.interfaces.IAlarmsManager;
 import com.igbt6.lovelyclock.interfaces.Intents;
-import com.igbt6.lovelyclock.logger.Logger;
-import com.igbt6.lovelyclock.logger.SysoutLogWriter;
 import com.igbt6.lovelyclock.model.AlarmContainer;
 import com.igbt6.lovelyclock.model.AlarmCore;
-import com.igbt6.lovelyclock.model.AlarmCoreFactory;
 import com.igbt6.lovelyclock.model.AlarmSetter;
 import com.igbt6.lovelyclock.model.AlarmValue;
 import com.igbt6.lovelyclock.model.Alarms;
@@ -22,8 +15,11 @@ import com.igbt6.lovelyclock.model.Calendars;
 import com.igbt6.lovelyclock.model.ContainerFactory;
 import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
 import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+import com.igbt6.lovelyclock.persistance.AlarmDao;
+import com.igbt6.lovelyclock.persistance.AlarmSetFormat;
 import com.igbt6.lovelyclock.persistance.DatabaseQuery;
-import com.google.common.base.Optional;
+import com.igbt6.lovelyclock.persistance.PersistingContainerFactory;
+import com.igbt6.lovelyclock.persistance.WriteBehindPersistence;
 import com.google.common.collect.Lists;
 
 import org.junit.Before;
@@ -33,22 +29,35 @@ import org.junit.rules.TestRule;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import io.reactivex.Single;
+import io.reactivex.Observable;
 import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Predicate;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.schedulers.TestScheduler;
-import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -58,8 +67,8 @@ public class AlarmsTest {
     private AlarmSetter alarmSetterMock;
     private TestScheduler testScheduler;
     private ImmutableStore store;
-    private ImmutablePrefs prefs;
-    private Logger logger;
+    private AlarmsFixture fixture;
+    private Calendars calendars;
     @Rule
     public TestRule watcher = new TestWatcher() {
         protected void starting(Description description) {
@@ -71,56 +80,31 @@ public class AlarmsTest {
     @Before
     public void setUp() {
         testScheduler = new TestScheduler();
-        logger = Logger.create().addLogWriter(new SysoutLogWriter());
-
-        prefs = ImmutablePrefs.builder()
-                .preAlarmDuration(BehaviorSubject.createDefault(10))
-                .snoozeDuration(BehaviorSubject.createDefault(10))
-                .autoSilence(BehaviorSubject.createDefault(10))
-                .is24HoutFormat(Single.just(true))
-                .build();
-
-        store = ImmutableStore.builder()
-                .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
-                .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
-                .sets(PublishSubject.<Store.AlarmSet>create())
-                .build();
+        fixture = new AlarmsFixture();
+        store = fixture.store;
+        calendars = fixture.calendars;
+        stateNotifierMock = fixture.stateNotifierMock;
+        alarmSetterMock = fixture.alarmSetterMock;
+    }
 
-        stateNotifierMock = mock(AlarmCore.IStateNotifier.class);
-        alarmSetterMock = mock(AlarmSetter.class);
+    private Alarms createAlarms(DatabaseQuery query) {
+        return createAlarms(query, AlarmContainer.PERSISTENCE_STUB);
+    }
 
+    private Alarms createAlarms(DatabaseQuery query, AlarmContainer.Persistence persistence) {
+        return createAlarms(query, new TestContainerFactory(calendars, persistence));
     }
 
-    private Alarms createAlarms(DatabaseQuery query) {
-        Calendars calendars = new Calendars() {
-            @Override
-            public Calendar now() {
-                return Calendar.getInstance();
-            }
-        };
-        AlarmsScheduler alarmsScheduler = new AlarmsScheduler(alarmSetterMock, logger, store, prefs, calendars);
-        Alarms alarms = new Alarms(alarmsScheduler, query, new AlarmCoreFactory(logger,
-                alarmsScheduler,
-                stateNotifierMock,
-                new TestHandlerFactory(testScheduler),
-                prefs,
-                store,
-                calendars
-
-        ), new TestContainerFactory(calendars));
-        return alarms;
+    private Alarms createAlarms(DatabaseQuery query, ContainerFactory containerFactory) {
+        return fixture.createAlarms(query, containerFactory, new TestHandlerFactory(testScheduler));
     }
 
     private Alarms createAlarms() {
         return createAlarms(mockQuery());
     }
 
-    @android.support.annotation.NonNull
     private DatabaseQuery mockQuery() {
-        final DatabaseQuery query = mock(DatabaseQuery.class);
-        List<AlarmContainer> list = Lists.newArrayList();
-        when(query.query()).thenReturn(Single.just(list));
-        return query;
+        return AlarmsFixture.mockQuery();
     }
 
     @Test
@@ -202,23 +186,48 @@ public class AlarmsTest {
         private ContainerFactory factory;
 
         public DatabaseQueryMock(ContainerFactory factory) {
-            super(mock(ContentResolver.class), factory);
+            super(mock(AlarmDao.class), factory, Schedulers.trampoline(), Schedulers.trampoline());
             this.factory = factory;
         }
 
         @Override
-        public Single<List<AlarmContainer>> query() {
+        public Observable<AlarmContainer> stream() {
             AlarmContainer container =
                     ImmutableAlarmContainer.copyOf(factory.create())
                             .withId(100500)
                             .withIsEnabled(true)
                             .withLabel("hello");
 
-            List<AlarmContainer> item = Lists.newArrayList(container);
-            return Single.just(item);
+            return Observable.just(container);
         }
     }
 
+    @Test
+    public void loadedAlarmIsRestoredFromItsCheckpoint() {
+        //when
+        IAlarmsManager first = createAlarms();
+        first.createNewAlarm().enable(true);
+        testScheduler.triggerActions();
+        AlarmContainer saved = (AlarmContainer) store.alarms().blockingFirst().get(0);
+        assertTrue(saved.getState(), saved.getState().matches("[0-9.]+:NormalSetState"));
+        reset(alarmSetterMock);
+
+        DatabaseQuery query = mock(DatabaseQuery.class);
+        when(query.stream()).thenReturn(Observable.just(saved));
+        Alarms instance = createAlarms(query);
+        instance.start();
+        testScheduler.triggerActions();
+
+        //verify
+        verify(alarmSetterMock).setUpRTCAlarm(any(AlarmsScheduler.ScheduledAlarm.class));
+        store.alarms().test().assertValue(new Predicate<List<AlarmValue>>() {
+            @Override
+            public boolean test(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                return alarmValues.size() == 1 && alarmValues.get(0).isEnabled();
+            }
+        });
+    }
+
     @Test
     public void alarmsFromMemoryMustBePresentInTheList() {
         //when
@@ -230,6 +239,14 @@ public class AlarmsTest {
         })));
 
         instance.start();
+        // resumed by the handler, the list is published when the load batch is committed
+        store.alarms().test().assertValue(new Predicate<List<AlarmValue>>() {
+            @Override
+            public boolean test(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                return alarmValues.isEmpty();
+            }
+        });
+        testScheduler.triggerActions();
 
         //verify
         store.alarms().test()
@@ -244,6 +261,39 @@ public class AlarmsTest {
                 });
     }
 
+    @Test
+    public void workIsQueuedUntilAlarmsAreLoaded() {
+        //when
+        PublishSubject<AlarmContainer> rows = PublishSubject.create();
+        DatabaseQuery query = mock(DatabaseQuery.class);
+        when(query.stream()).thenReturn(rows);
+        final Alarms instance = createAlarms(query);
+        instance.start();
+
+        final List<Integer> found = new ArrayList<Integer>();
+        instance.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                found.add(instance.getAlarm(100500).getId());
+            }
+        });
+
+        rows.onNext(ImmutableAlarmContainer.copyOf(new TestContainerFactory(new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        }).create()).withId(100500));
+        assertFalse(instance.isReady());
+        assertTrue(found.isEmpty());
+
+        rows.onComplete();
+
+        //verify
+        assertTrue(instance.isReady());
+        assertEquals(Lists.newArrayList(100500), found);
+    }
+
     @Test
     public void editAlarm() {
         //when
@@ -314,6 +364,117 @@ public class AlarmsTest {
         });
     }
 
+    @Test
+    public void dismissAndRescheduleIsWrittenOnce() {
+        //when
+        CountingPersistence counting = new CountingPersistence();
+        WriteBehindPersistence writeBehind = new WriteBehindPersistence(counting);
+        Alarms instance = createAlarms(mockQuery(), writeBehind);
+        Alarm newAlarm = instance.createNewAlarm();
+        newAlarm.edit().withIsEnabled(true).withDaysOfWeek(ImmutableDaysOfWeek.of(1)).commit();
+        testScheduler.triggerActions();
+
+        instance.onAlarmFired((AlarmCore) newAlarm, CalendarType.NORMAL);
+        testScheduler.triggerActions();
+
+        int writes = counting.getWrittenCount();
+        int changes = writeBehind.getPersistCount();
+        newAlarm.dismiss();
+        testScheduler.triggerActions();
+
+        //verify
+        assertTrue(writeBehind.getPersistCount() - changes > 1);
+        assertEquals(writes + 1, counting.getWrittenCount());
+        assertEquals(counting.getWrittenCount(), writeBehind.getWriteCount());
+    }
+
+    @Test
+    public void importIsWrittenAndPublishedInBatches() throws IOException {
+        //when
+        CountingPersistence counting = new CountingPersistence();
+        WriteBehindPersistence writeBehind = new WriteBehindPersistence(counting);
+        Alarms instance = createAlarms(mockQuery(), writeBehind);
+        instance.start();
+        final int[] publishedLists = {0};
+        store.alarmsSubject().skip(1).subscribe(new Consumer<List<AlarmValue>>() {
+            @Override
+            public void accept(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                publishedLists[0]++;
+            }
+        });
+
+        StringBuilder set = new StringBuilder(AlarmSetFormat.HEADER).append('\n');
+        for (int i = 0; i < 1200; i++) {
+            set.append(i % 24).append('\t').append(i % 60).append("\t127\t").append(i % 2).append("\t1\t0\tAlarm ").append(i).append("\t\n");
+        }
+        TestObserver<Integer> imported = instance.importAlarms(new ByteArrayInputStream(set.toString().getBytes())).test();
+        testScheduler.triggerActions();
+
+        //verify
+        imported.assertValue(1200);
+        assertEquals(1200, counting.getWrittenCount());
+        // 500 + 500 + 200
+        assertEquals(3, counting.getBatchCount());
+        assertEquals(3, publishedLists[0]);
+        store.alarms().test().assertValue(new Predicate<List<AlarmValue>>() {
+            @Override
+            public boolean test(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                return alarmValues.size() == 1200
+                        && alarmValues.get(1).isEnabled()
+                        && alarmValues.get(1199).getLabel().equals("Alarm 1199");
+            }
+        });
+
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        instance.exportAlarms(exported);
+        AlarmSetFormat.Reader reader = new AlarmSetFormat.Reader(new ByteArrayInputStream(exported.toByteArray()));
+        int count = 0;
+        while (reader.read() != null) {
+            count++;
+        }
+        assertEquals(1200, count);
+    }
+
+    @Test
+    public void newAlarmIsWrittenOnceWhenItIsCommitted() throws InterruptedException {
+        //when
+        AlarmDao dao = mock(AlarmDao.class);
+        when(dao.reserveIds(anyInt())).thenReturn(100);
+        PersistingContainerFactory containerFactory = new PersistingContainerFactory(calendars, dao);
+        Alarms instance = createAlarms(mockQuery(), containerFactory);
+        instance.start();
+        Alarm newAlarm = instance.createNewAlarm();
+        testScheduler.triggerActions();
+        newAlarm.edit().withHour(7).withLabel("committed").commit();
+        testScheduler.triggerActions();
+        assertTrue(containerFactory.getAsync().awaitWrites(5, TimeUnit.SECONDS));
+
+        //verify
+        ArgumentCaptor<AlarmContainer> captor = ArgumentCaptor.forClass(AlarmContainer.class);
+        verify(dao, times(1)).upsert(captor.capture());
+        verify(dao, never()).upsertAll(ArgumentMatchers.<AlarmContainer>anyCollection());
+        assertEquals("committed", captor.getValue().getLabel());
+    }
+
+    @Test
+    public void importKeepsBatchesBeforeAnError() {
+        //when
+        Alarms instance = createAlarms();
+        instance.start();
+        String set = AlarmSetFormat.HEADER + "\n7\t0\t0\t1\t1\t0\tfirst\t\nbroken\n";
+        TestObserver<Integer> imported = instance.importAlarms(new ByteArrayInputStream(set.getBytes())).test();
+        testScheduler.triggerActions();
+
+        //verify
+        imported.assertError(IOException.class);
+        store.alarms().test().assertValue(new Predicate<List<AlarmValue>>() {
+            @Override
+            public boolean test(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                return alarmValues.size() == 1 && alarmValues.get(0).getLabel().equals("first");
+            }
+        });
+    }
+
     @Test
     public void changingAlarmWhileItIsFiredShouldReschedule() {
         //when
@@ -452,4 +613,4 @@ public class AlarmsTest {
         testScheduler.triggerActions();
         verify(stateNotifierMock, atLeastOnce()).broadcastAlarmState(eq(newAlarm.getId()), eq(Intents.ALARM_DISMISS_ACTION));
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
+import com.igbt6.lovelyclock.persistance.AsyncPersistence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncPersistenceTest {
+    private final TestContainerFactory containerFactory = new TestContainerFactory(new Calendars() {
+        @Override
+        public Calendar now() {
+            return Calendar.getInstance();
+        }
+    });
+
+    @Test
+    public void writesAreExecutedInOrderOnAnotherThread() throws InterruptedException {
+        RecordingPersistence recording = new RecordingPersistence();
+        AsyncPersistence async = new AsyncPersistence(recording);
+        ImmutableAlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create());
+
+        for (int i = 0; i < 100; i++) {
+            async.persist(container.withHour(i % 24).withMinutes(i % 60));
+        }
+        async.delete(container);
+        assertTrue(async.awaitWrites(5, TimeUnit.SECONDS));
+
+        assertEquals(101, recording.events.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("persist " + i % 24 + ":" + i % 60, recording.events.get(i));
+        }
+        assertEquals("delete", recording.events.get(100));
+        assertFalse(recording.threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void awaitWritesTimesOutIfTheDatabaseIsSlow() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        AsyncPersistence async = new AsyncPersistence(new RecordingPersistence() {
+            @Override
+            public void persist(AlarmContainer container) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.persist(container);
+            }
+        });
+
+        async.persist(containerFactory.create());
+        assertFalse(async.awaitWrites(10, TimeUnit.MILLISECONDS));
+
+        latch.countDown();
+        assertTrue(async.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    private static class RecordingPersistence implements AlarmContainer.Persistence {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        @Override
+        public void persist(AlarmContainer container) {
+            events.add("persist " + container.getHour() + ":" + container.getMinutes());
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void persistAll(Collection<AlarmContainer> containers) {
+            for (AlarmContainer container : containers) {
+                persist(container);
+            }
+        }
+
+        @Override
+        public void delete(AlarmContainer container) {
+            events.add("delete");
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void flush() {
+            //NOP
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.persistance.WriteBehindPersistence;
+
+import java.util.Collection;
+
+/**
+ * Counts what is actually written, e.g. by {@link WriteBehindPersistence}.
+ * Thread safe, writes may come from the threads of the state machines.
+ */
+class CountingPersistence implements AlarmContainer.Persistence {
+    private int persist;
+    private int persistAll;
+    private int persistAllContainers;
+    private int delete;
+
+    @Override
+    public synchronized void persist(AlarmContainer container) {
+        persist++;
+    }
+
+    @Override
+    public synchronized void persistAll(Collection<AlarmContainer> containers) {
+        persistAll++;
+        persistAllContainers += containers.size();
+    }
+
+    @Override
+    public synchronized void delete(AlarmContainer container) {
+        delete++;
+    }
+
+    @Override
+    public void flush() {
+        //NOP
+    }
+
+    /**
+     * @return containers written one by one
+     */
+    synchronized int getPersistCount() {
+        return persist;
+    }
+
+    /**
+     * @return batches written with {@link #persistAll(Collection)}
+     */
+    synchronized int getBatchCount() {
+        return persistAll;
+    }
+
+    /**
+     * @return containers written in batches
+     */
+    synchronized int getBatchedCount() {
+        return persistAllContainers;
+    }
+
+    /**
+     * @return all containers written one by one or in batches
+     */
+    synchronized int getWrittenCount() {
+        return persist + persistAllContainers;
+    }
+
+    synchronized int getDeleteCount() {
+        return delete;
+    }
+}
@@ -0,0 +1,170 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.configuration.ImmutableStore;
+import com.igbt6.lovelyclock.interfaces.Alarm;
+import com.igbt6.lovelyclock.interfaces.IAlarmsManager;
+import com.igbt6.lovelyclock.interfaces.Intents;
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.model.Alarms;
+import com.igbt6.lovelyclock.model.CalendarType;
+import com.igbt6.lovelyclock.model.ExecutorHandlerFactory;
+import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+import com.igbt6.lovelyclock.persistance.AlarmDao;
+import com.igbt6.lovelyclock.persistance.AlarmSetFormat;
+import com.igbt6.lovelyclock.persistance.PersistingContainerFactory;
+import com.igbt6.lovelyclock.persistance.WriteBehindPersistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.annotations.NonNull;
+import io.reactivex.functions.Predicate;
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The AlarmCores run on the threads of an {@link ExecutorHandlerFactory}.
+ * The scenarios of a single alarm are in {@link AlarmsTest}, these tests
+ * cover alarms which are handled on several stripes.
+ */
+public class ExecutorAlarmsTest {
+    private static final int STRIPES = 3;
+
+    private AlarmsFixture fixture;
+    private ImmutableStore store;
+    private ExecutorService executor;
+    private ExecutorHandlerFactory handlerFactory;
+
+    @Before
+    public void setUp() {
+        fixture = new AlarmsFixture();
+        store = fixture.store;
+        executor = Executors.newFixedThreadPool(STRIPES);
+        handlerFactory = new ExecutorHandlerFactory(executor, STRIPES);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Alarms createAlarms(AlarmContainer.Persistence persistence) {
+        return fixture.createAlarms(AlarmsFixture.mockQuery(), new TestContainerFactory(fixture.calendars, persistence), handlerFactory);
+    }
+
+    private void awaitIdle() {
+        try {
+            assertTrue(handlerFactory.awaitIdle(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void createManyAlarmsOnAllStripes() {
+        //when
+        IAlarmsManager instance = createAlarms(AlarmContainer.PERSISTENCE_STUB);
+        for (int i = 0; i < 30; i++) {
+            Alarm alarm = instance.createNewAlarm();
+            if (i % 2 == 0) {
+                alarm.enable(true);
+            }
+        }
+        awaitIdle();
+        //verify
+        store.alarms().test().assertValue(new Predicate<List<AlarmValue>>() {
+            @Override
+            public boolean test(@NonNull List<AlarmValue> alarmValues) throws Exception {
+                for (int i = 0; i < alarmValues.size(); i++) {
+                    if (alarmValues.get(i).isEnabled() != (i % 2 == 0)) return false;
+                }
+                return alarmValues.size() == 30;
+            }
+        });
+    }
+
+    @Test
+    public void alarmsFiredTogetherAreCommittedAfterAllOfThemWereHandled() {
+        //when
+        CountingPersistence counting = new CountingPersistence();
+        WriteBehindPersistence writeBehind = new WriteBehindPersistence(counting);
+        Alarms instance = createAlarms(writeBehind);
+        int[] ids = new int[12];
+        CalendarType[] types = new CalendarType[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Alarm alarm = instance.createNewAlarm();
+            alarm.edit().withIsEnabled(true).withDaysOfWeek(ImmutableDaysOfWeek.of(1)).commit();
+            ids[i] = alarm.getId();
+            types[i] = CalendarType.NORMAL;
+        }
+        awaitIdle();
+        int batches = counting.getBatchCount();
+
+        instance.onAlarmsFired(ids, types);
+        awaitIdle();
+
+        //verify
+        for (int id : ids) {
+            verify(fixture.stateNotifierMock).broadcastAlarmState(eq(id), eq(Intents.ALARM_ALERT_ACTION));
+        }
+        // all fired alarms are written together when the batch is committed
+        assertEquals(batches + 1, counting.getBatchCount());
+    }
+
+    @Test
+    public void alarmsCreatedDuringAnImportGetUniqueIds() throws InterruptedException {
+        //when
+        AlarmDao dao = mock(AlarmDao.class);
+        final AtomicInteger reserved = new AtomicInteger(1);
+        when(dao.reserveIds(anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                return reserved.getAndAdd((Integer) invocation.getArgument(0));
+            }
+        });
+        PersistingContainerFactory containerFactory = new PersistingContainerFactory(fixture.calendars, dao);
+        Alarms instance = fixture.createAlarms(AlarmsFixture.mockQuery(), containerFactory, handlerFactory);
+        instance.start();
+
+        StringBuilder set = new StringBuilder(AlarmSetFormat.HEADER).append('\n');
+        for (int i = 0; i < 1200; i++) {
+            set.append(i % 24).append('\t').append(i % 60).append("\t0\t0\t1\t0\tImported ").append(i).append("\t\n");
+        }
+        TestObserver<Integer> imported = instance.importAlarms(new ByteArrayInputStream(set.toString().getBytes())).test();
+        for (int i = 0; i < 200; i++) {
+            instance.createNewAlarm();
+        }
+        awaitIdle();
+        assertTrue(containerFactory.getAsync().awaitWrites(5, TimeUnit.SECONDS));
+
+        //verify
+        imported.assertValue(1200);
+        List<AlarmValue> alarms = store.alarms().blockingFirst();
+        Set<Integer> ids = new HashSet<Integer>();
+        for (AlarmValue alarm : alarms) {
+            ids.add(alarm.getId());
+        }
+        assertEquals(1400, alarms.size());
+        assertEquals(1400, ids.size());
+    }
+}
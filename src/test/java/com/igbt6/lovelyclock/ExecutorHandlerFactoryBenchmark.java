@@ -0,0 +1,107 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.ExecutorHandlerFactory;
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.IHandler;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of alarm messages while the main thread is busy drawing frames.
+ * The main looper is simulated with a single stripe on the UI thread, the
+ * alternative are two stripes on their own threads.
+ */
+public class ExecutorHandlerFactoryBenchmark {
+    private static final int MESSAGES = 300;
+    private static final long FRAME_MILLIS = 12;
+
+    @Test
+    public void latencyMainThreadVsBackgroundStripes() throws InterruptedException {
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            Frames frames = new Frames(ui);
+            frames.start();
+
+            long[] onMainThread = measure(new ExecutorHandlerFactory(ui, 1));
+            long[] onStripes = measure(new ExecutorHandlerFactory(workers, 2));
+
+            frames.stop();
+            System.out.println(String.format("main thread: median %6d us, p99 %6d us", percentile(onMainThread, 50), percentile(onMainThread, 99)));
+            System.out.println(String.format("stripes:     median %6d us, p99 %6d us", percentile(onStripes, 50), percentile(onStripes, 99)));
+        } finally {
+            ui.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return latencies in microseconds from sending to handling
+     */
+    private long[] measure(HandlerFactory handlerFactory) throws InterruptedException {
+        final long[] latencies = new long[MESSAGES];
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        IHandler handler = handlerFactory.create(new MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                int index = msg.arg1Or(0);
+                latencies[index] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - (Long) msg.objOrNull());
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < MESSAGES; i++) {
+            handler.obtainMessage(i, System.nanoTime()).withArg1(i).send();
+            Thread.sleep(3);
+        }
+        done.await(30, TimeUnit.SECONDS);
+        return latencies;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /**
+     * Keeps the UI thread busy, every frame takes {@link #FRAME_MILLIS} and
+     * posts the next one
+     */
+    private static class Frames implements Runnable {
+        private final ExecutorService ui;
+        private volatile boolean running;
+
+        Frames(ExecutorService ui) {
+            this.ui = ui;
+        }
+
+        void start() {
+            running = true;
+            ui.execute(this);
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_MILLIS);
+            while (System.nanoTime() < end) {
+                // layout and draw
+            }
+            if (running) {
+                ui.execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.ExecutorHandlerFactory;
+import com.igbt6.lovelyclock.statemachine.IHandler;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorHandlerFactoryTest {
+    private static final int STRIPES = 3;
+
+    private ExecutorService executor;
+    private ExecutorHandlerFactory factory;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(STRIPES);
+        factory = new ExecutorHandlerFactory(executor, STRIPES);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records the what of handled messages, checks that it is never called
+     * concurrently
+     */
+    private static class RecordingHandler implements MessageHandler {
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        volatile boolean overlapped;
+        volatile long sleepMillis;
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (concurrent.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            try {
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(msg.what());
+            concurrent.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void messagesOfOneHandlerAreHandledInOrderAndOneByOne() throws InterruptedException {
+        List<RecordingHandler> recorders = new ArrayList<RecordingHandler>();
+        List<IHandler> handlers = new ArrayList<IHandler>();
+        for (int i = 0; i < 10; i++) {
+            RecordingHandler recorder = new RecordingHandler();
+            recorders.add(recorder);
+            handlers.add(factory.create(recorder));
+        }
+
+        for (int what = 0; what < 1000; what++) {
+            for (IHandler handler : handlers) {
+                handler.obtainMessage(what).send();
+            }
+        }
+        assertTrue(factory.awaitIdle(5, TimeUnit.SECONDS));
+
+        for (RecordingHandler recorder : recorders) {
+            assertEquals(1000, recorder.handled.size());
+            for (int what = 0; what < 1000; what++) {
+                assertEquals(what, (int) recorder.handled.get(what));
+            }
+            assertTrue(!recorder.overlapped);
+        }
+    }
+
+    @Test
+    public void messageAtFrontOfQueueIsHandledNext() throws InterruptedException {
+        RecordingHandler recorder = new RecordingHandler();
+        recorder.sleepMillis = 20;
+        IHandler handler = factory.create(recorder);
+
+        handler.obtainMessage(1).send();
+        handler.obtainMessage(2).send();
+        handler.obtainMessage(3).send();
+        // 1 is being handled
+        Thread.sleep(5);
+        handler.obtainMessage(0).sendAtFront();
+        assertTrue(factory.awaitIdle(5, TimeUnit.SECONDS));
+
+        assertEquals("[1, 0, 2, 3]", recorder.handled.toString());
+    }
+
+    @Test
+    public void barrierIsHandledAfterMessagesOfAllStripes() throws InterruptedException {
+        final List<RecordingHandler> recorders = new ArrayList<RecordingHandler>();
+        List<IHandler> handlers = new ArrayList<IHandler>();
+        for (int i = 0; i < STRIPES * 2; i++) {
+            RecordingHandler recorder = new RecordingHandler();
+            recorder.sleepMillis = 1 + i;
+            recorders.add(recorder);
+            handlers.add(factory.create(recorder));
+        }
+        final List<Integer> seenByBarrier = new ArrayList<Integer>();
+        IHandler barrier = factory.createBarrier(new MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                int handled = 0;
+                for (RecordingHandler recorder : recorders) {
+                    handled += recorder.handled.size();
+                }
+                seenByBarrier.add(handled);
+            }
+        });
+
+        for (int round = 1; round <= 3; round++) {
+            for (IHandler handler : handlers) {
+                handler.obtainMessage(round).send();
+                handler.obtainMessage(round).send();
+            }
+            barrier.obtainMessage(round).send();
+        }
+        assertTrue(factory.awaitIdle(5, TimeUnit.SECONDS));
+
+        int perRound = STRIPES * 2 * 2;
+        assertEquals(3, seenByBarrier.size());
+        for (int round = 1; round <= 3; round++) {
+            assertTrue(seenByBarrier.get(round - 1) >= round * perRound);
+        }
+    }
+
+    @Test
+    public void handlersOnOneQueueAreHandledOnOneThreadInOrder() throws InterruptedException {
+        assertEquals(STRIPES, factory.getQueueCount());
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        List<IHandler> handlers = new ArrayList<IHandler>();
+        for (int i = 0; i < 5; i++) {
+            final int index = i;
+            handlers.add(factory.onQueue(1).create(new MessageHandler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    handled.add(index + ":" + msg.what());
+                    threads.add(Thread.currentThread());
+                }
+            }));
+        }
+
+        for (int what = 0; what < 3; what++) {
+            for (IHandler handler : handlers) {
+                handler.obtainMessage(what).send();
+            }
+        }
+        assertTrue(factory.awaitIdle(5, TimeUnit.SECONDS));
+
+        assertEquals(15, handled.size());
+        for (int i = 0; i < 15; i++) {
+            assertEquals((i % 5) + ":" + (i / 5), handled.get(i));
+            assertTrue(threads.get(i) == threads.get(0));
+        }
+    }
+
+    @Test
+    public void stripeKeepsWorkingAfterAnException() throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+        IHandler handler = factory.create(new MessageHandler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what() == 0) {
+                    throw new IllegalStateException("expected");
+                }
+                handled.countDown();
+            }
+        });
+
+        handler.obtainMessage(0).send();
+        handler.obtainMessage(1).send();
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertTrue(factory.awaitIdle(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,51 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.NextOccurrence;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares {@link NextOccurrence} against the Calendar arithmetic which was
+ * used in AlarmCore before.
+ */
+public class NextOccurrenceBenchmark {
+    private static final int CALCULATIONS = 200000;
+    /** keeps the results alive */
+    private long sum;
+
+    @Test
+    public void nextOccurrenceVsCalendar() {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+        // warm up
+        measureCalendar(zone);
+        measureNextOccurrence(zone);
+
+        long calendar = measureCalendar(zone);
+        long nextOccurrence = measureNextOccurrence(zone);
+        System.out.println(String.format("Calendar %6d ns/op, NextOccurrence %6d ns/op",
+                calendar / CALCULATIONS, nextOccurrence / CALCULATIONS));
+    }
+
+    private long measureCalendar(TimeZone zone) {
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < CALCULATIONS; i++) {
+            sum += NextOccurrenceTest.calendarNext(random.nextInt(24), random.nextInt(60), random.nextInt(128), now, zone);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureNextOccurrence(TimeZone zone) {
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < CALCULATIONS; i++) {
+            sum += NextOccurrence.next(random.nextInt(24), random.nextInt(60), random.nextInt(128), now, zone);
+        }
+        return System.nanoTime() - start;
+    }
+}
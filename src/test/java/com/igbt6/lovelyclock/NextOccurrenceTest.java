@@ -0,0 +1,143 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.NextOccurrence;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NextOccurrenceTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final String[] ZONES = {"UTC", "Europe/Berlin", "America/New_York", "Australia/Lord_Howe",
+            "Asia/Kolkata", "America/Sao_Paulo", "Pacific/Chatham"};
+
+    /**
+     * Calendar arithmetic which was used in AlarmCore before
+     */
+    static long calendarNext(int hour, int minute, int daysOfWeek, long now, TimeZone zone) {
+        Calendar c = Calendar.getInstance(zone);
+        c.setTimeInMillis(now);
+        c.set(Calendar.HOUR_OF_DAY, hour);
+        c.set(Calendar.MINUTE, minute);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return calendarAdvance(c, daysOfWeek, now, zone);
+    }
+
+    static long calendarAdvance(Calendar c, int daysOfWeek, long now, TimeZone zone) {
+        Calendar nowCalendar = Calendar.getInstance(zone);
+        nowCalendar.setTimeInMillis(now);
+        if (c.before(nowCalendar)) {
+            c.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        if (daysOfWeek != 0) {
+            int today = (c.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            int addDays = 0;
+            while ((daysOfWeek & 1 << ((today + addDays) % 7)) == 0) {
+                addDays++;
+            }
+            c.add(Calendar.DAY_OF_WEEK, addDays);
+        }
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Calendar keeps the wall time which was shifted by a DST gap when it adds
+     * days and resolves overlaps to the later occurrence, so results are only
+     * comparable if there is no transition around.
+     */
+    private static boolean hasTransition(long from, long to, TimeZone zone) {
+        int offset = zone.getOffset(from - DAY);
+        for (long t = from - DAY; t <= to + DAY; t += HOUR / 2) {
+            if (zone.getOffset(t) != offset) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void sameAsCalendarWithoutTransitions() {
+        Random random = new Random(1);
+        int compared = 0;
+        for (int i = 0; i < 100000; i++) {
+            TimeZone zone = TimeZone.getTimeZone(ZONES[random.nextInt(ZONES.length)]);
+            long now = 1262304000000L + (long) (random.nextDouble() * 20 * 365 * DAY);
+            int hour = random.nextInt(24);
+            int minute = random.nextInt(60);
+            int daysOfWeek = random.nextInt(4) == 0 ? 0 : random.nextInt(128);
+
+            long actual = NextOccurrence.next(hour, minute, daysOfWeek, now, zone);
+            long expected = calendarNext(hour, minute, daysOfWeek, now, zone);
+            assertTrue(actual >= now);
+            assertTrue(actual < now + 8 * DAY);
+            if (!hasTransition(now, Math.max(actual, expected), zone)) {
+                assertEquals(zone.getID() + " " + now + " " + hour + ":" + minute + " " + daysOfWeek, expected, actual);
+                compared++;
+            }
+        }
+        // cases near a transition are skipped, most of them must be compared
+        assertTrue("compared " + compared, compared > 50000);
+    }
+
+    @Test
+    public void advanceIsSameAsCalendarWithoutTransitions() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++) {
+            TimeZone zone = TimeZone.getTimeZone(ZONES[random.nextInt(ZONES.length)]);
+            long now = 1262304000000L + (long) (random.nextDouble() * 20 * 365 * DAY);
+            int daysOfWeek = random.nextInt(4) == 0 ? 0 : random.nextInt(128);
+            int preAlarmMinutes = 1 + random.nextInt(120);
+            long next = NextOccurrence.next(random.nextInt(24), random.nextInt(60), daysOfWeek, now, zone);
+
+            long actual = NextOccurrence.advance(next - preAlarmMinutes * MINUTE, daysOfWeek, now, zone);
+
+            Calendar c = Calendar.getInstance(zone);
+            c.setTimeInMillis(next - preAlarmMinutes * MINUTE);
+            long expected = calendarAdvance(c, daysOfWeek, now, zone);
+            if (!hasTransition(now, Math.max(actual, expected), zone)) {
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void gapIsSkippedForward() {
+        TimeZone berlin = TimeZone.getTimeZone("Europe/Berlin");
+        // Saturday 2017-03-25 12:00 CET, clocks go from 02:00 to 03:00 on Sunday
+        long now = 1490439600000L;
+        long next = NextOccurrence.next(2, 30, 0, now, berlin);
+        // 2017-03-26 03:30 CEST
+        assertEquals(1490491800000L, next);
+        // on Monday 02:30 exists again
+        assertEquals(1490491800000L + DAY - HOUR, NextOccurrence.next(2, 30, 0x01, now, berlin));
+    }
+
+    @Test
+    public void overlapResolvesToFirstOccurrence() {
+        TimeZone berlin = TimeZone.getTimeZone("Europe/Berlin");
+        // Saturday 2017-10-28 12:00 CEST, clocks go from 03:00 to 02:00 on Sunday
+        long now = 1509184800000L;
+        long next = NextOccurrence.next(2, 30, 0, now, berlin);
+        // 2017-10-29 02:30 CEST
+        assertEquals(1509237000000L, next);
+        // does not fire again at the second 02:30, next one is on Monday 02:30 CET
+        assertEquals(1509237000000L + DAY + HOUR, NextOccurrence.next(2, 30, 0, next + 1, berlin));
+    }
+
+    @Test
+    public void daysUntilNext() {
+        // Monday and Friday
+        int days = 0x01 | 0x10;
+        assertEquals(0, NextOccurrence.daysUntilNext(days, 0));
+        assertEquals(3, NextOccurrence.daysUntilNext(days, 1));
+        assertEquals(0, NextOccurrence.daysUntilNext(days, 4));
+        assertEquals(1, NextOccurrence.daysUntilNext(days, 6));
+        assertEquals(-1, NextOccurrence.daysUntilNext(0, 3));
+    }
+}
@@ -0,0 +1,74 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
+import com.igbt6.lovelyclock.persistance.AlarmDao;
+import com.igbt6.lovelyclock.persistance.PersistingContainerFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PersistingContainerFactoryTest {
+    private AlarmDao dao;
+    private PersistingContainerFactory factory;
+
+    @Before
+    public void setUp() {
+        dao = mock(AlarmDao.class);
+        when(dao.reserveIds(anyInt())).thenReturn(100, 200);
+        factory = new PersistingContainerFactory(new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        }, dao);
+    }
+
+    @Test
+    public void idsAreReservedInBlocks() {
+        for (int i = 0; i < 16; i++) {
+            assertEquals(100 + i, factory.create().getId());
+        }
+        assertEquals(200, factory.create().getId());
+
+        verify(dao, times(2)).reserveIds(anyInt());
+        verify(dao, never()).insert(any(AlarmContainer.class));
+    }
+
+    @Test
+    public void newAlarmIsNotWrittenBeforeItWasCommitted() throws InterruptedException {
+        AlarmContainer container = ImmutableAlarmContainer.copyOf(factory.create()).withHour(7);
+
+        factory.getWriteBehind().flush();
+        container.delete();
+        assertTrue(factory.getAsync().awaitWrites(5, TimeUnit.SECONDS));
+
+        verify(dao, never()).upsert(any(AlarmContainer.class));
+        verify(dao, never()).delete(anyInt());
+    }
+
+    @Test
+    public void newAlarmIsWrittenOnceWhenItGetsAState() throws InterruptedException {
+        AlarmContainer container = ImmutableAlarmContainer.copyOf(factory.create()).withState("DisabledState");
+
+        factory.getWriteBehind().flush();
+        factory.getWriteBehind().flush();
+        assertTrue(factory.getAsync().awaitWrites(5, TimeUnit.SECONDS));
+
+        verify(dao, times(1)).upsert(container);
+    }
+}
@@ -0,0 +1,85 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.IHandler;
+import com.igbt6.lovelyclock.statemachine.ImmutableMessage;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.MessageHandler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * All handlers share one queue which is processed with {@link #drain()}, like
+ * the main looper but without the overhead of a test scheduler.
+ */
+class QueueHandlerFactory implements HandlerFactory {
+    private final Deque<Runnable> queue = new ArrayDeque<Runnable>();
+
+    /**
+     * Processes messages until the queue is empty
+     *
+     * @return number of processed messages
+     */
+    public int drain() {
+        int count = 0;
+        Runnable next;
+        while ((next = queue.pollFirst()) != null) {
+            next.run();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public IHandler create(final MessageHandler messageHandler) {
+        return new IHandler() {
+            @Override
+            public void sendMessageAtFrontOfQueue(final Message message) {
+                queue.addFirst(runnable(message));
+            }
+
+            @Override
+            public void sendMessage(Message message) {
+                queue.addLast(runnable(message));
+            }
+
+            @Override
+            public ImmutableMessage obtainMessage(int what, Object obj) {
+                return ImmutableMessage.builder().what(what).handler(this).obj(obj).build();
+            }
+
+            @Override
+            public ImmutableMessage obtainMessage(int what) {
+                return ImmutableMessage.builder().what(what).handler(this).build();
+            }
+
+            private Runnable runnable(final Message message) {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        messageHandler.handleMessage(message);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * All handlers share one queue
+     */
+    @Override
+    public IHandler createBarrier(MessageHandler messageHandler) {
+        return create(messageHandler);
+    }
+
+    @Override
+    public int getQueueCount() {
+        return 1;
+    }
+
+    @Override
+    public HandlerFactory onQueue(int queue) {
+        return this;
+    }
+}
@@ -0,0 +1,265 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.configuration.ImmutablePrefs;
+import com.igbt6.lovelyclock.configuration.ImmutableStore;
+import com.igbt6.lovelyclock.configuration.Store;
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.model.AlarmCore;
+import com.igbt6.lovelyclock.model.AlarmCoreFactory;
+import com.igbt6.lovelyclock.model.AlarmValue;
+import com.igbt6.lovelyclock.model.CalendarType;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.igbt6.lovelyclock.model.IAlarmsScheduler;
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.State;
+import com.igbt6.lovelyclock.statemachine.StateMachine;
+import com.google.common.base.Optional;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import io.reactivex.Single;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares dispatch through the precompiled tables of {@link StateMachine}
+ * with walking up the state hierarchy, measures the message throughput of
+ * {@link AlarmCore} and restoring many state machines at startup.
+ */
+public class StateMachineBenchmark {
+    private static final int DEPTH = 8;
+    private static final int WHATS = 16;
+    private static final int MESSAGES = 200000;
+    private static final int MACHINES = 500;
+
+    @Test
+    public void tableVsWalkingUpTheHierarchy() {
+        for (int i = 0; i < 3; i++) {
+            long walking = measureDeepHierarchy(-1);
+            long table = measureDeepHierarchy(WHATS - 1);
+            System.out.println(String.format("depth %d: walking up %5d ns/msg, table %5d ns/msg",
+                    DEPTH, walking / MESSAGES, table / MESSAGES));
+        }
+    }
+
+    /**
+     * Startup: machines resumed with a message which is handled later and
+     * machines resumed right away
+     */
+    @Test
+    public void restoreQueuedVsNow() {
+        for (int round = 0; round < 3; round++) {
+            QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+            long start = System.nanoTime();
+            for (int i = 0; i < MACHINES; i++) {
+                new DeepSm(handlerFactory, WHATS - 1).resume();
+            }
+            handlerFactory.drain();
+            long queued = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < MACHINES; i++) {
+                new DeepSm(handlerFactory, WHATS - 1).resumeNow();
+            }
+            long now = System.nanoTime() - start;
+
+            System.out.println(String.format("%d machines: resume %5d us, resumeNow %5d us",
+                    MACHINES, queued / 1000, now / 1000));
+        }
+    }
+
+    /**
+     * Bytes allocated per message with the builder of ImmutableMessage and
+     * with pooled messages. Both include the Runnable of
+     * {@link QueueHandlerFactory}.
+     */
+    @Test
+    public void allocationsImmutableVsPooledMessages() {
+        Assume.assumeTrue("allocations are not counted by this JVM", allocatedBytes() >= 0);
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        DeepSm sm = new DeepSm(handlerFactory, WHATS - 1);
+        sm.start();
+        handlerFactory.drain();
+        Object obj = new Object();
+
+        for (int round = 0; round < 3; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < MESSAGES; i++) {
+                sm.obtainMessage(i % WHATS).withArg1(i).withObj(obj).send();
+                handlerFactory.drain();
+            }
+            long immutable = allocatedBytes() - before;
+
+            before = allocatedBytes();
+            for (int i = 0; i < MESSAGES; i++) {
+                sm.obtainPooledMessage(i % WHATS).setArg1(i).setObj(obj).send();
+                handlerFactory.drain();
+            }
+            long pooled = allocatedBytes() - before;
+
+            System.out.println(String.format("ImmutableMessage %4d bytes/msg, PooledMessage %4d bytes/msg",
+                    immutable / MESSAGES, pooled / MESSAGES));
+        }
+    }
+
+    @Test
+    public void alarmCoreMessagesPerSecond() {
+        Calendars calendars = new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        };
+        BehaviorSubject<Integer> preAlarmDuration = BehaviorSubject.createDefault(10);
+        ImmutablePrefs prefs = ImmutablePrefs.builder()
+                .preAlarmDuration(preAlarmDuration)
+                .snoozeDuration(BehaviorSubject.createDefault(10))
+                .autoSilence(BehaviorSubject.createDefault(10))
+                .is24HoutFormat(Single.just(true))
+                .build();
+        ImmutableStore store = ImmutableStore.builder()
+                .alarmsSubject(BehaviorSubject.<List<AlarmValue>>createDefault(new ArrayList<AlarmValue>()))
+                .next(BehaviorSubject.createDefault(Optional.<Store.Next>absent()))
+                .sets(PublishSubject.<Store.AlarmSet>create())
+                .build();
+        IAlarmsScheduler scheduler = new IAlarmsScheduler() {
+            @Override
+            public void removeAlarm(int id) {
+                //NOP
+            }
+
+            @Override
+            public void setAlarm(int id, CalendarType calendarType, long millis, AlarmValue alarmValue) {
+                //NOP
+            }
+
+            @Override
+            public void onAlarmFired(int id) {
+                //NOP
+            }
+
+            @Override
+            public void beginBatch() {
+                //NOP
+            }
+
+            @Override
+            public void commit() {
+                //NOP
+            }
+        };
+
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        AlarmCoreFactory factory = new AlarmCoreFactory(Logger.create(), scheduler, mock(AlarmCore.IStateNotifier.class),
+                handlerFactory, prefs, store, calendars);
+        AlarmCore alarm = factory.create(new TestContainerFactory(calendars).create());
+        alarm.enable(true);
+        handlerFactory.drain();
+
+        for (int round = 0; round < 3; round++) {
+            int count = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES / 4; i++) {
+                alarm.refresh();
+                alarm.onTimeSet();
+                preAlarmDuration.onNext(10);
+                alarm.change(alarm.edit());
+                count += handlerFactory.drain();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("AlarmCore: %d messages, %d messages/s", count, count * 1000000000L / elapsed));
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread or -1 if the JVM does not count
+     * them, com.sun.management is not available on every JVM
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> extended = Class.forName("com.sun.management.ThreadMXBean");
+            if (!extended.isInstance(threads)) return -1;
+            Method method = extended.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private long measureDeepHierarchy(int largestWhat) {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        DeepSm sm = new DeepSm(handlerFactory, largestWhat);
+        sm.start();
+        handlerFactory.drain();
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            sm.sendMessage(i % WHATS);
+            handlerFactory.drain();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * A chain of states, a state at level n only handles what n, everything
+     * else is handled by the root
+     */
+    private static class DeepSm extends StateMachine {
+        private final int largestWhat;
+
+        DeepSm(HandlerFactory handlerFactory, int largestWhat) {
+            super("deep", handlerFactory, Logger.create());
+            this.largestWhat = largestWhat;
+            State parent = null;
+            for (int level = 0; level < DEPTH; level++) {
+                State state = new LevelState(level);
+                if (parent == null) {
+                    addState(state);
+                } else {
+                    addState(state, parent);
+                }
+                parent = state;
+            }
+            setInitialState(parent);
+        }
+
+        @Override
+        protected int getLargestMessageWhat() {
+            return largestWhat;
+        }
+    }
+
+    private static class LevelState extends State {
+        private final int level;
+
+        LevelState(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public boolean processMessage(Message msg) {
+            return level == 0 || msg.what() == level;
+        }
+
+        @Override
+        public boolean mayHandle(int what) {
+            return level == 0 || what == level;
+        }
+
+        @Override
+        public String getName() {
+            return "Level" + level;
+        }
+    }
+}
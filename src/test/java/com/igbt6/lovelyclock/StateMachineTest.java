@@ -0,0 +1,443 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.logger.Logger;
+import com.igbt6.lovelyclock.statemachine.HandlerFactory;
+import com.igbt6.lovelyclock.statemachine.Message;
+import com.igbt6.lovelyclock.statemachine.PooledMessage;
+import com.igbt6.lovelyclock.statemachine.State;
+import com.igbt6.lovelyclock.statemachine.StateMachine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StateMachineTest {
+    private static final int ROOT_ONLY = 1;
+    private static final int CONDITIONAL = 2;
+    private static final int TRANSITION = 3;
+    private static final int UNHANDLED = 4;
+
+    /**
+     * root - middle - leaf, leaf and middle skip messages they can not handle
+     */
+    static class HierarchySm extends StateMachine {
+        private final int largestWhat;
+        final List<String> calls = new ArrayList<String>();
+        final List<String> handled = new ArrayList<String>();
+
+        private final State root = new RecordingState("root") {
+            @Override
+            protected boolean process(Message msg) {
+                return msg.what() != UNHANDLED;
+            }
+        };
+
+        private final State middle = new RecordingState("middle") {
+            @Override
+            protected boolean process(Message msg) {
+                // handled or not depending on the message, not on the what
+                return msg.what() == CONDITIONAL && msg.arg1().isPresent();
+            }
+
+            @Override
+            public boolean mayHandle(int what) {
+                return what == CONDITIONAL;
+            }
+        };
+
+        private final State other = new RecordingState("other") {
+            @Override
+            protected boolean process(Message msg) {
+                if (msg.what() == TRANSITION) {
+                    transitionTo(leaf);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean mayHandle(int what) {
+                return what == TRANSITION;
+            }
+        };
+
+        private final State leaf = new RecordingState("leaf") {
+            @Override
+            protected boolean process(Message msg) {
+                if (msg.what() == TRANSITION) {
+                    transitionTo(other);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean mayHandle(int what) {
+                return what == TRANSITION;
+            }
+        };
+
+        HierarchySm(HandlerFactory handlerFactory, int largestWhat) {
+            super("test", handlerFactory, Logger.create());
+            this.largestWhat = largestWhat;
+            addState(root);
+            addState(middle, root);
+            addState(leaf, middle);
+            addState(other, root);
+            setInitialState(leaf);
+        }
+
+        @Override
+        protected int getLargestMessageWhat() {
+            return largestWhat;
+        }
+
+        State stateNamed(String name) {
+            return getState(name);
+        }
+
+        String checkpointOf(String name) {
+            return getCheckpoint(getState(name));
+        }
+
+        State restore(String checkpoint) {
+            return getStateByCheckpoint(checkpoint);
+        }
+
+        private abstract class RecordingState extends State {
+            private final String name;
+
+            RecordingState(String name) {
+                this.name = name;
+            }
+
+            @Override
+            public final boolean processMessage(Message msg) {
+                calls.add(msg.what() + ":" + name);
+                boolean result = process(msg);
+                if (result) {
+                    handled.add(msg.what() + ":" + name);
+                }
+                return result;
+            }
+
+            protected abstract boolean process(Message msg);
+
+            @Override
+            public String getName() {
+                return name;
+            }
+        }
+    }
+
+    /**
+     * Defers everything until TRANSITION, then records the objects
+     */
+    static class DeferringSm extends StateMachine {
+        final List<Object> received = new ArrayList<Object>();
+
+        private final State ready = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                received.add(msg.objOrNull());
+                return true;
+            }
+        };
+
+        private final State waiting = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what() == TRANSITION) {
+                    transitionTo(ready);
+                } else {
+                    deferMessage(msg);
+                }
+                return true;
+            }
+        };
+
+        DeferringSm(HandlerFactory handlerFactory) {
+            super("deferring", handlerFactory, Logger.create());
+            addState(waiting);
+            addState(ready);
+            setInitialState(waiting);
+        }
+
+        void coalesce(int what) {
+            setCoalescing(what, Coalescing.LATEST);
+        }
+    }
+
+    /**
+     * Records the objects, ROOT_ONLY is coalesced
+     */
+    static class CoalescingSm extends StateMachine {
+        final List<Object> received = new ArrayList<Object>();
+
+        private final State state = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                received.add(msg.what() + ":" + msg.objOrNull());
+                return true;
+            }
+        };
+
+        CoalescingSm(HandlerFactory handlerFactory) {
+            super("coalescing", handlerFactory, Logger.create());
+            addState(state);
+            setInitialState(state);
+            setCoalescing(ROOT_ONLY, Coalescing.LATEST);
+        }
+    }
+
+    private static HierarchySm runScenario(int largestWhat) {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        HierarchySm sm = new HierarchySm(handlerFactory, largestWhat);
+        sm.start();
+        handlerFactory.drain();
+        sm.sendMessage(ROOT_ONLY);
+        sm.sendMessage(CONDITIONAL);
+        sm.obtainMessage(CONDITIONAL).withArg1(1).send();
+        sm.sendMessage(UNHANDLED);
+        sm.sendMessage(TRANSITION);
+        sm.sendMessage(CONDITIONAL);
+        sm.sendMessage(TRANSITION);
+        sm.sendMessage(ROOT_ONLY);
+        // larger than the table
+        sm.sendMessage(100);
+        handlerFactory.drain();
+        return sm;
+    }
+
+    @Test
+    public void dispatchTableHasTheSameResultAsWalkingUp() {
+        HierarchySm walking = runScenario(-1);
+        HierarchySm table = runScenario(UNHANDLED);
+
+        assertEquals(walking.handled, table.handled);
+        assertEquals("leaf", table.getCurrentState().getName());
+    }
+
+    @Test
+    public void statesWhichCanNotHandleTheMessageAreSkipped() {
+        HierarchySm walking = runScenario(-1);
+        HierarchySm table = runScenario(UNHANDLED);
+
+        assertTrue(table.calls.size() < walking.calls.size());
+        assertTrue(walking.calls.contains(ROOT_ONLY + ":leaf"));
+        assertFalse(table.calls.contains(ROOT_ONLY + ":leaf"));
+        assertFalse(table.calls.contains(ROOT_ONLY + ":middle"));
+        assertFalse(table.calls.contains(UNHANDLED + ":middle"));
+        assertTrue(table.calls.contains(CONDITIONAL + ":middle"));
+        // not in the table, every state is asked
+        assertTrue(table.calls.contains("100:leaf"));
+    }
+
+    @Test
+    public void pooledMessageIsReusedAfterItWasHandled() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        HierarchySm sm = new HierarchySm(handlerFactory, UNHANDLED);
+        sm.start();
+        handlerFactory.drain();
+
+        PooledMessage first = sm.obtainPooledMessage(CONDITIONAL).setArg1(1);
+        first.send();
+        PooledMessage second = sm.obtainPooledMessage(ROOT_ONLY);
+        assertNotSame(first, second);
+        second.send();
+        handlerFactory.drain();
+
+        assertEquals("[2:middle, 1:root]", sm.handled.toString());
+        PooledMessage reused = sm.obtainPooledMessage(ROOT_ONLY);
+        assertTrue(reused == first || reused == second);
+        assertFalse(reused.arg1().isPresent());
+        assertEquals(-1, reused.arg1Or(-1));
+    }
+
+    @Test
+    public void pooledMessageCanBeSentOnlyOnce() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        HierarchySm sm = new HierarchySm(handlerFactory, UNHANDLED);
+        sm.start();
+        handlerFactory.drain();
+
+        PooledMessage message = sm.obtainPooledMessage(ROOT_ONLY);
+        message.send();
+        try {
+            message.send();
+            fail();
+        } catch (IllegalStateException expected) {
+            // sent
+        }
+        handlerFactory.drain();
+        try {
+            message.setArg1(1);
+            fail();
+        } catch (IllegalStateException expected) {
+            // recycled
+        }
+    }
+
+    @Test
+    public void deferredPooledMessageIsRecycledAfterItWasHandledAgain() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        DeferringSm sm = new DeferringSm(handlerFactory);
+        sm.start();
+        handlerFactory.drain();
+
+        Object obj = new Object();
+        sm.obtainPooledMessage(ROOT_ONLY).setObj(obj).send();
+        handlerFactory.drain();
+        // deferred messages keep their content
+        PooledMessage other = sm.obtainPooledMessage(TRANSITION);
+        other.send();
+        handlerFactory.drain();
+
+        assertEquals(1, sm.received.size());
+        assertSame(obj, sm.received.get(0));
+    }
+
+    @Test
+    public void resumeNowResumesWithoutTheQueue() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        HierarchySm sm = new HierarchySm(handlerFactory, UNHANDLED);
+        sm.resumeNow();
+
+        assertEquals(0, handlerFactory.drain());
+        assertEquals("leaf", sm.getCurrentState().getName());
+        sm.sendMessage(TRANSITION);
+        handlerFactory.drain();
+        assertEquals("other", sm.getCurrentState().getName());
+    }
+
+    @Test
+    public void messagesHandledBeforeResumeNowAreDeferred() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        HierarchySm sm = new HierarchySm(handlerFactory, UNHANDLED);
+        sm.sendMessage(TRANSITION);
+        assertEquals(1, handlerFactory.drain());
+        assertTrue(sm.calls.isEmpty());
+
+        sm.resumeNow();
+        handlerFactory.drain();
+        assertEquals("other", sm.getCurrentState().getName());
+    }
+
+    @Test
+    public void checkpointHasTheOrdinalsOfTheStack() {
+        HierarchySm sm = new HierarchySm(new QueueHandlerFactory(), UNHANDLED);
+
+        assertEquals("2.1.0:leaf", sm.checkpointOf("leaf"));
+        assertEquals("3.0:other", sm.checkpointOf("other"));
+        assertEquals("0:root", sm.checkpointOf("root"));
+        assertSame(sm.checkpointOf("leaf"), sm.checkpointOf("leaf"));
+    }
+
+    @Test
+    public void stateIsRestoredFromCheckpoint() {
+        HierarchySm sm = new HierarchySm(new QueueHandlerFactory(), UNHANDLED);
+
+        assertSame(sm.stateNamed("leaf"), sm.restore("2.1.0:leaf"));
+        assertSame(sm.stateNamed("other"), sm.restore("3.0:other"));
+        // written before checkpoints were introduced
+        assertSame(sm.stateNamed("middle"), sm.restore("middle"));
+    }
+
+    @Test
+    public void checkpointWhichDoesNotMatchTheHierarchyIsRestoredByName() {
+        HierarchySm sm = new HierarchySm(new QueueHandlerFactory(), UNHANDLED);
+
+        assertSame(sm.stateNamed("other"), sm.restore("2.1.0:other"));
+        assertSame(sm.stateNamed("leaf"), sm.restore("2.1:leaf"));
+        assertSame(sm.stateNamed("leaf"), sm.restore("2.3.0:leaf"));
+        assertSame(sm.stateNamed("leaf"), sm.restore("7.1.0:leaf"));
+        assertSame(sm.stateNamed("leaf"), sm.restore("2.1.0.:leaf"));
+        assertSame(sm.stateNamed("leaf"), sm.restore(":leaf"));
+        assertEquals(null, sm.restore("2.1.0:lea"));
+    }
+
+    @Test
+    public void stateIsFoundByName() {
+        HierarchySm sm = new HierarchySm(new QueueHandlerFactory(), UNHANDLED);
+
+        assertEquals("middle", sm.stateNamed("middle").getName());
+        assertEquals("other", sm.stateNamed("other").getName());
+        assertEquals(null, sm.stateNamed("unknown"));
+    }
+
+    @Test
+    public void onlyTheLatestPendingMessageIsHandled() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        CoalescingSm sm = new CoalescingSm(handlerFactory);
+        sm.start();
+        handlerFactory.drain();
+
+        sm.obtainMessage(ROOT_ONLY).withObj("a").send();
+        sm.obtainMessage(CONDITIONAL).withObj("b").send();
+        sm.obtainPooledMessage(ROOT_ONLY).setObj("c").send();
+        sm.obtainMessage(CONDITIONAL).withObj("d").send();
+        sm.obtainMessage(ROOT_ONLY).withObj("e").send();
+        handlerFactory.drain();
+
+        assertEquals("[1:e, 2:b, 2:d]", sm.received.toString());
+        assertEquals(2, sm.getCoalescedCount(ROOT_ONLY));
+        assertEquals(0, sm.getCoalescedCount(CONDITIONAL));
+        assertEquals(2, sm.getCoalescedCount());
+
+        // nothing pending anymore
+        sm.sendMessage(ROOT_ONLY);
+        handlerFactory.drain();
+        assertEquals("[1:e, 2:b, 2:d, 1:null]", sm.received.toString());
+        assertEquals(2, sm.getCoalescedCount());
+    }
+
+    @Test
+    public void replacedPooledMessageIsRecycled() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        CoalescingSm sm = new CoalescingSm(handlerFactory);
+        sm.start();
+        handlerFactory.drain();
+
+        PooledMessage queued = sm.obtainPooledMessage(ROOT_ONLY);
+        queued.send();
+        sm.obtainMessage(ROOT_ONLY).withObj("latest").send();
+        handlerFactory.drain();
+
+        assertEquals("[1:latest]", sm.received.toString());
+        try {
+            queued.setArg1(1);
+            fail();
+        } catch (IllegalStateException expected) {
+            // recycled
+        }
+    }
+
+    @Test
+    public void droppedDeferredPooledMessageIsRecycled() {
+        QueueHandlerFactory handlerFactory = new QueueHandlerFactory();
+        DeferringSm sm = new DeferringSm(handlerFactory);
+        sm.coalesce(ROOT_ONLY);
+        sm.start();
+        handlerFactory.drain();
+
+        PooledMessage deferred = sm.obtainPooledMessage(ROOT_ONLY).setObj("deferred");
+        deferred.send();
+        handlerFactory.drain();
+        sm.obtainMessage(TRANSITION).send();
+        sm.obtainMessage(ROOT_ONLY).withObj("newer").send();
+        handlerFactory.drain();
+
+        assertEquals("[newer]", sm.received.toString());
+        assertEquals(1, sm.getCoalescedCount(ROOT_ONLY));
+        // back in the pool
+        assertSame(deferred, sm.obtainPooledMessage(CONDITIONAL));
+    }
+}
@@ -3,10 +3,15 @@ package com.igbt6.lovelyclock;
 import com.igbt6.lovelyclock.model.AlarmSetter;
 import com.igbt6.lovelyclock.model.AlarmsScheduler;
 
+import java.util.List;
+
 /**
  * Created by Yuriy on 25.06.2017.
  */
 class TestAlarmSetter implements AlarmSetter {
+    private int setUpRTCAlarmCount;
+    private int fireNowCount;
+
     @Override
     public void removeRTCAlarm() {
         //NOP
@@ -14,11 +19,29 @@ class TestAlarmSetter implements AlarmSetter {
 
     @Override
     public void setUpRTCAlarm(AlarmsScheduler.ScheduledAlarm alarm) {
-        //NOP
+        setUpRTCAlarmCount++;
+    }
+
+    @Override
+    public void setUpRTCAlarm(List<AlarmsScheduler.ScheduledAlarm> alarms) {
+        setUpRTCAlarmCount++;
     }
 
     @Override
     public void fireNow(AlarmsScheduler.ScheduledAlarm firedInThePastAlarm) {
-        //NOP
+        fireNowCount++;
+    }
+
+    @Override
+    public void fireNow(List<AlarmsScheduler.ScheduledAlarm> firedInThePastAlarms) {
+        fireNowCount++;
+    }
+
+    int getSetUpRTCAlarmCount() {
+        return setUpRTCAlarmCount;
+    }
+
+    int getFireNowCount() {
+        return fireNowCount;
     }
 }
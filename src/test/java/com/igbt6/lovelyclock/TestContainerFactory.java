@@ -7,6 +7,7 @@ import com.igbt6.lovelyclock.model.Calendars;
 import com.igbt6.lovelyclock.model.ContainerFactory;
 import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
 import com.igbt6.lovelyclock.model.ImmutableDaysOfWeek;
+import com.igbt6.lovelyclock.persistance.WriteBehindPersistence;
 
 import java.util.Calendar;
 
@@ -16,9 +17,15 @@ import java.util.Calendar;
 public class TestContainerFactory implements ContainerFactory {
     private int idCounter;
     private Calendars calendars;
+    private AlarmContainer.Persistence persistence;
 
     public TestContainerFactory(Calendars calendars) {
+        this(calendars, AlarmContainer.PERSISTENCE_STUB);
+    }
+
+    public TestContainerFactory(Calendars calendars, AlarmContainer.Persistence persistence) {
         this.calendars = calendars;
+        this.persistence = persistence;
     }
 
     @Override
@@ -27,7 +34,7 @@ public class TestContainerFactory implements ContainerFactory {
         return ImmutableAlarmContainer.builder()
                 .id(-1)
                 .isEnabled(false)
-                .nextTime(now)
+                .nextTime(now.getTimeInMillis())
                 .hour(now.get(Calendar.HOUR_OF_DAY))
                 .minutes(now.get(Calendar.MINUTE))
                 .isVibrate(true)
@@ -37,7 +44,7 @@ public class TestContainerFactory implements ContainerFactory {
                 .label("")
                 .state("")
                 .id(idCounter++)
-                .persistence(AlarmContainer.PERSISTENCE_STUB)
+                .persistence(persistence)
                 .build();
     }
 
@@ -45,4 +52,18 @@ public class TestContainerFactory implements ContainerFactory {
     public AlarmContainer create(Cursor cursor) {
         throw new UnsupportedOperationException();
     }
+
+    @Override
+    public void beginBatch() {
+        if (persistence instanceof WriteBehindPersistence) {
+            ((WriteBehindPersistence) persistence).beginBatch();
+        }
+    }
+
+    @Override
+    public void commitBatch() {
+        if (persistence instanceof WriteBehindPersistence) {
+            ((WriteBehindPersistence) persistence).commitBatch();
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package com.igbt6.lovelyclock;
+
+import com.igbt6.lovelyclock.model.AlarmContainer;
+import com.igbt6.lovelyclock.model.Calendars;
+import com.igbt6.lovelyclock.model.ImmutableAlarmContainer;
+import com.igbt6.lovelyclock.persistance.WriteBehindPersistence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteBehindPersistenceTest {
+    private CountingPersistence counting;
+    private WriteBehindPersistence writeBehind;
+    private TestContainerFactory containerFactory;
+
+    @Before
+    public void setUp() {
+        counting = new CountingPersistence();
+        writeBehind = new WriteBehindPersistence(counting);
+        containerFactory = new TestContainerFactory(new Calendars() {
+            @Override
+            public Calendar now() {
+                return Calendar.getInstance();
+            }
+        }, writeBehind);
+    }
+
+    @Test
+    public void changesAreWrittenOnFlush() {
+        ImmutableAlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create());
+        container.withHour(7).withMinutes(30).withIsEnabled(true);
+        assertEquals(0, counting.getPersistCount());
+
+        writeBehind.flush();
+        assertEquals(1, counting.getPersistCount());
+        assertEquals(1, writeBehind.getWriteCount());
+    }
+
+    @Test
+    public void severalContainersAreWrittenTogether() {
+        for (int i = 0; i < 5; i++) {
+            ImmutableAlarmContainer.copyOf(containerFactory.create()).withHour(i);
+        }
+        writeBehind.flush();
+
+        assertEquals(0, counting.getPersistCount());
+        assertEquals(1, counting.getBatchCount());
+        assertEquals(5, counting.getBatchedCount());
+        assertEquals(5, writeBehind.getWriteCount());
+    }
+
+    @Test
+    public void unchangedContainerIsNotWrittenAgain() {
+        ImmutableAlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create()).withHour(7);
+        writeBehind.flush();
+
+        container.withHour(8).withHour(7);
+        writeBehind.flush();
+
+        assertEquals(1, counting.getPersistCount());
+    }
+
+    @Test
+    public void newContainerIsWrittenAfterItGotAState() {
+        ImmutableAlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create());
+        writeBehind.markNew(container);
+        container.withHour(7);
+        writeBehind.flush();
+        assertEquals(0, counting.getPersistCount());
+
+        container.withHour(7).withState("DisabledState");
+        writeBehind.flush();
+        assertEquals(1, counting.getPersistCount());
+    }
+
+    @Test
+    public void deletedNewContainerIsNotDeletedFromTheDelegate() {
+        ImmutableAlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create());
+        writeBehind.markNew(container);
+        writeBehind.delete(container);
+        writeBehind.flush();
+
+        assertEquals(0, counting.getPersistCount());
+        assertEquals(0, counting.getDeleteCount());
+    }
+
+    @Test
+    public void deletedContainerIsNotWritten() {
+        AlarmContainer container = ImmutableAlarmContainer.copyOf(containerFactory.create()).withHour(7);
+        writeBehind.delete(container);
+        writeBehind.flush();
+
+        assertEquals(0, counting.getPersistCount());
+        assertEquals(1, counting.getDeleteCount());
+    }
+}